@@ -0,0 +1,204 @@
+package dev.ferrand.chunky.bvh.benchmark;
+
+import se.llbit.chunky.entity.Entity;
+import se.llbit.chunky.resources.Texture;
+import se.llbit.chunky.world.Material;
+import se.llbit.json.JsonObject;
+import se.llbit.json.JsonValue;
+import se.llbit.math.Vector2;
+import se.llbit.math.Vector3;
+import se.llbit.math.primitive.Primitive;
+import se.llbit.math.primitive.TexturedTriangle;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Random;
+import java.util.function.Consumer;
+
+/**
+ * Deterministic synthetic scenes made of entities, shaped like the ones found in Minecraft worlds.
+ * The same arguments always give the same triangles.
+ */
+public final class BenchmarkScenes {
+
+  private BenchmarkScenes() {
+  }
+
+  public enum Shape {
+    /**
+     * Boxes of mob and armor stand sizes, rotated around the vertical axis and spread over a large flat area.
+     */
+    SWARM,
+    /**
+     * The same boxes packed in a small sphere, overlapping a lot.
+     */
+    CLUSTER,
+    /**
+     * Long thin double sided quads in every direction, like banners, rails and custom models.
+     */
+    THIN,
+  }
+
+  private static final float[] WHITE = {1, 1, 1, 1};
+  private static final float[] CLEAR = {0, 0, 0, 0};
+
+  /**
+   * Material whose texture is fully opaque.
+   */
+  public static Material opaqueMaterial() {
+    return new Material("bvh_benchmark_opaque", new Texture()) {
+      @Override
+      public float[] getColor(double u, double v) {
+        return WHITE;
+      }
+    };
+  }
+
+  /**
+   * Material whose texture is a 4x4 checkerboard of opaque and transparent texels, so that every hit
+   * needs an alpha test.
+   */
+  public static Material alphaTestedMaterial() {
+    return new Material("bvh_benchmark_alpha_tested", new Texture()) {
+      @Override
+      public float[] getColor(double u, double v) {
+        return (((int) Math.floor(u * 4) + (int) Math.floor(v * 4)) & 1) == 0 ? WHITE : CLEAR;
+      }
+    };
+  }
+
+  /**
+   * Entity creating its primitives on each call like the entities of Chunky, so that the primitives
+   * are only retained by the BVH.
+   */
+  public static class MeshEntity extends Entity {
+    private final Consumer<List<Primitive>> generator;
+
+    MeshEntity(Vector3 position, Consumer<List<Primitive>> generator) {
+      super(position);
+      this.generator = generator;
+    }
+
+    @Override
+    public Collection<Primitive> primitives(Vector3 offset) {
+      List<Primitive> primitives = new ArrayList<>();
+      generator.accept(primitives);
+      return primitives;
+    }
+
+    @Override
+    public JsonValue toJson() {
+      return new JsonObject();
+    }
+  }
+
+  /**
+   * Create {@code entityCount} entities of the given shape, each made of 12 triangles for the boxes
+   * or 2 for the thin quads.
+   */
+  public static List<Entity> create(Shape shape, int entityCount, Material material, long seed) {
+    Random random = new Random(seed);
+    List<Entity> entities = new ArrayList<>(entityCount);
+    // Keep the density of the swarm about the same whatever the number of entities
+    double extent = 8 * Math.sqrt(entityCount);
+    for (int i = 0; i < entityCount; ++i) {
+      Vector3 position;
+      Consumer<List<Primitive>> generator;
+      switch (shape) {
+        case SWARM:
+          position = new Vector3(random.nextDouble() * extent, random.nextDouble() * 4, random.nextDouble() * extent);
+          generator = box(random, position, material);
+          break;
+        case CLUSTER: {
+          // Uniform in a sphere whose radius grows slowly with the number of entities
+          double radius = 4 * Math.cbrt(entityCount);
+          do {
+            position = new Vector3(random.nextDouble() * 2 - 1, random.nextDouble() * 2 - 1, random.nextDouble() * 2 - 1);
+          } while (position.x * position.x + position.y * position.y + position.z * position.z > 1);
+          position.set(position.x * radius, position.y * radius, position.z * radius);
+          generator = box(random, position, material);
+          break;
+        }
+        default: {
+          Vector3 corner = new Vector3(random.nextDouble() * extent, random.nextDouble() * 32, random.nextDouble() * extent);
+          Vector3 along = randomDirection(random);
+          Vector3 across = randomDirection(random);
+          double length = 8 + random.nextDouble() * 40;
+          double width = 0.05 + random.nextDouble() * 0.1;
+          along.scale(length);
+          across.scale(width);
+          position = corner;
+          generator = primitives -> quad(primitives, corner, along, across, material, true);
+        }
+      }
+      entities.add(new MeshEntity(position, generator));
+    }
+    return entities;
+  }
+
+  private static Vector3 randomDirection(Random random) {
+    Vector3 direction = new Vector3(random.nextGaussian(), random.nextGaussian(), random.nextGaussian());
+    direction.normalize();
+    return direction;
+  }
+
+  /**
+   * Draw the size and rotation of a box of mob or armor stand size centered on {@code center}.
+   */
+  private static Consumer<List<Primitive>> box(Random random, Vector3 center, Material material) {
+    double width = 0.2 + random.nextDouble() * 0.8;
+    double height = 0.2 + random.nextDouble() * 1.8;
+    double depth = 0.2 + random.nextDouble() * 0.8;
+    double yaw = random.nextDouble() * 2 * Math.PI;
+    return primitives -> box(primitives, center, width, height, depth, yaw, material);
+  }
+
+  /**
+   * Add the 12 single sided triangles of a box with outward facing triangles, rotated by {@code yaw} around
+   * the vertical axis through its center.
+   */
+  private static void box(List<Primitive> primitives, Vector3 center, double width, double height, double depth,
+                          double yaw, Material material) {
+    double cos = Math.cos(yaw);
+    double sin = Math.sin(yaw);
+    Vector3[] axes = {
+        new Vector3(cos * width, 0, sin * width),
+        new Vector3(0, height, 0),
+        new Vector3(-sin * depth, 0, cos * depth),
+    };
+    for (int axis = 0; axis < 3; ++axis) {
+      Vector3 a = axes[(axis + 1) % 3];
+      Vector3 b = axes[(axis + 2) % 3];
+      Vector3 normal = axes[axis];
+      for (int side = -1; side <= 1; side += 2) {
+        // Corner of the face with the lowest coordinates along the two other axes
+        Vector3 corner = new Vector3(
+            center.x + (side * normal.x - a.x - b.x) / 2,
+            center.y + (side * normal.y - a.y - b.y) / 2,
+            center.z + (side * normal.z - a.z - b.z) / 2);
+        // Make v x u point outwards, see quad
+        if (side > 0) {
+          quad(primitives, corner, b, a, material, false);
+        } else {
+          quad(primitives, corner, a, b, material, false);
+        }
+      }
+    }
+  }
+
+  /**
+   * Add the two triangles of the quad {@code corner, corner + u, corner + u + v, corner + v}.
+   * Seen from the side of {@code v x u} the triangles are in front.
+   */
+  private static void quad(List<Primitive> primitives, Vector3 corner, Vector3 u, Vector3 v, Material material,
+                           boolean doubleSided) {
+    Vector3 c1 = new Vector3(corner.x + u.x, corner.y + u.y, corner.z + u.z);
+    Vector3 c2 = new Vector3(c1.x + v.x, c1.y + v.y, c1.z + v.z);
+    Vector3 c3 = new Vector3(corner.x + v.x, corner.y + v.y, corner.z + v.z);
+    primitives.add(new TexturedTriangle(corner, c1, c2,
+        new Vector2(0, 0), new Vector2(1, 0), new Vector2(1, 1), material, doubleSided));
+    primitives.add(new TexturedTriangle(corner, c2, c3,
+        new Vector2(0, 0), new Vector2(1, 1), new Vector2(0, 1), material, doubleSided));
+  }
+}
@@ -0,0 +1,150 @@
+package dev.ferrand.chunky.bvh.benchmark;
+
+import dev.ferrand.chunky.bvh.implementation.PackedCompressedBVH;
+import dev.ferrand.chunky.bvh.implementation.PackedDepthFirstBVH;
+import dev.ferrand.chunky.bvh.implementation.PackedFastBVH;
+import dev.ferrand.chunky.bvh.implementation.PackedSahMaBVH;
+import dev.ferrand.chunky.bvh.implementation.PackedWideBVH;
+import dev.ferrand.chunky.bvh.util.PackedTrianglesBuilder;
+import org.openjdk.jmh.annotations.*;
+import se.llbit.chunky.world.Material;
+import se.llbit.math.Ray;
+import se.llbit.math.Vector2;
+import se.llbit.math.Vector3;
+import se.llbit.math.bvh.BVH;
+import se.llbit.math.primitive.TexturedTriangle;
+import se.llbit.util.TaskTracker;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Ray traversal throughput of the different node layouts. The memory used by the nodes of each layout
+ * is printed during the setup.
+ * The gc profiler (enabled in build.gradle) reports the allocation rate, which should be close to zero
+ * since tracing a ray doesn't allocate.
+ */
+public class PackedSahMaBVHBenchmark {
+
+  private static final int RAY_COUNT = 1024;
+
+  @State(Scope.Benchmark)
+  public static class BenchmarkData {
+    public BVH bvh;
+    public double[] rays; // origin and direction, 6 doubles per ray
+
+    @Param({"1024", "65536", "1048576"})
+    public int n;
+
+    @Param({"binary", "fast", "depthfirst", "wide4", "wide8", "compressed8", "compressed16"})
+    public String layout;
+
+    @Setup
+    public void setup() {
+      PackedTrianglesBuilder builder = new PackedTrianglesBuilder();
+      Random random = new Random(0);
+      Material material = BenchmarkScenes.opaqueMaterial();
+      Vector2 uv0 = new Vector2(0, 0);
+      Vector2 uv1 = new Vector2(1, 0);
+      Vector2 uv2 = new Vector2(0, 1);
+      for(int i = 0; i < n; ++i) {
+        Vector3 origin = new Vector3(
+          random.nextGaussian() * 100,
+          random.nextGaussian() * 100,
+          random.nextGaussian() * 100
+        );
+        Vector3 c2 = new Vector3(origin.x + random.nextDouble(), origin.y + random.nextDouble(), origin.z);
+        Vector3 c3 = new Vector3(origin.x, origin.y + random.nextDouble(), origin.z + random.nextDouble());
+        builder.addTriangle(new TexturedTriangle(origin, c2, c3, uv0, uv1, uv2, material));
+      }
+      PackedSahMaBVH binary = new PackedSahMaBVH(builder.build(), TaskTracker.Task.NONE, true);
+      long nodeBytes;
+      switch (layout) {
+        case "fast": {
+          PackedFastBVH fast = new PackedFastBVH(binary);
+          // Same nodes, the precomputed triangles are counted with them
+          nodeBytes = fast.nodeBytes() + fast.precomputedBytes();
+          bvh = fast;
+          break;
+        }
+        case "depthfirst": {
+          PackedDepthFirstBVH depthFirst = new PackedDepthFirstBVH(binary);
+          nodeBytes = depthFirst.nodeBytes();
+          bvh = depthFirst;
+          break;
+        }
+        case "wide4": {
+          PackedWideBVH wide = new PackedWideBVH(binary, 4);
+          nodeBytes = wide.nodeBytes();
+          bvh = wide;
+          break;
+        }
+        case "wide8": {
+          PackedWideBVH wide = new PackedWideBVH(binary, 8);
+          nodeBytes = wide.nodeBytes();
+          bvh = wide;
+          break;
+        }
+        case "compressed8": {
+          PackedCompressedBVH compressed = new PackedCompressedBVH(binary, 8);
+          nodeBytes = compressed.nodeBytes();
+          bvh = compressed;
+          break;
+        }
+        case "compressed16": {
+          PackedCompressedBVH compressed = new PackedCompressedBVH(binary, 16);
+          nodeBytes = compressed.nodeBytes();
+          bvh = compressed;
+          break;
+        }
+        default:
+          nodeBytes = binary.nodeBytes();
+          bvh = binary;
+      }
+      // Memory of the layout compared to the 32 bytes of each node of the binary tree it was made from
+      long binaryNodes = binary.nodeBytes() / 32;
+      System.out.printf("%s: %d bytes of nodes, %.2f bytes per binary node%n", layout, nodeBytes, nodeBytes / (double) binaryNodes);
+
+      rays = new double[6 * RAY_COUNT];
+      for(int i = 0; i < RAY_COUNT; ++i) {
+        Vector3 d = new Vector3(random.nextGaussian(), random.nextGaussian(), random.nextGaussian());
+        d.normalize();
+        rays[6*i] = -d.x * 300;
+        rays[6*i+1] = -d.y * 300;
+        rays[6*i+2] = -d.z * 300;
+        rays[6*i+3] = d.x;
+        rays[6*i+4] = d.y;
+        rays[6*i+5] = d.z;
+      }
+    }
+  }
+
+  @State(Scope.Thread)
+  public static class ThreadData {
+    public final Ray ray = new Ray();
+  }
+
+  @Fork(value = 1, warmups = 1)
+  @Warmup(iterations = 5, time = 1000, timeUnit = TimeUnit.MILLISECONDS)
+  @Measurement(iterations = 5, time = 1000, timeUnit = TimeUnit.MILLISECONDS)
+  @BenchmarkMode({Mode.Throughput})
+  @OperationsPerInvocation(RAY_COUNT)
+  @Benchmark
+  public int closestIntersection(BenchmarkData data, ThreadData thread) {
+    Ray ray = thread.ray;
+    int hits = 0;
+    for(int i = 0; i < RAY_COUNT; ++i) {
+      ray.o.set(data.rays[6*i], data.rays[6*i+1], data.rays[6*i+2]);
+      ray.d.set(data.rays[6*i+3], data.rays[6*i+4], data.rays[6*i+5]);
+      ray.t = Double.POSITIVE_INFINITY;
+      if(data.bvh.closestIntersection(ray)) {
+        ++hits;
+      }
+    }
+    return hits;
+  }
+
+  public static void main(String[] args) throws Exception {
+    org.openjdk.jmh.Main.main(args);
+  }
+}
@@ -0,0 +1,125 @@
+package dev.ferrand.chunky.bvh.benchmark;
+
+import dev.ferrand.chunky.bvh.implementation.PackedSahMaBVH;
+import dev.ferrand.chunky.bvh.implementation.RayPacket;
+import dev.ferrand.chunky.bvh.util.PackedTrianglesBuilder;
+import org.openjdk.jmh.annotations.*;
+import se.llbit.chunky.world.Material;
+import se.llbit.math.Ray;
+import se.llbit.math.Vector2;
+import se.llbit.math.Vector3;
+import se.llbit.math.primitive.TexturedTriangle;
+import se.llbit.util.TaskTracker;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rays per second of coherent camera rays traced one by one or by packets of 8x8 pixels.
+ */
+public class RayPacketBenchmark {
+
+  private static final int IMAGE_SIZE = 64;
+  private static final int RAY_COUNT = IMAGE_SIZE * IMAGE_SIZE;
+
+  @State(Scope.Benchmark)
+  public static class BenchmarkData {
+    public PackedSahMaBVH bvh;
+    public double[] directions; // 3 doubles per pixel, the pixels of each 8x8 block are consecutive
+
+    @Param({"1024", "65536", "1048576"})
+    public int n;
+
+    @Setup
+    public void setup() {
+      PackedTrianglesBuilder builder = new PackedTrianglesBuilder();
+      Random random = new Random(0);
+      Material material = BenchmarkScenes.opaqueMaterial();
+      Vector2 uv0 = new Vector2(0, 0);
+      Vector2 uv1 = new Vector2(1, 0);
+      Vector2 uv2 = new Vector2(0, 1);
+      for(int i = 0; i < n; ++i) {
+        Vector3 origin = new Vector3(
+          random.nextGaussian() * 100,
+          random.nextGaussian() * 100,
+          random.nextGaussian() * 100
+        );
+        Vector3 c2 = new Vector3(origin.x + random.nextDouble(), origin.y + random.nextDouble(), origin.z);
+        Vector3 c3 = new Vector3(origin.x, origin.y + random.nextDouble(), origin.z + random.nextDouble());
+        builder.addTriangle(new TexturedTriangle(origin, c2, c3, uv0, uv1, uv2, material));
+      }
+      bvh = new PackedSahMaBVH(builder.build(), TaskTracker.Task.NONE, true);
+
+      // Pinhole camera at (0, 0, -300) looking at the center of the scene
+      directions = new double[3 * RAY_COUNT];
+      int ray = 0;
+      for(int blockY = 0; blockY < IMAGE_SIZE; blockY += 8) {
+        for(int blockX = 0; blockX < IMAGE_SIZE; blockX += 8) {
+          for(int i = 0; i < 64; ++i) {
+            Vector3 d = new Vector3(
+              (blockX + i % 8 - IMAGE_SIZE / 2.0) / IMAGE_SIZE,
+              (blockY + i / 8 - IMAGE_SIZE / 2.0) / IMAGE_SIZE,
+              1);
+            d.normalize();
+            directions[3*ray] = d.x;
+            directions[3*ray+1] = d.y;
+            directions[3*ray+2] = d.z;
+            ++ray;
+          }
+        }
+      }
+    }
+  }
+
+  @State(Scope.Thread)
+  public static class ThreadData {
+    public final Ray ray = new Ray();
+    public final RayPacket packet = new RayPacket();
+  }
+
+  @Fork(value = 1, warmups = 1)
+  @Warmup(iterations = 5, time = 1000, timeUnit = TimeUnit.MILLISECONDS)
+  @Measurement(iterations = 5, time = 1000, timeUnit = TimeUnit.MILLISECONDS)
+  @BenchmarkMode({Mode.Throughput})
+  @OperationsPerInvocation(RAY_COUNT)
+  @Benchmark
+  public int singleRays(BenchmarkData data, ThreadData thread) {
+    Ray ray = thread.ray;
+    int hits = 0;
+    for(int i = 0; i < RAY_COUNT; ++i) {
+      ray.o.set(0, 0, -300);
+      ray.d.set(data.directions[3*i], data.directions[3*i+1], data.directions[3*i+2]);
+      ray.t = Double.POSITIVE_INFINITY;
+      if(data.bvh.closestIntersection(ray)) {
+        ++hits;
+      }
+    }
+    return hits;
+  }
+
+  @Fork(value = 1, warmups = 1)
+  @Warmup(iterations = 5, time = 1000, timeUnit = TimeUnit.MILLISECONDS)
+  @Measurement(iterations = 5, time = 1000, timeUnit = TimeUnit.MILLISECONDS)
+  @BenchmarkMode({Mode.Throughput})
+  @OperationsPerInvocation(RAY_COUNT)
+  @Benchmark
+  public int packets(BenchmarkData data, ThreadData thread) {
+    RayPacket packet = thread.packet;
+    int hits = 0;
+    for(int block = 0; block < RAY_COUNT; block += RayPacket.MAX_SIZE) {
+      for(int i = 0; i < RayPacket.MAX_SIZE; ++i) {
+        Ray ray = packet.rays[i];
+        int pixel = block + i;
+        ray.o.set(0, 0, -300);
+        ray.d.set(data.directions[3*pixel], data.directions[3*pixel+1], data.directions[3*pixel+2]);
+        ray.t = Double.POSITIVE_INFINITY;
+      }
+      hits += Long.bitCount(data.bvh.closestIntersection(packet));
+    }
+    return hits;
+  }
+
+  public static void main(String[] args) throws Exception {
+    org.openjdk.jmh.Main.main(args);
+  }
+}
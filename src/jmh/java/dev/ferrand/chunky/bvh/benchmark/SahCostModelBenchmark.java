@@ -0,0 +1,107 @@
+package dev.ferrand.chunky.bvh.benchmark;
+
+import dev.ferrand.chunky.bvh.implementation.PackedSahMaBVH;
+import dev.ferrand.chunky.bvh.implementation.SahCostModel;
+import dev.ferrand.chunky.bvh.util.PackedTrianglesBuilder;
+import org.openjdk.jmh.annotations.*;
+import se.llbit.chunky.world.Material;
+import se.llbit.math.Ray;
+import se.llbit.math.Vector2;
+import se.llbit.math.Vector3;
+import se.llbit.math.primitive.TexturedTriangle;
+import se.llbit.util.TaskTracker;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Ray traversal throughput of trees built with different cost models. The number of nodes and their memory
+ * are printed during the setup.
+ */
+public class SahCostModelBenchmark {
+
+  private static final int RAY_COUNT = 1024;
+
+  @State(Scope.Benchmark)
+  public static class BenchmarkData {
+    public PackedSahMaBVH bvh;
+    public double[] rays; // origin and direction, 6 doubles per ray
+
+    @Param({"65536", "1048576"})
+    public int n;
+
+    @Param({"1", "2", "4"})
+    public double traversalCost;
+
+    @Param({"1"})
+    public double intersectionCost;
+
+    @Param({"4", "8", "16"})
+    public int maxLeafSize;
+
+    @Setup
+    public void setup() {
+      PackedTrianglesBuilder builder = new PackedTrianglesBuilder();
+      Random random = new Random(0);
+      Material material = BenchmarkScenes.opaqueMaterial();
+      Vector2 uv0 = new Vector2(0, 0);
+      Vector2 uv1 = new Vector2(1, 0);
+      Vector2 uv2 = new Vector2(0, 1);
+      for(int i = 0; i < n; ++i) {
+        Vector3 origin = new Vector3(
+          random.nextGaussian() * 100,
+          random.nextGaussian() * 100,
+          random.nextGaussian() * 100
+        );
+        Vector3 c2 = new Vector3(origin.x + random.nextDouble(), origin.y + random.nextDouble(), origin.z);
+        Vector3 c3 = new Vector3(origin.x, origin.y + random.nextDouble(), origin.z + random.nextDouble());
+        builder.addTriangle(new TexturedTriangle(origin, c2, c3, uv0, uv1, uv2, material));
+      }
+      SahCostModel costModel = new SahCostModel(traversalCost, intersectionCost, maxLeafSize);
+      bvh = new PackedSahMaBVH(builder.build(), TaskTracker.Task.NONE, true, null, costModel);
+      long nodeBytes = bvh.nodeBytes();
+      System.out.printf("%s: %d nodes, %d bytes of nodes%n", costModel, nodeBytes / 32, nodeBytes);
+
+      rays = new double[6 * RAY_COUNT];
+      for(int i = 0; i < RAY_COUNT; ++i) {
+        Vector3 d = new Vector3(random.nextGaussian(), random.nextGaussian(), random.nextGaussian());
+        d.normalize();
+        rays[6*i] = -d.x * 300;
+        rays[6*i+1] = -d.y * 300;
+        rays[6*i+2] = -d.z * 300;
+        rays[6*i+3] = d.x;
+        rays[6*i+4] = d.y;
+        rays[6*i+5] = d.z;
+      }
+    }
+  }
+
+  @State(Scope.Thread)
+  public static class ThreadData {
+    public final Ray ray = new Ray();
+  }
+
+  @Fork(value = 1, warmups = 1)
+  @Warmup(iterations = 5, time = 1000, timeUnit = TimeUnit.MILLISECONDS)
+  @Measurement(iterations = 5, time = 1000, timeUnit = TimeUnit.MILLISECONDS)
+  @BenchmarkMode({Mode.Throughput})
+  @OperationsPerInvocation(RAY_COUNT)
+  @Benchmark
+  public int closestIntersection(BenchmarkData data, ThreadData thread) {
+    Ray ray = thread.ray;
+    int hits = 0;
+    for(int i = 0; i < RAY_COUNT; ++i) {
+      ray.o.set(data.rays[6*i], data.rays[6*i+1], data.rays[6*i+2]);
+      ray.d.set(data.rays[6*i+3], data.rays[6*i+4], data.rays[6*i+5]);
+      ray.t = Double.POSITIVE_INFINITY;
+      if(data.bvh.closestIntersection(ray)) {
+        ++hits;
+      }
+    }
+    return hits;
+  }
+
+  public static void main(String[] args) throws Exception {
+    org.openjdk.jmh.Main.main(args);
+  }
+}
@@ -0,0 +1,216 @@
+package dev.ferrand.chunky.bvh.benchmark;
+
+import dev.ferrand.chunky.bvh.implementation.PackedBinnedSahBVH;
+import dev.ferrand.chunky.bvh.implementation.PackedDepthFirstBVH;
+import dev.ferrand.chunky.bvh.implementation.PackedFastBVH;
+import dev.ferrand.chunky.bvh.implementation.PackedLbvhBVH;
+import dev.ferrand.chunky.bvh.implementation.PackedSahMaBVH;
+import dev.ferrand.chunky.bvh.implementation.PackedSbvhBVH;
+import dev.ferrand.chunky.bvh.util.TraversalStats;
+import org.openjdk.jmh.annotations.*;
+import se.llbit.chunky.entity.Entity;
+import se.llbit.math.Ray;
+import se.llbit.math.Vector3;
+import se.llbit.math.bvh.BVH;
+import se.llbit.util.TaskTracker;
+
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Build time and ray traversal throughput of the builders of the plugin on the scenes of {@link BenchmarkScenes},
+ * with the {@code SAH_MA} builder of Chunky as the baseline. The memory retained by each tree and the quality
+ * of the packed trees are printed during the setup of the traversal benchmarks.
+ */
+public class SceneBenchmark {
+
+  private static final int RAY_COUNT = 1024;
+
+  @State(Scope.Benchmark)
+  public static class SceneData {
+    public List<Entity> entities;
+
+    @Param({"SWARM", "CLUSTER", "THIN"})
+    public BenchmarkScenes.Shape shape;
+
+    @Param({"opaque", "alphaTested"})
+    public String material;
+
+    @Param({"2000", "50000"})
+    public int entityCount;
+
+    @Param({"SAH_MA", "PACKED_SAH_MA", "PACKED_SAH_MA_FAST", "PACKED_SAH_MA_DEPTH_FIRST", "PACKED_BINNED_SAH",
+        "PACKED_LBVH", "PACKED_SBVH"})
+    public String implementation;
+
+    @Setup
+    public void setup() {
+      PackedSahMaBVH.addImplementation();
+      PackedFastBVH.addImplementation();
+      PackedBinnedSahBVH.addImplementation();
+      PackedLbvhBVH.addImplementation();
+      PackedSbvhBVH.addImplementation();
+      PackedDepthFirstBVH.addImplementation();
+      entities = BenchmarkScenes.create(shape, entityCount,
+          material.equals("opaque") ? BenchmarkScenes.opaqueMaterial() : BenchmarkScenes.alphaTestedMaterial(), 0);
+    }
+
+    public BVH build() {
+      return BVH.Factory.create(implementation, entities, new Vector3(), TaskTracker.Task.NONE);
+    }
+  }
+
+  @State(Scope.Benchmark)
+  public static class TraversalData {
+    public BVH bvh;
+    public double[] rays; // origin and direction, 6 doubles per ray
+
+    @Setup
+    public void setup(SceneData scene) {
+      long heapBefore = usedHeap();
+      long directBefore = usedDirectMemory();
+      bvh = scene.build();
+      long heap = usedHeap() - heapBefore;
+      long direct = usedDirectMemory() - directBefore;
+      long triangles = 0;
+      for (Entity entity : scene.entities) {
+        triangles += entity.primitives(new Vector3()).size();
+      }
+      System.out.printf("%s: %d triangles, %d bytes of heap and %d bytes of direct memory retained, %.1f bytes per triangle%n",
+          scene.implementation, triangles, heap, direct, (heap + direct) / (double) triangles);
+      if (bvh instanceof PackedSahMaBVH) {
+        System.out.printf("%s: %s%n", scene.implementation, ((PackedSahMaBVH) bvh).quality());
+        System.out.printf("%s: %s%n", scene.implementation, ((PackedSahMaBVH) bvh).memoryFootprint());
+      }
+      TraversalStats.reset();
+
+      // Half of the rays start at a random point of the scene toward an entity, like the rays from the camera,
+      // the other half go in a random direction, like the rays bouncing off a surface
+      double minX = Double.POSITIVE_INFINITY, minY = Double.POSITIVE_INFINITY, minZ = Double.POSITIVE_INFINITY;
+      double maxX = Double.NEGATIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY, maxZ = Double.NEGATIVE_INFINITY;
+      for (Entity entity : scene.entities) {
+        minX = Math.min(minX, entity.position.x);
+        minY = Math.min(minY, entity.position.y);
+        minZ = Math.min(minZ, entity.position.z);
+        maxX = Math.max(maxX, entity.position.x);
+        maxY = Math.max(maxY, entity.position.y);
+        maxZ = Math.max(maxZ, entity.position.z);
+      }
+      Random random = new Random(0);
+      rays = new double[6 * RAY_COUNT];
+      for (int i = 0; i < RAY_COUNT; ++i) {
+        Vector3 o = new Vector3(
+            minX + random.nextDouble() * (maxX - minX),
+            minY + random.nextDouble() * (maxY - minY),
+            minZ + random.nextDouble() * (maxZ - minZ));
+        Vector3 d;
+        if (i % 2 == 0) {
+          Vector3 target = scene.entities.get(random.nextInt(scene.entities.size())).position;
+          d = new Vector3(target.x - o.x, target.y - o.y, target.z - o.z);
+        } else {
+          d = new Vector3(random.nextGaussian(), random.nextGaussian(), random.nextGaussian());
+        }
+        d.normalize();
+        rays[6*i] = o.x;
+        rays[6*i+1] = o.y;
+        rays[6*i+2] = o.z;
+        rays[6*i+3] = d.x;
+        rays[6*i+4] = d.y;
+        rays[6*i+5] = d.z;
+      }
+    }
+
+    /**
+     * Print the counters of the traversals with {@code -Dchunky.bvh.stats=true}, which slows them down,
+     * and release the tree.
+     */
+    @TearDown
+    public void tearDown() {
+      if (TraversalStats.ENABLED) {
+        System.out.println(TraversalStats.snapshot());
+      }
+      if (bvh instanceof PackedSahMaBVH) {
+        // Free the off-heap storage before the next trial measures its own
+        ((PackedSahMaBVH) bvh).release();
+      }
+    }
+
+    private static long usedHeap() {
+      Runtime runtime = Runtime.getRuntime();
+      for (int i = 0; i < 3; ++i) {
+        System.gc();
+      }
+      return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * Memory of the direct buffers, used for the nodes and triangles when {@code chunky.bvh.storage} is set.
+     */
+    private static long usedDirectMemory() {
+      long used = 0;
+      for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+        if (pool.getName().equals("direct")) {
+          used += pool.getMemoryUsed();
+        }
+      }
+      return used;
+    }
+  }
+
+  @State(Scope.Thread)
+  public static class ThreadData {
+    public final Ray ray = new Ray();
+  }
+
+  @Fork(value = 1, warmups = 1)
+  @Warmup(iterations = 3)
+  @Measurement(iterations = 5)
+  @BenchmarkMode({Mode.AverageTime})
+  @OutputTimeUnit(TimeUnit.MILLISECONDS)
+  @Benchmark
+  public BVH build(SceneData scene) {
+    return scene.build();
+  }
+
+  @Fork(value = 1, warmups = 1)
+  @Warmup(iterations = 5, time = 1000, timeUnit = TimeUnit.MILLISECONDS)
+  @Measurement(iterations = 5, time = 1000, timeUnit = TimeUnit.MILLISECONDS)
+  @BenchmarkMode({Mode.Throughput})
+  @OperationsPerInvocation(RAY_COUNT)
+  @Threads(1)
+  @Benchmark
+  public int closestIntersectionSingleThread(TraversalData data, ThreadData thread) {
+    return trace(data, thread.ray);
+  }
+
+  @Fork(value = 1, warmups = 1)
+  @Warmup(iterations = 5, time = 1000, timeUnit = TimeUnit.MILLISECONDS)
+  @Measurement(iterations = 5, time = 1000, timeUnit = TimeUnit.MILLISECONDS)
+  @BenchmarkMode({Mode.Throughput})
+  @OperationsPerInvocation(RAY_COUNT)
+  @Threads(Threads.MAX)
+  @Benchmark
+  public int closestIntersectionMultiThread(TraversalData data, ThreadData thread) {
+    return trace(data, thread.ray);
+  }
+
+  private static int trace(TraversalData data, Ray ray) {
+    int hits = 0;
+    for(int i = 0; i < RAY_COUNT; ++i) {
+      ray.o.set(data.rays[6*i], data.rays[6*i+1], data.rays[6*i+2]);
+      ray.d.set(data.rays[6*i+3], data.rays[6*i+4], data.rays[6*i+5]);
+      ray.t = Double.POSITIVE_INFINITY;
+      if(data.bvh.closestIntersection(ray)) {
+        ++hits;
+      }
+    }
+    return hits;
+  }
+
+  public static void main(String[] args) throws Exception {
+    org.openjdk.jmh.Main.main(args);
+  }
+}
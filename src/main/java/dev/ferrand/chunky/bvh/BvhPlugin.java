@@ -1,15 +1,39 @@
 package dev.ferrand.chunky.bvh;
 
+import dev.ferrand.chunky.bvh.implementation.InstancedBVH;
+import dev.ferrand.chunky.bvh.implementation.MemoryBudget;
+import dev.ferrand.chunky.bvh.implementation.PackedBinnedSahBVH;
+import dev.ferrand.chunky.bvh.implementation.PackedCompressedBVH;
+import dev.ferrand.chunky.bvh.implementation.PackedDepthFirstBVH;
+import dev.ferrand.chunky.bvh.implementation.PackedFastBVH;
+import dev.ferrand.chunky.bvh.implementation.PackedLbvhBVH;
 import dev.ferrand.chunky.bvh.implementation.PackedSahMaBVH;
+import dev.ferrand.chunky.bvh.implementation.PackedSbvhBVH;
+import dev.ferrand.chunky.bvh.implementation.PackedWideBVH;
+import dev.ferrand.chunky.bvh.util.TraversalStats;
 import se.llbit.chunky.Plugin;
 import se.llbit.chunky.main.Chunky;
 import se.llbit.chunky.main.ChunkyOptions;
 import se.llbit.chunky.ui.ChunkyFx;
+import se.llbit.log.Log;
 
 public class BvhPlugin implements Plugin {
   @Override
   public void attach(Chunky chunky) {
     PackedSahMaBVH.addImplementation();
+    PackedFastBVH.addImplementation();
+    PackedBinnedSahBVH.addImplementation();
+    PackedLbvhBVH.addImplementation();
+    PackedSbvhBVH.addImplementation();
+    PackedWideBVH.addImplementation();
+    PackedDepthFirstBVH.addImplementation();
+    PackedCompressedBVH.addImplementation();
+    InstancedBVH.addImplementation();
+    MemoryBudget.addImplementation();
+    if (TraversalStats.ENABLED) {
+      // The counters of a tree are logged when the next one is built, the ones of the last tree on exit
+      Runtime.getRuntime().addShutdownHook(new Thread(() -> Log.infof("Traversal of the last BVH: %s", TraversalStats.snapshot())));
+    }
   }
 
   public static void main(String[] args) {
@@ -0,0 +1,160 @@
+package dev.ferrand.chunky.bvh;
+
+import dev.ferrand.chunky.bvh.util.OffHeapAllocator;
+import se.llbit.log.Log;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Settings of the plugin. They are read from system properties so that they can be given
+ * as Java options in the Chunky launcher, for example {@code -Dchunky.bvh.indexedTriangles=true}.
+ */
+public final class BvhSettings {
+  private static final String PREFIX = "chunky.bvh.";
+
+  private BvhSettings() {
+  }
+
+  /**
+   * Store the triangles with deduplicated vertices and texture coordinates.
+   * This uses less memory for entity models where neighbouring triangles share their corners.
+   */
+  public static boolean indexedTriangles() {
+    return Boolean.getBoolean(PREFIX + "indexedTriangles");
+  }
+
+  /**
+   * Where the triangles and the nodes are stored: {@code heap} (default), {@code direct} for direct buffers
+   * or {@code mapped} for buffers mapped from temporary files in {@link #mappedDirectory()}.
+   *
+   * @return the allocator for the off-heap storage or null to store everything on the heap
+   */
+  public static OffHeapAllocator storage() {
+    String storage = System.getProperty(PREFIX + "storage", "heap");
+    switch (storage) {
+      case "heap":
+        return null;
+      case "direct":
+        return OffHeapAllocator.direct();
+      case "mapped":
+        return OffHeapAllocator.mapped(mappedDirectory());
+      default:
+        Log.warnf("Unknown BVH storage %s, using the heap", storage);
+        return null;
+    }
+  }
+
+  /**
+   * Directory for the files of the mapped storage, the temporary directory by default.
+   */
+  public static Path mappedDirectory() {
+    return Paths.get(System.getProperty(PREFIX + "mappedDirectory", System.getProperty("java.io.tmpdir")));
+  }
+
+  /**
+   * Directory where the built BVHs are cached, or null if the cache is disabled (default).
+   */
+  public static Path cacheDirectory() {
+    String directory = System.getProperty(PREFIX + "cacheDirectory");
+    return directory == null || directory.isEmpty() ? null : Paths.get(directory);
+  }
+
+  /**
+   * Track the triangles of each entity so that the ones of moving entities can be updated in place,
+   * see {@link dev.ferrand.chunky.bvh.implementation.PackedSahMaBVH#refit()}. Uses 8 more bytes per triangle.
+   */
+  public static boolean refit() {
+    return Boolean.getBoolean(PREFIX + "refit");
+  }
+
+  /**
+   * Collect the primitives of the entities on several threads (default). Can be turned off
+   * if the entities of another plugin can't give their primitives concurrently.
+   */
+  public static boolean parallelIngestion() {
+    return Boolean.parseBoolean(System.getProperty(PREFIX + "parallelIngestion", "true"));
+  }
+
+  /**
+   * Heap memory that {@code PACKED_SAH_MA_BUDGETED} may use, given in MiB.
+   *
+   * @return the budget in bytes, or -1 to use the free heap (default)
+   */
+  public static long memoryBudget() {
+    long budget = Long.getLong(PREFIX + "memoryBudget", -1);
+    return budget < 0 ? -1 : budget * 1024 * 1024;
+  }
+
+  /**
+   * Sort only the bounds and the index of each triangle while building the tree and move the triangles
+   * to their final order once at the end (default), instead of moving them at every level.
+   * Uses 4 more bytes per triangle during the build.
+   */
+  public static boolean indirectBuild() {
+    return Boolean.parseBoolean(System.getProperty(PREFIX + "indirectBuild", "true"));
+  }
+
+  /**
+   * Count the work done by the traversals and log the quality of the built trees,
+   * see {@link dev.ferrand.chunky.bvh.util.TraversalStats}. Read once at startup.
+   */
+  public static boolean stats() {
+    return Boolean.getBoolean(PREFIX + "stats");
+  }
+
+  /**
+   * Maximum number of triangles that the spatial splits of
+   * {@link dev.ferrand.chunky.bvh.implementation.PackedSbvhBVH} may duplicate, as a fraction of the number
+   * of triangles. 0.25 by default, so that the triangles take at most a quarter more memory.
+   */
+  public static double spatialSplitBudget() {
+    String budget = System.getProperty(PREFIX + "spatialSplitBudget", "0.25");
+    try {
+      return Math.max(0, Double.parseDouble(budget));
+    } catch (NumberFormatException e) {
+      Log.warnf("Invalid spatial split budget %s, using 0.25", budget);
+      return 0.25;
+    }
+  }
+
+  /**
+   * Cost of traversing a node relative to {@link #intersectionCost()} in the SAH cost model deciding whether
+   * a chunk of triangles is split or kept as a leaf. 2 by default, a node tests the bounds of its two children.
+   */
+  public static double traversalCost() {
+    return costSetting("traversalCost", 2);
+  }
+
+  /**
+   * Cost of intersecting a triangle in the SAH cost model. 1 by default.
+   */
+  public static double intersectionCost() {
+    return costSetting("intersectionCost", 1);
+  }
+
+  /**
+   * Number of triangles above which a chunk is always split, whatever the cost model says.
+   * 8 by default, between 1 and 64.
+   */
+  public static int maxLeafSize() {
+    return Math.max(1, Math.min(64, Integer.getInteger(PREFIX + "maxLeafSize", 8)));
+  }
+
+  private static double costSetting(String name, double defaultValue) {
+    String value = System.getProperty(PREFIX + name);
+    if (value == null) {
+      return defaultValue;
+    }
+    try {
+      double cost = Double.parseDouble(value);
+      if (cost >= 0 && cost < Double.POSITIVE_INFINITY) {
+        return cost;
+      }
+    } catch (NumberFormatException e) {
+      // Warned below
+    }
+    Log.warnf("Invalid %s %s, using %s", name, value, defaultValue);
+    return defaultValue;
+  }
+}
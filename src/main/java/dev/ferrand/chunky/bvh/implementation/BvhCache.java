@@ -0,0 +1,244 @@
+package dev.ferrand.chunky.bvh.implementation;
+
+import dev.ferrand.chunky.bvh.BvhSettings;
+import dev.ferrand.chunky.bvh.util.ChannelIO;
+import dev.ferrand.chunky.bvh.util.OffHeapAllocator;
+import dev.ferrand.chunky.bvh.util.PackedTriangles;
+import se.llbit.log.Log;
+import se.llbit.math.Vector3;
+import se.llbit.util.TaskTracker;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.function.Supplier;
+
+/**
+ * On-disk cache of built trees. An entry holds the triangles in their final order and the nodes,
+ * keyed by a hash of the triangles as collected from the entities. When the same scene is loaded again
+ * the collected triangles are overwritten with the cached ones instead of being sorted and split.
+ * The material palette is not stored: collecting the same entities gives the same palette.
+ */
+final class BvhCache {
+  private static final int MAGIC = 0x48564243; // "CBVH" in little endian
+  private static final int VERSION = 1;
+  private static final int HEADER_BYTES = 5 * 4;
+
+  private final Path directory;
+  private long triangleBytes; // Written by the triangles, counted while hashing them
+
+  private BvhCache(Path directory) {
+    this.directory = directory;
+  }
+
+  /**
+   * Returns the tree built by {@code build}, or the cached one if these triangles were built
+   * by the same builder before. Without a cache directory in the settings this just builds the tree.
+   *
+   * @param name          name of the builder, trees from different builders are cached separately
+   * @param nodeAllocator if not null, the loaded nodes are stored in buffers from this allocator
+   */
+  static PackedSahMaBVH getOrBuild(String name, PackedTriangles triangles, Vector3 origin, TaskTracker.Task task,
+                                   OffHeapAllocator nodeAllocator, Supplier<PackedSahMaBVH> build) {
+    Path directory = BvhSettings.cacheDirectory();
+    if (directory == null || triangles.hasPrimitives()) {
+      // Primitives that are not triangles are kept as objects and can't be saved
+      return build.get();
+    }
+    BvhCache cache = new BvhCache(directory);
+    String key;
+    try {
+      key = cache.key(name, triangles, origin);
+    } catch (IOException | NoSuchAlgorithmException e) {
+      Log.warn("Could not hash the triangles for the BVH cache", e);
+      return build.get();
+    }
+
+    PackedSahMaBVH bvh = cache.load(key, triangles, nodeAllocator);
+    if (bvh != null) {
+      task.update(1000, 1000);
+      return bvh;
+    }
+    bvh = build.get();
+    cache.store(key, bvh);
+    return bvh;
+  }
+
+  private String key(String name, PackedTriangles triangles, Vector3 origin) throws IOException, NoSuchAlgorithmException {
+    MessageDigest digest = MessageDigest.getInstance("SHA-256");
+    digest.update((VERSION + ":" + name + ":" + triangles.getClass().getName() + ":" + triangles.count
+        + ":" + origin.x + "," + origin.y + "," + origin.z
+        // Trees built with another cost model have other leaves
+        + ":" + SahCostModel.fromSettings()).getBytes(StandardCharsets.UTF_8));
+    triangleBytes = 0;
+    triangles.write(new WritableByteChannel() {
+      @Override
+      public int write(ByteBuffer src) {
+        int n = src.remaining();
+        digest.update(src);
+        triangleBytes += n;
+        return n;
+      }
+
+      @Override
+      public boolean isOpen() {
+        return true;
+      }
+
+      @Override
+      public void close() {
+      }
+    });
+    StringBuilder key = new StringBuilder();
+    for (byte b : digest.digest()) {
+      key.append(String.format("%02x", b));
+    }
+    return key.toString();
+  }
+
+  private Path file(String key) {
+    return directory.resolve(key + ".bvh");
+  }
+
+  /**
+   * Returns the cached tree, or null if there is none. A file that is truncated or whose tree doesn't match
+   * the triangles is deleted so that the tree is built and cached again. It is checked before the triangles
+   * are overwritten, as they are only valid with the cached tree once read.
+   */
+  private PackedSahMaBVH load(String key, PackedTriangles triangles, OffHeapAllocator nodeAllocator) {
+    Path file = file(key);
+    if (!Files.isRegularFile(file)) {
+      return null;
+    }
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+      ChannelIO.readFully(channel, header);
+      header.flip();
+      int magic = header.getInt();
+      int version = header.getInt();
+      int count = header.getInt();
+      int rootIndex = header.getInt();
+      int nodeCount = header.getInt();
+      if (magic != MAGIC || version != VERSION || count != triangles.count || nodeCount <= 0
+          || rootIndex < 0 || rootIndex >= nodeCount
+          || channel.size() != HEADER_BYTES + triangleBytes + 32L * nodeCount) {
+        Log.warnf("Deleting the invalid BVH cache file %s", file);
+        delete(file);
+        return null;
+      }
+
+      FloatBuffer bbox;
+      IntBuffer children;
+      ByteBuffer[] offHeapNodes = null;
+      if (nodeAllocator != null && 24L * nodeCount <= Integer.MAX_VALUE) {
+        offHeapNodes = new ByteBuffer[] {nodeAllocator.allocate(24 * nodeCount), nodeAllocator.allocate(8 * nodeCount)};
+        bbox = offHeapNodes[0].asFloatBuffer();
+        children = offHeapNodes[1].asIntBuffer();
+      } else {
+        bbox = FloatBuffer.allocate(6 * nodeCount);
+        children = IntBuffer.allocate(2 * nodeCount);
+      }
+      boolean loaded = false;
+      try {
+        // The nodes are stored after the triangles
+        channel.position(HEADER_BYTES + triangleBytes);
+        ChannelIO.readFloats(channel, bbox);
+        ChannelIO.readInts(channel, children);
+        if (!validNodes(children, triangles.count)) {
+          Log.warnf("Deleting the invalid BVH cache file %s", file);
+          delete(file);
+          return null;
+        }
+        channel.position(HEADER_BYTES);
+        try {
+          triangles.read(channel);
+        } catch (IOException e) {
+          // The triangles may be partially overwritten, they can't be used to build the tree again
+          delete(file);
+          throw new UncheckedIOException("Could not read the BVH cache file " + file, e);
+        }
+        Log.infof("Loaded the BVH from the cache file %s", file);
+        loaded = true;
+        return new PackedSahMaBVH(triangles, bbox, children, rootIndex, offHeapNodes);
+      } finally {
+        if (!loaded && offHeapNodes != null) {
+          for (ByteBuffer buffer : offHeapNodes) {
+            OffHeapAllocator.release(buffer);
+          }
+        }
+      }
+    } catch (IOException e) {
+      Log.warn("Could not read the BVH cache file " + file + ", building the BVH again", e);
+      delete(file);
+      return null;
+    }
+  }
+
+  /**
+   * Check that the children of inner nodes come before their parent, so that the tree has no cycle,
+   * and that the leaves are within the triangles.
+   */
+  private static boolean validNodes(IntBuffer children, int count) {
+    for (int node = 0; node < children.capacity() / 2; ++node) {
+      int first = children.get(2*node);
+      int second = children.get(2*node+1);
+      if (first >= 0) {
+        if (first >= node || second < 0 || second >= node) {
+          return false;
+        }
+      } else if (-(long) first - 1 + second > count || second < 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static void delete(Path file) {
+    try {
+      Files.deleteIfExists(file);
+    } catch (IOException e) {
+      Log.warn("Could not delete the BVH cache file " + file, e);
+    }
+  }
+
+  private void store(String key, PackedSahMaBVH bvh) {
+    try {
+      Files.createDirectories(directory);
+      Path temp = Files.createTempFile(directory, key, ".tmp");
+      try {
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+          ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+          header.putInt(MAGIC).putInt(VERSION).putInt(bvh.triangles.count)
+              .putInt(bvh.rootIndex).putInt(bvh.children.capacity() / 2);
+          header.flip();
+          ChannelIO.writeFully(channel, header);
+          bvh.triangles.write(channel);
+          ChannelIO.writeFloats(channel, bvh.bbox.duplicate().clear());
+          ChannelIO.writeInts(channel, bvh.children.duplicate().clear());
+        }
+        try {
+          Files.move(temp, file(key), StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+          Files.move(temp, file(key), StandardCopyOption.REPLACE_EXISTING);
+        }
+      } finally {
+        Files.deleteIfExists(temp);
+      }
+    } catch (IOException e) {
+      Log.warn("Could not write the BVH cache in " + directory, e);
+    }
+  }
+}
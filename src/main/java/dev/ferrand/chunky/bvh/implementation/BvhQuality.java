@@ -0,0 +1,33 @@
+package dev.ferrand.chunky.bvh.implementation;
+
+/**
+ * Metrics of the quality of a built tree, see {@link PackedSahMaBVH#quality()}.
+ *
+ * @param nodeCount        number of nodes, branches and leaves
+ * @param sahCost          expected cost of a ray going through the root with the cost model of the tree:
+ *                         the traversal cost of the branches and the intersection cost of the triangles of the leaves,
+ *                         each weighted by its surface area relative to the one of the root
+ * @param maxDepth         number of nodes on the longest path from the root to a leaf
+ * @param averageLeafDepth average number of nodes from the root to a leaf
+ * @param leafSizes        number of leaves of each size, indexed by the number of triangles
+ * @param overlap          sum of the surface areas of the intersections of the bounds of sibling nodes,
+ *                         relative to the one of the root. Rays in an overlap go down both children.
+ */
+public record BvhQuality(int nodeCount, double sahCost, int maxDepth, double averageLeafDepth, long[] leafSizes,
+                         double overlap) {
+
+  @Override
+  public String toString() {
+    StringBuilder histogram = new StringBuilder();
+    for (int size = 0; size < leafSizes.length; ++size) {
+      if (leafSizes[size] > 0) {
+        if (histogram.length() > 0) {
+          histogram.append(", ");
+        }
+        histogram.append(size).append(": ").append(leafSizes[size]);
+      }
+    }
+    return String.format("%d nodes, SAH cost %.2f, depth %d max %.1f average, overlap %.3f, leaf sizes {%s}",
+        nodeCount, sahCost, maxDepth, averageLeafDepth, overlap, histogram);
+  }
+}
@@ -0,0 +1,468 @@
+package dev.ferrand.chunky.bvh.implementation;
+
+import dev.ferrand.chunky.bvh.util.PackedTriangles;
+import dev.ferrand.chunky.bvh.util.PackedTrianglesBuilder;
+import it.unimi.dsi.fastutil.floats.FloatArrayList;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntArrays;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import se.llbit.chunky.entity.Entity;
+import se.llbit.math.Ray;
+import se.llbit.math.Vector3;
+import se.llbit.math.bvh.BVH;
+import se.llbit.math.primitive.Primitive;
+import se.llbit.math.primitive.TexturedTriangle;
+import se.llbit.util.TaskTracker;
+
+import java.util.Collection;
+import java.util.List;
+
+import static dev.ferrand.chunky.bvh.implementation.PackedSahMaBVH.quickAabbIntersect;
+
+/**
+ * Two-level BVH. Entities with the same triangles up to a rotation and a translation (armor stands, paintings,
+ * mob heads...) share a bottom-level {@link PackedSahMaBVH} built once, and a top-level tree holds their instances.
+ * Rays are moved to the space of the model when they enter an instance.
+ * The entities without copies are packed together in a single bottom-level tree.
+ */
+public class InstancedBVH implements BVH {
+
+  /**
+   * Models with fewer triangles are cheaper to pack with the unique entities than to instance.
+   */
+  public static final int MIN_INSTANCE_TRIANGLES = 4;
+
+  private static final double EPSILON = 1e-5;
+
+  public static void addImplementation() {
+    Factory.addBVHBuilder(new Factory.BVHBuilder() {
+      @Override
+      public BVH create(Collection<Entity> entities, Vector3 origin, TaskTracker.Task task) {
+        return build(entities, origin, task);
+      }
+
+      @Override
+      public String getName() {
+        return "PACKED_SAH_MA_INSTANCED";
+      }
+
+      @Override
+      public String getDescription() {
+        return "PACKED_SAH_MA where identical entity models are only stored once";
+      }
+    });
+  }
+
+  /**
+   * Triangles of an entity, the first one to be found with this geometry.
+   * They are only kept until the model is packed.
+   */
+  private static class Model {
+    final TexturedTriangle[] triangles;
+    final double[] frame; // Rotation (3x3 row major) and translation of the reference triangle
+    final ObjectArrayList<double[]> instances = new ObjectArrayList<>(); // Transforms from this entity to the copies
+    PackedSahMaBVH bvh;
+
+    Model(TexturedTriangle[] triangles, double[] frame) {
+      this.triangles = triangles;
+      this.frame = frame;
+    }
+  }
+
+  private final PackedSahMaBVH[] models;
+  private final int[] instanceModels; // Index of the model of each instance
+  private final double[] transforms; // 12 per instance: rotation (3x3 row major) then translation, model to world
+  private final float[] bbox; // 6 floats per top-level node
+  private final int[] children; // 2 ints per top-level node, leaves reference the instances like PackedSahMaBVH
+  private final int rootIndex;
+  private final ThreadLocal<int[]> traversalStack;
+
+  /**
+   * Group the entities by model and build the trees.
+   */
+  static InstancedBVH build(Collection<Entity> entities, Vector3 origin, TaskTracker.Task task) {
+    task.update(1000, 0);
+    Long2ObjectOpenHashMap<List<Model>> modelsBySignature = new Long2ObjectOpenHashMap<>();
+    ObjectArrayList<Model> models = new ObjectArrayList<>();
+    // The entities with primitives that are not triangles are never instanced
+    PackedTrianglesBuilder uniqueBuilder = new PackedTrianglesBuilder();
+    double entityScaler = 500.0 / entities.size();
+    int done = 0;
+    for (Entity entity : entities) {
+      Collection<Primitive> primitives = entity.primitives(origin);
+      done++;
+      task.updateInterval((int) (done * entityScaler), 1);
+      if (primitives.isEmpty()) {
+        continue;
+      }
+      if (!primitives.stream().allMatch(primitive -> primitive instanceof TexturedTriangle)) {
+        for (Primitive primitive : primitives) {
+          uniqueBuilder.addPrimitive(primitive);
+        }
+        continue;
+      }
+      TexturedTriangle[] triangles = primitives.toArray(new TexturedTriangle[0]);
+
+      double[] frame = frame(triangles);
+      if (frame == null || triangles.length < MIN_INSTANCE_TRIANGLES) {
+        // Never instanced, the triangles don't need to be kept until all the entities are grouped
+        for (TexturedTriangle triangle : triangles) {
+          uniqueBuilder.addTriangle(triangle);
+        }
+        continue;
+      }
+      List<Model> candidates = modelsBySignature.computeIfAbsent(signature(triangles), k -> new ObjectArrayList<>());
+      boolean found = false;
+      for (Model model : candidates) {
+        double[] transform = match(model, triangles, frame);
+        if (transform != null) {
+          model.instances.add(transform);
+          found = true;
+          break;
+        }
+      }
+      if (!found) {
+        Model model = new Model(triangles, frame);
+        model.instances.add(new double[] {1, 0, 0, 0, 1, 0, 0, 0, 1, 0, 0, 0});
+        candidates.add(model);
+        models.add(model);
+      }
+    }
+
+    // The models without copies are packed together. Each model is dropped with its triangles once packed.
+    modelsBySignature = null;
+    ObjectArrayList<PackedSahMaBVH> bvhs = new ObjectArrayList<>();
+    ObjectArrayList<double[]> instanceTransforms = new ObjectArrayList<>();
+    IntArrayList instanceModels = new IntArrayList();
+    int modelCount = models.size();
+    for (int modelIndex = 0; modelIndex < modelCount; ++modelIndex) {
+      Model model = models.set(modelIndex, null);
+      if (model.instances.size() == 1) {
+        for (TexturedTriangle triangle : model.triangles) {
+          uniqueBuilder.addTriangle(triangle);
+        }
+      } else {
+        PackedTrianglesBuilder builder = new PackedTrianglesBuilder();
+        for (TexturedTriangle triangle : model.triangles) {
+          builder.addTriangle(triangle);
+        }
+        model.bvh = new PackedSahMaBVH(builder.build(), TaskTracker.Task.NONE, true);
+        for (double[] transform : model.instances) {
+          instanceTransforms.add(transform);
+          instanceModels.add(bvhs.size());
+        }
+        bvhs.add(model.bvh);
+      }
+      task.updateInterval(500 + (int) ((modelIndex + 1) * 500.0 / modelCount), 1);
+    }
+    PackedTriangles unique = uniqueBuilder.build();
+    if (unique.count > 0) {
+      instanceTransforms.add(new double[] {1, 0, 0, 0, 1, 0, 0, 0, 1, 0, 0, 0});
+      instanceModels.add(bvhs.size());
+      bvhs.add(new PackedSahMaBVH(unique, TaskTracker.Task.NONE, true));
+    }
+    return new InstancedBVH(bvhs.toArray(new PackedSahMaBVH[0]), instanceModels.toIntArray(),
+        instanceTransforms.toArray(new double[0][]));
+  }
+
+  /**
+   * Hash of what a transform can't change: the materials, the texture coordinates and the shape of the triangles.
+   */
+  private static long signature(TexturedTriangle[] triangles) {
+    long hash = triangles.length;
+    for (TexturedTriangle triangle : triangles) {
+      hash = hash * 31 + System.identityHashCode(triangle.material);
+      hash = hash * 31 + (triangle.doubleSided ? 1 : 0);
+      hash = hash * 31 + Float.floatToIntBits((float) triangle.t1u);
+      hash = hash * 31 + Float.floatToIntBits((float) triangle.t1v);
+      hash = hash * 31 + Float.floatToIntBits((float) triangle.t2u);
+      hash = hash * 31 + Float.floatToIntBits((float) triangle.t2v);
+      hash = hash * 31 + Float.floatToIntBits((float) triangle.t3u);
+      hash = hash * 31 + Float.floatToIntBits((float) triangle.t3v);
+      hash = hash * 31 + Math.round(triangle.e1.lengthSquared() * 1024);
+      hash = hash * 31 + Math.round(triangle.e2.lengthSquared() * 1024);
+      hash = hash * 31 + Math.round(triangle.e1.dot(triangle.e2) * 1024);
+    }
+    return hash;
+  }
+
+  /**
+   * Orthonormal frame of the first triangle that is not degenerate, or null if they all are.
+   */
+  private static double[] frame(TexturedTriangle[] triangles) {
+    for (TexturedTriangle triangle : triangles) {
+      double e1Length = triangle.e1.length();
+      double nx = triangle.e1.y * triangle.e2.z - triangle.e1.z * triangle.e2.y;
+      double ny = triangle.e1.z * triangle.e2.x - triangle.e1.x * triangle.e2.z;
+      double nz = triangle.e1.x * triangle.e2.y - triangle.e1.y * triangle.e2.x;
+      double nLength = Math.sqrt(nx*nx + ny*ny + nz*nz);
+      if (e1Length < EPSILON || nLength < EPSILON * e1Length) {
+        continue;
+      }
+      double xx = triangle.e1.x / e1Length, xy = triangle.e1.y / e1Length, xz = triangle.e1.z / e1Length;
+      double zx = nx / nLength, zy = ny / nLength, zz = nz / nLength;
+      double yx = zy * xz - zz * xy, yy = zz * xx - zx * xz, yz = zx * xy - zy * xx;
+      // Columns are the axes of the frame
+      return new double[] {
+          xx, yx, zx,
+          xy, yy, zy,
+          xz, yz, zz,
+          triangle.o.x, triangle.o.y, triangle.o.z,
+      };
+    }
+    return null;
+  }
+
+  /**
+   * Returns the transform from the model to the triangles if they are a copy of it, else null.
+   */
+  private static double[] match(Model model, TexturedTriangle[] triangles, double[] frame) {
+    if (model.frame == null || model.triangles.length != triangles.length) {
+      return null;
+    }
+    // rotation = frame * modelFrame^T, translation = o - rotation * modelO
+    double[] transform = new double[12];
+    double[] a = frame;
+    double[] b = model.frame;
+    for (int r = 0; r < 3; ++r) {
+      for (int c = 0; c < 3; ++c) {
+        transform[3*r+c] = a[3*r] * b[3*c] + a[3*r+1] * b[3*c+1] + a[3*r+2] * b[3*c+2];
+      }
+    }
+    for (int r = 0; r < 3; ++r) {
+      transform[9+r] = a[9+r] - (transform[3*r] * b[9] + transform[3*r+1] * b[10] + transform[3*r+2] * b[11]);
+    }
+
+    for (int i = 0; i < triangles.length; ++i) {
+      TexturedTriangle expected = model.triangles[i];
+      TexturedTriangle actual = triangles[i];
+      if (expected.material != actual.material || expected.doubleSided != actual.doubleSided
+          || expected.t1u != actual.t1u || expected.t1v != actual.t1v
+          || expected.t2u != actual.t2u || expected.t2v != actual.t2v
+          || expected.t3u != actual.t3u || expected.t3v != actual.t3v
+          || !matches(transform, expected.o, actual.o, true)
+          || !matches(transform, expected.e1, actual.e1, false)
+          || !matches(transform, expected.e2, actual.e2, false)) {
+        return null;
+      }
+    }
+    return transform;
+  }
+
+  private static boolean matches(double[] transform, Vector3 expected, Vector3 actual, boolean isPoint) {
+    for (int r = 0; r < 3; ++r) {
+      double value = transform[3*r] * expected.x + transform[3*r+1] * expected.y + transform[3*r+2] * expected.z;
+      if (isPoint) {
+        value += transform[9+r];
+      }
+      double target = r == 0 ? actual.x : r == 1 ? actual.y : actual.z;
+      if (Math.abs(value - target) > EPSILON) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private InstancedBVH(PackedSahMaBVH[] models, int[] instanceModels, double[][] instanceTransforms) {
+    this.models = models;
+    int instanceCount = instanceModels.length;
+
+    // World space bounds of the instances
+    float[] instanceBounds = new float[6 * instanceCount];
+    for (int instance = 0; instance < instanceCount; ++instance) {
+      PackedSahMaBVH model = models[instanceModels[instance]];
+      double[] transform = instanceTransforms[instance];
+      int root = 6 * model.rootIndex;
+      for (int i = 0; i < 6; i += 2) {
+        instanceBounds[6*instance+i] = Float.POSITIVE_INFINITY;
+        instanceBounds[6*instance+i+1] = Float.NEGATIVE_INFINITY;
+      }
+      for (int corner = 0; corner < 8; ++corner) {
+        double x = model.bbox.get(root + (corner & 1));
+        double y = model.bbox.get(root + 2 + ((corner >> 1) & 1));
+        double z = model.bbox.get(root + 4 + ((corner >> 2) & 1));
+        for (int r = 0; r < 3; ++r) {
+          double value = transform[3*r] * x + transform[3*r+1] * y + transform[3*r+2] * z + transform[9+r];
+          // Widen by the rounding of the rotation
+          instanceBounds[6*instance+2*r] = Math.min(instanceBounds[6*instance+2*r], Math.nextDown((float) value));
+          instanceBounds[6*instance+2*r+1] = Math.max(instanceBounds[6*instance+2*r+1], Math.nextUp((float) value));
+        }
+      }
+    }
+
+    // Top-level tree, the instances are sorted so that each leaf references a range of them
+    int[] order = new int[instanceCount];
+    for (int i = 0; i < instanceCount; ++i) {
+      order[i] = i;
+    }
+    FloatArrayList bboxList = new FloatArrayList();
+    IntArrayList childrenList = new IntArrayList();
+    int[] depth = new int[1];
+    rootIndex = construct(order, 0, instanceCount, instanceBounds, bboxList, childrenList, 1, depth);
+    bboxList.trim();
+    childrenList.trim();
+    bbox = bboxList.elements();
+    children = childrenList.elements();
+
+    this.instanceModels = new int[instanceCount];
+    this.transforms = new double[12 * instanceCount];
+    for (int i = 0; i < instanceCount; ++i) {
+      this.instanceModels[i] = instanceModels[order[i]];
+      System.arraycopy(instanceTransforms[order[i]], 0, transforms, 12*i, 12);
+    }
+    int stackSize = depth[0];
+    traversalStack = ThreadLocal.withInitial(() -> new int[stackSize]);
+  }
+
+  /**
+   * Median split of the instances along the longest axis of their centers.
+   */
+  private static int construct(int[] order, int from, int to, float[] instanceBounds,
+                               FloatArrayList bbox, IntArrayList children, int level, int[] depth) {
+    depth[0] = Math.max(depth[0], level);
+    float[] bounds = {Float.POSITIVE_INFINITY, Float.NEGATIVE_INFINITY, Float.POSITIVE_INFINITY,
+        Float.NEGATIVE_INFINITY, Float.POSITIVE_INFINITY, Float.NEGATIVE_INFINITY};
+    float[] centers = {Float.POSITIVE_INFINITY, Float.NEGATIVE_INFINITY, Float.POSITIVE_INFINITY,
+        Float.NEGATIVE_INFINITY, Float.POSITIVE_INFINITY, Float.NEGATIVE_INFINITY};
+    for (int i = from; i < to; ++i) {
+      for (int j = 0; j < 6; j += 2) {
+        float min = instanceBounds[6*order[i]+j];
+        float max = instanceBounds[6*order[i]+j+1];
+        bounds[j] = Math.min(bounds[j], min);
+        bounds[j+1] = Math.max(bounds[j+1], max);
+        centers[j] = Math.min(centers[j], min + max);
+        centers[j+1] = Math.max(centers[j+1], min + max);
+      }
+    }
+
+    if (to - from <= 2) {
+      int leafIndex = children.size() / 2;
+      children.add(-from-1);
+      children.add(to - from);
+      bbox.addElements(bbox.size(), bounds, 0, 6);
+      return leafIndex;
+    }
+
+    int axis = 0;
+    for (int j = 2; j < 6; j += 2) {
+      if (centers[j+1] - centers[j] > centers[2*axis+1] - centers[2*axis]) {
+        axis = j / 2;
+      }
+    }
+    int offset = 2 * axis;
+    IntArrays.quickSort(order, from, to, (a, b) -> Float.compare(
+        instanceBounds[6*a+offset] + instanceBounds[6*a+offset+1],
+        instanceBounds[6*b+offset] + instanceBounds[6*b+offset+1]));
+    int split = (from + to) >>> 1;
+    int left = construct(order, from, split, instanceBounds, bbox, children, level + 1, depth);
+    int right = construct(order, split, to, instanceBounds, bbox, children, level + 1, depth);
+
+    int nodeIndex = children.size() / 2;
+    children.add(left);
+    children.add(right);
+    bbox.addElements(bbox.size(), bounds, 0, 6);
+    return nodeIndex;
+  }
+
+  @Override
+  public boolean closestIntersection(Ray ray) {
+    boolean hit = false;
+    int currentNode = rootIndex;
+    int[] nodesToVisit = traversalStack.get();
+    int stackSize = 0;
+
+    double rx = 1 / ray.d.x;
+    double ry = 1 / ray.d.y;
+    double rz = 1 / ray.d.z;
+
+    while (true) {
+      int childIndex = children[currentNode*2];
+      if (childIndex < 0) {
+        // Is leaf
+        int instanceFrom = -childIndex - 1;
+        int instanceTo = instanceFrom + children[currentNode*2+1];
+        for (int instance = instanceFrom; instance < instanceTo; ++instance) {
+          hit = intersectInstance(instance, ray) | hit;
+        }
+
+        if (stackSize == 0) break;
+        currentNode = nodesToVisit[--stackSize];
+      } else {
+        // Is branch, find closest node
+        int bbBaseIndex = 6*childIndex;
+        double t1 = quickAabbIntersect(ray,
+            bbox[bbBaseIndex], bbox[bbBaseIndex+1],
+            bbox[bbBaseIndex+2], bbox[bbBaseIndex+3],
+            bbox[bbBaseIndex+4], bbox[bbBaseIndex+5],
+            rx, ry, rz);
+        int rightChildIndex = children[currentNode*2+1];
+        bbBaseIndex = 6*rightChildIndex;
+        double t2 = quickAabbIntersect(ray,
+            bbox[bbBaseIndex], bbox[bbBaseIndex+1],
+            bbox[bbBaseIndex+2], bbox[bbBaseIndex+3],
+            bbox[bbBaseIndex+4], bbox[bbBaseIndex+5],
+            rx, ry, rz);
+
+        if (t1 > ray.t | t1 == -1) {
+          if (t2 > ray.t | t2 == -1) {
+            if (stackSize == 0) break;
+            currentNode = nodesToVisit[--stackSize];
+          } else {
+            currentNode = rightChildIndex;
+          }
+        } else if (t2 > ray.t | t2 == -1) {
+          currentNode = childIndex;
+        } else if (t1 < t2) {
+          nodesToVisit[stackSize++] = rightChildIndex;
+          currentNode = childIndex;
+        } else {
+          nodesToVisit[stackSize++] = childIndex;
+          currentNode = rightChildIndex;
+        }
+      }
+    }
+
+    return hit;
+  }
+
+  /**
+   * Intersect the model of an instance with the ray moved to the space of the model.
+   * The transform is rigid so the distance along the ray is the same in both spaces.
+   */
+  private boolean intersectInstance(int instance, Ray ray) {
+    int base = 12 * instance;
+    double ox = ray.o.x;
+    double oy = ray.o.y;
+    double oz = ray.o.z;
+    double dx = ray.d.x;
+    double dy = ray.d.y;
+    double dz = ray.d.z;
+
+    // Inverse transform: rotation^T * (p - translation)
+    double px = ox - transforms[base+9];
+    double py = oy - transforms[base+10];
+    double pz = oz - transforms[base+11];
+    ray.o.set(
+        transforms[base] * px + transforms[base+3] * py + transforms[base+6] * pz,
+        transforms[base+1] * px + transforms[base+4] * py + transforms[base+7] * pz,
+        transforms[base+2] * px + transforms[base+5] * py + transforms[base+8] * pz);
+    ray.d.set(
+        transforms[base] * dx + transforms[base+3] * dy + transforms[base+6] * dz,
+        transforms[base+1] * dx + transforms[base+4] * dy + transforms[base+7] * dz,
+        transforms[base+2] * dx + transforms[base+5] * dy + transforms[base+8] * dz);
+
+    boolean hit = models[instanceModels[instance]].closestIntersection(ray);
+
+    ray.o.set(ox, oy, oz);
+    ray.d.set(dx, dy, dz);
+    if (hit) {
+      Vector3 n = ray.getNormal();
+      ray.setNormal(
+          transforms[base] * n.x + transforms[base+1] * n.y + transforms[base+2] * n.z,
+          transforms[base+3] * n.x + transforms[base+4] * n.y + transforms[base+5] * n.z,
+          transforms[base+6] * n.x + transforms[base+7] * n.y + transforms[base+8] * n.z);
+    }
+    return hit;
+  }
+}
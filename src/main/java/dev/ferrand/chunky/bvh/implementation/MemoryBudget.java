@@ -0,0 +1,206 @@
+package dev.ferrand.chunky.bvh.implementation;
+
+import com.sun.management.HotSpotDiagnosticMXBean;
+import dev.ferrand.chunky.bvh.BvhSettings;
+import dev.ferrand.chunky.bvh.util.OffHeapAllocator;
+import dev.ferrand.chunky.bvh.util.PackedTriangles;
+import se.llbit.chunky.entity.Entity;
+import se.llbit.log.Log;
+import se.llbit.math.Vector3;
+import se.llbit.math.bvh.BVH;
+import se.llbit.util.TaskTracker;
+
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.util.Collection;
+
+/**
+ * Builder of {@link PackedSahMaBVH} choosing where and how the triangles and the nodes are stored before collecting them,
+ * from the number of triangles estimated on a sample of the entities. The fastest variant whose estimated memory
+ * fits in the budget is used, so that a large scene is moved off the heap instead of running out of it
+ * halfway through the build.
+ */
+public final class MemoryBudget {
+
+  /**
+   * Entities whose primitives are counted to estimate the number of triangles.
+   */
+  private static final int SAMPLED_ENTITIES = 64;
+
+  /**
+   * The storages and node formats from the fastest to the one using the least heap. The estimates count one node
+   * per triangle, twice as many as the cost model usually gives, and the node lists grown by half before their
+   * final copy.
+   */
+  enum Variant {
+    // 64 bytes per triangle, 32 per node, and 64 per precomputed triangle once the node lists are gone
+    HEAP_FAST("on the heap with precomputed triangles", false, false, 64 + 32 + 64, 0),
+    // 64 bytes per triangle, 48 of node lists and 32 of nodes, the bounds cached for the build are dropped before
+    // the nodes are allocated
+    HEAP("on the heap", false, false, 64 + 48 + 32, 0),
+    // About 48 bytes per triangle with the vertices shared by neighbouring triangles, and their hash tables
+    // while collecting them
+    HEAP_INDEXED("on the heap with indexed triangles", true, false, 48 + 48 + 32, 0),
+    // The binary nodes are built in mapped files, so the cached bounds stay on the heap with the node lists.
+    // Barely less during the build, but about 11 bytes per node instead of 32 once compressed.
+    HEAP_COMPRESSED("on the heap with indexed triangles and compressed nodes", true, true, 48 + 28 + 48, 0),
+    // The material ids stay on the heap with the node lists, and the bounds and order of the triangles
+    // cached for the build
+    DIRECT("in direct buffers", false, false, 4 + 28 + 48, 60 + 32),
+    // Same, in files mapped in memory which the OS pages out as needed
+    MAPPED("in mapped files", false, false, 4 + 28 + 48, 0);
+
+    final String description;
+    final boolean indexed;
+    final boolean compressed;
+    final long heapBytesPerTriangle; // Peak during the build
+    final long directBytesPerTriangle;
+
+    Variant(String description, boolean indexed, boolean compressed, long heapBytesPerTriangle,
+            long directBytesPerTriangle) {
+      this.description = description;
+      this.indexed = indexed;
+      this.compressed = compressed;
+      this.heapBytesPerTriangle = heapBytesPerTriangle;
+      this.directBytesPerTriangle = directBytesPerTriangle;
+    }
+
+    OffHeapAllocator triangleAllocator() {
+      switch (this) {
+        case DIRECT:
+          return OffHeapAllocator.direct();
+        case MAPPED:
+          return OffHeapAllocator.mapped(BvhSettings.mappedDirectory());
+        default:
+          return null;
+      }
+    }
+
+    OffHeapAllocator nodeAllocator() {
+      // The binary nodes of the compressed tree are only kept until they are compressed
+      return this == HEAP_COMPRESSED ? OffHeapAllocator.mapped(BvhSettings.mappedDirectory()) : triangleAllocator();
+    }
+  }
+
+  private MemoryBudget() {
+  }
+
+  public static void addImplementation() {
+    BVH.Factory.addBVHBuilder(new BVH.Factory.BVHBuilder() {
+      @Override
+      public BVH create(Collection<Entity> entities, Vector3 origin, TaskTracker.Task task) {
+        long triangleEstimate = estimateTriangles(entities, origin);
+        Variant variant = choose(triangleEstimate, heapBudget(), directBudget());
+        Log.infof("About %d triangles, storing the BVH %s", triangleEstimate, variant.description);
+
+        OffHeapAllocator allocator = variant.triangleAllocator();
+        OffHeapAllocator nodeAllocator = variant.nodeAllocator();
+        PackedTriangles triangles = PackedSahMaBVH.packTriangles(entities, origin, task, variant.indexed, allocator);
+        PackedSahMaBVH binary = PackedSahMaBVH.logStats(getName(),
+            BvhCache.getOrBuild("PACKED_SAH_MA", triangles, origin, task, nodeAllocator,
+                () -> new PackedSahMaBVH(triangles, task, true, nodeAllocator)));
+        if (variant == Variant.HEAP_FAST) {
+          PackedFastBVH bvh = new PackedFastBVH(binary);
+          Log.infof("%s: %s", getName(), bvh.memoryFootprint());
+          return bvh;
+        }
+        Log.infof("%s: %s", getName(), binary.memoryFootprint());
+        if (variant.compressed) {
+          PackedCompressedBVH bvh = new PackedCompressedBVH(binary, 8);
+          // The binary nodes in mapped files were only needed to compress them
+          binary.releaseNodes();
+          Log.infof("%s: nodes compressed to %.1f MiB", getName(), bvh.nodeBytes() / (1024.0 * 1024.0));
+          return bvh;
+        }
+        return binary;
+      }
+
+      @Override
+      public String getName() {
+        return "PACKED_SAH_MA_BUDGETED";
+      }
+
+      @Override
+      public String getDescription() {
+        return "PACKED_SAH_MA stored on or off the heap depending on the size of the scene and the free memory";
+      }
+    });
+  }
+
+  /**
+   * Estimate the number of triangles of the entities from the primitives of some of them, evenly spaced.
+   */
+  static long estimateTriangles(Collection<Entity> entities, Vector3 origin) {
+    if (entities.isEmpty()) {
+      return 0;
+    }
+    int stride = Math.max(1, entities.size() / SAMPLED_ENTITIES);
+    long sampledTriangles = 0;
+    int sampledEntities = 0;
+    int i = 0;
+    for (Entity entity : entities) {
+      if (i++ % stride == 0) {
+        sampledTriangles += entity.primitives(origin).size();
+        ++sampledEntities;
+      }
+    }
+    return (long) Math.ceil(sampledTriangles * (double) entities.size() / sampledEntities);
+  }
+
+  /**
+   * Returns the fastest variant whose estimated memory for the given number of triangles fits in the budgets,
+   * or the mapped files if none does.
+   */
+  static Variant choose(long triangles, long heapBudget, long directBudget) {
+    for (Variant variant : Variant.values()) {
+      if (variant.indexed && BvhSettings.refit()) {
+        // The triangles would be stored flat, see PackedSahMaBVH.packTriangles
+        continue;
+      }
+      if (variant.heapBytesPerTriangle * triangles <= heapBudget
+          && variant.directBytesPerTriangle * triangles <= directBudget) {
+        return variant;
+      }
+    }
+    Log.warnf("About %d triangles may not fit in %d MiB of heap", triangles, heapBudget / (1024 * 1024));
+    return Variant.MAPPED;
+  }
+
+  /**
+   * The budget from {@link BvhSettings#memoryBudget()}, or the heap that is not used. The garbage that was not
+   * collected yet counts as used, which errs on the side of a variant using less heap.
+   */
+  private static long heapBudget() {
+    long budget = BvhSettings.memoryBudget();
+    if (budget >= 0) {
+      return budget;
+    }
+    MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+    long max = heap.getMax() >= 0 ? heap.getMax() : Runtime.getRuntime().maxMemory();
+    return max - heap.getUsed();
+  }
+
+  /**
+   * The direct memory that can still be allocated, up to {@code -XX:MaxDirectMemorySize}
+   * which defaults to the maximum heap size.
+   */
+  private static long directBudget() {
+    long limit = Runtime.getRuntime().maxMemory();
+    try {
+      HotSpotDiagnosticMXBean hotSpot = ManagementFactory.getPlatformMXBean(HotSpotDiagnosticMXBean.class);
+      long maxDirectMemory = Long.parseLong(hotSpot.getVMOption("MaxDirectMemorySize").getValue());
+      if (maxDirectMemory > 0) {
+        limit = maxDirectMemory;
+      }
+    } catch (RuntimeException e) {
+      // Not a HotSpot JVM, assume the default limit
+    }
+    for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+      if (pool.getName().equals("direct")) {
+        limit -= pool.getMemoryUsed();
+      }
+    }
+    return limit;
+  }
+}
@@ -0,0 +1,44 @@
+package dev.ferrand.chunky.bvh.implementation;
+
+/**
+ * Bytes held by a packed tree, see {@link PackedSahMaBVH#memoryFootprint()}.
+ *
+ * @param geometryBytes    vertices of the triangles, see {@link dev.ferrand.chunky.bvh.util.PackedTriangles#geometryBytes()}
+ * @param uvBytes          texture coordinates of the triangles
+ * @param materialBytes    material ids of the triangles, with their double sided and opaque flags
+ * @param sourceBytes      tracking of the entities for the refit, 0 if they are not tracked
+ * @param nodeBytes        nodes of the tree
+ * @param precomputedBytes data precomputed from the triangles for faster intersections, 0 if there is none
+ * @param peakBuildBytes   estimated bytes held at once while building the tree, triangles included.
+ *                         Arrays left to the garbage collector are not counted.
+ * @param offHeapBytes     how many of the bytes above, peak excluded, are stored outside of the Java heap
+ */
+public record MemoryFootprint(long geometryBytes, long uvBytes, long materialBytes, long sourceBytes, long nodeBytes,
+                              long precomputedBytes, long peakBuildBytes, long offHeapBytes) {
+
+  /**
+   * Bytes held once the tree is built.
+   */
+  public long totalBytes() {
+    return geometryBytes + uvBytes + materialBytes + sourceBytes + nodeBytes + precomputedBytes;
+  }
+
+  /**
+   * Bytes held on the Java heap once the tree is built.
+   */
+  public long heapBytes() {
+    return totalBytes() - offHeapBytes;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("%.1f MiB (%.1f MiB off heap): geometry %.1f MiB, uv %.1f MiB, materials %.1f MiB, "
+            + "entities %.1f MiB, nodes %.1f MiB, precomputed %.1f MiB, build peak %.1f MiB",
+        mib(totalBytes()), mib(offHeapBytes), mib(geometryBytes), mib(uvBytes), mib(materialBytes),
+        mib(sourceBytes), mib(nodeBytes), mib(precomputedBytes), mib(peakBuildBytes));
+  }
+
+  private static double mib(long bytes) {
+    return bytes / (1024.0 * 1024.0);
+  }
+}
@@ -0,0 +1,351 @@
+package dev.ferrand.chunky.bvh.implementation;
+
+import dev.ferrand.chunky.bvh.util.PackedTriangles;
+import it.unimi.dsi.fastutil.floats.FloatArrayList;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import se.llbit.chunky.entity.Entity;
+import se.llbit.math.Ray;
+import se.llbit.math.Vector3;
+import se.llbit.math.bvh.BVH;
+import se.llbit.util.TaskTracker;
+
+import java.util.Collection;
+
+/**
+ * Binary BVH with the same tree as {@link PackedSahMaBVH} where the bounds of the children of a node
+ * are quantized to 8 or 16 bits relative to the bounds of the node.
+ * Only the bounds of the root are stored as floats, the traversal decodes the bounds of every node
+ * from the ones of its parent. The quantized bounds are rounded outward so that they always contain
+ * the actual bounds and no hit is lost.
+ * Leaves are stored directly in their parent, so there is one node per branch of the binary tree.
+ */
+public class PackedCompressedBVH implements BVH {
+
+  public static void addImplementation() {
+    addImplementation(8, "PACKED_SAH_MA_COMPRESSED");
+    addImplementation(16, "PACKED_SAH_MA_COMPRESSED16");
+  }
+
+  private static void addImplementation(int bits, String name) {
+    Factory.addBVHBuilder(new Factory.BVHBuilder() {
+      @Override
+      public BVH create(Collection<Entity> entities, Vector3 origin, TaskTracker.Task task) {
+        PackedTriangles triangles = PackedSahMaBVH.packTriangles(entities, origin, task);
+        // The binary tree is the same as the one of PACKED_SAH_MA and shares its cache entries
+        PackedSahMaBVH binary = PackedSahMaBVH.logStats(name,
+            BvhCache.getOrBuild("PACKED_SAH_MA", triangles, origin, task, null,
+                () -> new PackedSahMaBVH(triangles, task, true)));
+        return new PackedCompressedBVH(binary, bits);
+      }
+
+      @Override
+      public String getName() {
+        return name;
+      }
+
+      @Override
+      public String getDescription() {
+        return "PACKED_SAH_MA with node bounds quantized to " + bits + " bits to use even less memory";
+      }
+    });
+  }
+
+  private final PackedTriangles triangles;
+  private final int quantizationSteps;
+  private final byte[] quantized8; // 12 values per node when using 8 bits: the bounds of both children
+  private final char[] quantized16; // Same when using 16 bits
+  private final int[] children; // 2 ints per node: node index or negated and decremented index of the first primitive of a leaf
+  private final byte[] leafSizes; // 2 bytes per node: number of primitives if the child is a leaf
+  private final float[] rootBounds;
+  private final int rootRef; // Same encoding as children, the root itself can be a leaf for tiny trees
+  private final int rootLeafSize;
+  private final ThreadLocal<TraversalState> traversalState;
+
+  /**
+   * Per thread traversal stack: the nodes left to visit and their decoded bounds.
+   */
+  private static class TraversalState {
+    final int[] nodes;
+    final float[] bounds;
+
+    TraversalState(int stackSize) {
+      nodes = new int[stackSize];
+      bounds = new float[6 * stackSize];
+    }
+  }
+
+  /**
+   * @param bits 8 or 16
+   */
+  public PackedCompressedBVH(PackedSahMaBVH binary, int bits) {
+    if (bits != 8 && bits != 16) {
+      throw new IllegalArgumentException("Bounds can only be quantized to 8 or 16 bits");
+    }
+    this.triangles = binary.triangles;
+    this.quantizationSteps = (1 << bits) - 1;
+
+    rootBounds = new float[6];
+    for (int i = 0; i < 6; ++i) {
+      rootBounds[i] = binary.bbox.get(6*binary.rootIndex+i);
+    }
+
+    int nodeCount = 0;
+    for (int node = 0; node < binary.children.capacity() / 2; ++node) {
+      if (binary.children.get(2*node) >= 0) {
+        ++nodeCount;
+      }
+    }
+    quantized8 = bits == 8 ? new byte[12 * nodeCount] : null;
+    quantized16 = bits == 16 ? new char[12 * nodeCount] : null;
+    children = new int[2 * nodeCount];
+    leafSizes = new byte[2 * nodeCount];
+
+    if (binary.children.get(2*binary.rootIndex) < 0) {
+      rootRef = binary.children.get(2*binary.rootIndex);
+      rootLeafSize = binary.children.get(2*binary.rootIndex+1);
+    } else {
+      rootRef = 0;
+      rootLeafSize = 0;
+    }
+
+    // Binary branches in breadth first order with their decoded bounds
+    IntArrayList queue = new IntArrayList();
+    FloatArrayList queueBounds = new FloatArrayList();
+    if (rootRef >= 0) {
+      queue.add(binary.rootIndex);
+      queueBounds.addElements(0, rootBounds, 0, 6);
+    }
+    float[] parent = new float[6];
+    float[] child = new float[6];
+    float[] decoded = new float[6];
+    for (int node = 0; node < queue.size(); ++node) {
+      int binaryNode = queue.getInt(node);
+      for (int i = 0; i < 6; ++i) {
+        parent[i] = queueBounds.getFloat(6*node+i);
+      }
+      for (int side = 0; side < 2; ++side) {
+        int binaryChild = binary.children.get(2*binaryNode+side);
+        for (int i = 0; i < 6; ++i) {
+          child[i] = binary.bbox.get(6*binaryChild+i);
+        }
+        for (int axis = 0; axis < 3; ++axis) {
+          int qmin = quantizeMin(child[2*axis], parent[2*axis], parent[2*axis+1]);
+          int qmax = quantizeMax(child[2*axis+1], parent[2*axis], parent[2*axis+1]);
+          setQuantized(12*node + 6*side + 2*axis, qmin);
+          setQuantized(12*node + 6*side + 2*axis+1, qmax);
+          float scale = (parent[2*axis+1] - parent[2*axis]) / quantizationSteps;
+          decoded[2*axis] = parent[2*axis] + qmin * scale;
+          decoded[2*axis+1] = parent[2*axis+1] - (quantizationSteps - qmax) * scale;
+        }
+
+        int first = binary.children.get(2*binaryChild);
+        if (first < 0) {
+          int size = binary.children.get(2*binaryChild+1);
+          if (size > 255) {
+            throw new IllegalArgumentException("Leaves of more than 255 primitives can't be compressed");
+          }
+          children[2*node+side] = first;
+          leafSizes[2*node+side] = (byte) size;
+        } else {
+          children[2*node+side] = queue.size();
+          queue.add(binaryChild);
+          queueBounds.addElements(queueBounds.size(), decoded, 0, 6);
+        }
+      }
+    }
+
+    // A node is only pushed when going one level down
+    int stackSize = binary.depth;
+    traversalState = ThreadLocal.withInitial(() -> new TraversalState(stackSize));
+  }
+
+  private void setQuantized(int index, int value) {
+    if (quantized8 != null) {
+      quantized8[index] = (byte) value;
+    } else {
+      quantized16[index] = (char) value;
+    }
+  }
+
+  private int getQuantized(int index) {
+    return quantized8 != null ? quantized8[index] & 0xFF : quantized16[index];
+  }
+
+  /**
+   * Largest step whose decoded value is not above the given minimum.
+   * The min bounds are decoded as parentMin + q * scale, which is exactly parentMin for q = 0.
+   */
+  private int quantizeMin(float min, float parentMin, float parentMax) {
+    float scale = (parentMax - parentMin) / quantizationSteps;
+    if (!(scale > 0)) {
+      return 0;
+    }
+    int q = (int) Math.min(Math.max(Math.floor((min - parentMin) / scale), 0), quantizationSteps);
+    while (q > 0 && parentMin + q * scale > min) {
+      --q;
+    }
+    return q;
+  }
+
+  /**
+   * Smallest step whose decoded value is not below the given maximum.
+   * The max bounds are decoded as parentMax - (steps - q) * scale, which is exactly parentMax for q = steps.
+   */
+  private int quantizeMax(float max, float parentMin, float parentMax) {
+    float scale = (parentMax - parentMin) / quantizationSteps;
+    if (!(scale > 0)) {
+      return quantizationSteps;
+    }
+    int q = (int) Math.min(Math.max(Math.ceil((max - parentMin) / scale), 0), quantizationSteps);
+    while (q < quantizationSteps && parentMax - (quantizationSteps - q) * scale < max) {
+      ++q;
+    }
+    return q;
+  }
+
+  /**
+   * Free the triangles stored off the heap right away, see {@link PackedSahMaBVH#release()}.
+   */
+  public void release() {
+    triangles.release();
+  }
+
+  /**
+   * Number of bytes used by the nodes.
+   */
+  public long nodeBytes() {
+    long quantizedBytes = quantized8 != null ? quantized8.length : 2L * quantized16.length;
+    return quantizedBytes + 4L * children.length + leafSizes.length + 4L * rootBounds.length;
+  }
+
+  @Override
+  public boolean closestIntersection(Ray ray) {
+    double rx = 1 / ray.d.x;
+    double ry = 1 / ray.d.y;
+    double rz = 1 / ray.d.z;
+
+    double t = PackedSahMaBVH.quickAabbIntersect(ray,
+            rootBounds[0], rootBounds[1], rootBounds[2], rootBounds[3], rootBounds[4], rootBounds[5],
+            rx, ry, rz);
+    if (t > ray.t | t == -1) {
+      return false;
+    }
+    if (rootRef < 0) {
+      return finishHit(ray, intersectLeaf(ray, rootRef, rootLeafSize, -1));
+    }
+
+    int hitIndex = -1; // Last triangle hit, which is the closest one
+    TraversalState state = traversalState.get();
+    int[] nodesToVisit = state.nodes;
+    float[] boundsToVisit = state.bounds;
+    int stackSize = 0;
+
+    int currentNode = rootRef;
+    float xmin = rootBounds[0];
+    float xmax = rootBounds[1];
+    float ymin = rootBounds[2];
+    float ymax = rootBounds[3];
+    float zmin = rootBounds[4];
+    float zmax = rootBounds[5];
+
+    while (true) {
+      float xscale = (xmax - xmin) / quantizationSteps;
+      float yscale = (ymax - ymin) / quantizationSteps;
+      float zscale = (zmax - zmin) / quantizationSteps;
+
+      int base = 12*currentNode;
+      float lxmin = xmin + getQuantized(base) * xscale;
+      float lxmax = xmax - (quantizationSteps - getQuantized(base+1)) * xscale;
+      float lymin = ymin + getQuantized(base+2) * yscale;
+      float lymax = ymax - (quantizationSteps - getQuantized(base+3)) * yscale;
+      float lzmin = zmin + getQuantized(base+4) * zscale;
+      float lzmax = zmax - (quantizationSteps - getQuantized(base+5)) * zscale;
+      float rxmin = xmin + getQuantized(base+6) * xscale;
+      float rxmax = xmax - (quantizationSteps - getQuantized(base+7)) * xscale;
+      float rymin = ymin + getQuantized(base+8) * yscale;
+      float rymax = ymax - (quantizationSteps - getQuantized(base+9)) * yscale;
+      float rzmin = zmin + getQuantized(base+10) * zscale;
+      float rzmax = zmax - (quantizationSteps - getQuantized(base+11)) * zscale;
+
+      double t1 = PackedSahMaBVH.quickAabbIntersect(ray, lxmin, lxmax, lymin, lymax, lzmin, lzmax, rx, ry, rz);
+      double t2 = PackedSahMaBVH.quickAabbIntersect(ray, rxmin, rxmax, rymin, rymax, rzmin, rzmax, rx, ry, rz);
+      boolean visitLeft = !(t1 > ray.t | t1 == -1);
+      boolean visitRight = !(t2 > ray.t | t2 == -1);
+
+      // Leaves are intersected right away, closest first
+      int left = children[2*currentNode];
+      int right = children[2*currentNode+1];
+      if (visitLeft & visitRight & left < 0 & right < 0 & t2 < t1) {
+        hitIndex = intersectLeaf(ray, right, leafSizes[2*currentNode+1] & 0xFF, hitIndex);
+        visitRight = false;
+      }
+      if (visitLeft & left < 0) {
+        hitIndex = intersectLeaf(ray, left, leafSizes[2*currentNode] & 0xFF, hitIndex);
+        visitLeft = false;
+      }
+      if (visitRight & right < 0) {
+        hitIndex = intersectLeaf(ray, right, leafSizes[2*currentNode+1] & 0xFF, hitIndex);
+        visitRight = false;
+      }
+
+      if (visitLeft & visitRight) {
+        // Visit the closest one and push the other one
+        boolean leftFirst = t1 < t2;
+        nodesToVisit[stackSize] = leftFirst ? right : left;
+        int pushed = 6*stackSize;
+        boundsToVisit[pushed] = leftFirst ? rxmin : lxmin;
+        boundsToVisit[pushed+1] = leftFirst ? rxmax : lxmax;
+        boundsToVisit[pushed+2] = leftFirst ? rymin : lymin;
+        boundsToVisit[pushed+3] = leftFirst ? rymax : lymax;
+        boundsToVisit[pushed+4] = leftFirst ? rzmin : lzmin;
+        boundsToVisit[pushed+5] = leftFirst ? rzmax : lzmax;
+        ++stackSize;
+        visitLeft = leftFirst;
+        visitRight = !leftFirst;
+      }
+
+      if (visitLeft) {
+        currentNode = left;
+        xmin = lxmin; xmax = lxmax; ymin = lymin; ymax = lymax; zmin = lzmin; zmax = lzmax;
+      } else if (visitRight) {
+        currentNode = right;
+        xmin = rxmin; xmax = rxmax; ymin = rymin; ymax = rymax; zmin = rzmin; zmax = rzmax;
+      } else {
+        if (stackSize == 0) break;
+        --stackSize;
+        currentNode = nodesToVisit[stackSize];
+        int popped = 6*stackSize;
+        xmin = boundsToVisit[popped];
+        xmax = boundsToVisit[popped+1];
+        ymin = boundsToVisit[popped+2];
+        ymax = boundsToVisit[popped+3];
+        zmin = boundsToVisit[popped+4];
+        zmax = boundsToVisit[popped+5];
+      }
+    }
+
+    return finishHit(ray, hitIndex);
+  }
+
+  /**
+   * Returns the index of the last triangle of the leaf that was hit, or {@code hitIndex} if none was.
+   */
+  private int intersectLeaf(Ray ray, int ref, int size, int hitIndex) {
+    int primFrom = -ref - 1;
+    int primTo = primFrom + size;
+    for (int triangleIndex = primFrom; triangleIndex < primTo; ++triangleIndex) {
+      if (triangles.intersectDeferred(triangleIndex, ray)) {
+        hitIndex = triangleIndex;
+      }
+    }
+    return hitIndex;
+  }
+
+  private boolean finishHit(Ray ray, int hitIndex) {
+    if (hitIndex < 0) {
+      return false;
+    }
+    triangles.finishHit(hitIndex, ray);
+    return true;
+  }
+}
@@ -0,0 +1,236 @@
+package dev.ferrand.chunky.bvh.implementation;
+
+import dev.ferrand.chunky.bvh.util.PackedTriangles;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import se.llbit.chunky.entity.Entity;
+import se.llbit.log.Log;
+import se.llbit.math.Ray;
+import se.llbit.math.Vector3;
+import se.llbit.math.bvh.BVH;
+import se.llbit.util.TaskTracker;
+
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * The tree of {@link PackedSahMaBVH} laid out in depth first order, the left child of a node being the next node.
+ * Only the index of the right child is stored, or the triangle range of a leaf packed in the same int.
+ * Each node is a single 28 bytes record holding its bounds and its link, 4 bytes less than the bounds and the
+ * two children of the binary tree, and a node and its left child are contiguous. The child with the larger surface area, the one more likely to be hit,
+ * is put on the left so that the hot path down the tree follows consecutive records.
+ */
+public class PackedDepthFirstBVH implements BVH {
+
+  /**
+   * Ints per node: the bits of xmin, xmax, ymin, ymax, zmin and zmax, then the index of the right child
+   * of a branch or the complement of the triangle range of a leaf, see {@link #LEAF_SIZE_BITS}.
+   */
+  private static final int NODE_INTS = 7;
+
+  /**
+   * Low bits of the link of a leaf holding its number of triangles minus one, the first triangle is in the bits above.
+   * The link of a leaf is complemented so that it is negative.
+   */
+  private static final int LEAF_SIZE_BITS = 6;
+
+  /**
+   * Largest number of triangles in a leaf, and largest index of the first triangle of a leaf.
+   */
+  private static final int MAX_LEAF_SIZE = 1 << LEAF_SIZE_BITS;
+  private static final int MAX_FIRST_TRIANGLE = (1 << (31 - LEAF_SIZE_BITS)) - 1;
+
+  public static void addImplementation() {
+    Factory.addBVHBuilder(new Factory.BVHBuilder() {
+      @Override
+      public BVH create(Collection<Entity> entities, Vector3 origin, TaskTracker.Task task) {
+        PackedTriangles triangles = PackedSahMaBVH.packTriangles(entities, origin, task);
+        // The binary tree is the same as the one of PACKED_SAH_MA and shares its cache entries
+        PackedSahMaBVH binary = PackedSahMaBVH.logStats("PACKED_SAH_MA_DEPTH_FIRST",
+            BvhCache.getOrBuild("PACKED_SAH_MA", triangles, origin, task, null,
+                () -> new PackedSahMaBVH(triangles, task, true)));
+        if (!fits(binary)) {
+          Log.warnf("The leaves of %d triangles don't fit in the depth first layout, using PACKED_SAH_MA",
+              triangles.count);
+          return binary;
+        }
+        return new PackedDepthFirstBVH(binary);
+      }
+
+      @Override
+      public String getName() {
+        return "PACKED_SAH_MA_DEPTH_FIRST";
+      }
+
+      @Override
+      public String getDescription() {
+        return "PACKED_SAH_MA laid out in depth first order with the left child next to its parent";
+      }
+    });
+  }
+
+  private final PackedTriangles triangles;
+  private final int[] nodes;
+  private final ThreadLocal<int[]> traversalStack;
+
+  /**
+   * Returns true if the leaves of the tree can be packed in a link, with at most {@link #MAX_LEAF_SIZE} triangles
+   * starting before {@link #MAX_FIRST_TRIANGLE}, which is always the case below 32 million triangles
+   * and with the default maximum leaf size.
+   */
+  public static boolean fits(PackedSahMaBVH binary) {
+    for (int node = 0; node < binary.children.capacity() / 2; ++node) {
+      int first = binary.children.get(2*node);
+      if (first < 0 && (-first - 1 > MAX_FIRST_TRIANGLE || binary.children.get(2*node+1) > MAX_LEAF_SIZE)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @throws IllegalArgumentException if the leaves of the tree don't fit in the layout, see {@link #fits}
+   */
+  public PackedDepthFirstBVH(PackedSahMaBVH binary) {
+    if (!fits(binary)) {
+      throw new IllegalArgumentException("The leaves of the tree don't fit in the depth first layout");
+    }
+    this.triangles = binary.triangles;
+    FloatBuffer bbox = binary.bbox;
+    int[] layout = new int[NODE_INTS * (binary.children.capacity() / 2)];
+    int nodeCount = 0;
+
+    // Pairs of binary node and index of the node whose right child it is, -1 for the root
+    IntArrayList pending = new IntArrayList();
+    pending.add(binary.rootIndex);
+    pending.add(-1);
+    while (!pending.isEmpty()) {
+      int parent = pending.popInt();
+      int node = pending.popInt();
+      while (true) {
+        int index = nodeCount++;
+        if (parent >= 0) {
+          layout[NODE_INTS*parent+6] = index;
+        }
+        for (int i = 0; i < 6; ++i) {
+          layout[NODE_INTS*index+i] = Float.floatToRawIntBits(bbox.get(6*node+i));
+        }
+        int first = binary.children.get(2*node);
+        int second = binary.children.get(2*node+1);
+        if (first < 0) {
+          // The only empty leaf is the root of a tree without triangles, which is never traversed
+          layout[NODE_INTS*index+6] = ~((-first - 1) << LEAF_SIZE_BITS | Math.max(0, second - 1));
+          break;
+        }
+        int left = first;
+        int right = second;
+        if (surfaceArea(bbox, 6*second) > surfaceArea(bbox, 6*first)) {
+          left = second;
+          right = first;
+        }
+        pending.add(right);
+        pending.add(index);
+        // Continue with the left child, which gets the next index
+        node = left;
+        parent = -1;
+      }
+    }
+    nodes = nodeCount * NODE_INTS == layout.length ? layout : Arrays.copyOf(layout, nodeCount * NODE_INTS);
+
+    int stackSize = binary.depth;
+    traversalStack = ThreadLocal.withInitial(() -> new int[stackSize]);
+  }
+
+  private static float surfaceArea(FloatBuffer bbox, int offset) {
+    float xdiff = bbox.get(offset+1) - bbox.get(offset);
+    float ydiff = bbox.get(offset+3) - bbox.get(offset+2);
+    float zdiff = bbox.get(offset+5) - bbox.get(offset+4);
+    return xdiff*ydiff + xdiff*zdiff + ydiff*zdiff;
+  }
+
+  /**
+   * Free the triangles stored off the heap right away, see {@link PackedSahMaBVH#release()}.
+   */
+  public void release() {
+    triangles.release();
+  }
+
+  /**
+   * Number of bytes used by the nodes.
+   */
+  public long nodeBytes() {
+    return 4L * nodes.length;
+  }
+
+  private double intersectNode(Ray ray, int node, double rx, double ry, double rz) {
+    int base = NODE_INTS*node;
+    return PackedSahMaBVH.quickAabbIntersect(ray,
+        Float.intBitsToFloat(nodes[base]),
+        Float.intBitsToFloat(nodes[base+1]),
+        Float.intBitsToFloat(nodes[base+2]),
+        Float.intBitsToFloat(nodes[base+3]),
+        Float.intBitsToFloat(nodes[base+4]),
+        Float.intBitsToFloat(nodes[base+5]),
+        rx, ry, rz);
+  }
+
+  @Override
+  public boolean closestIntersection(Ray ray) {
+    if (triangles.count == 0) {
+      return false;
+    }
+    int hitIndex = -1; // Last triangle hit, which is the closest one
+    int currentNode = 0;
+    int[] nodesToVisit = traversalStack.get();
+    int stackSize = 0;
+
+    double rx = 1 / ray.d.x;
+    double ry = 1 / ray.d.y;
+    double rz = 1 / ray.d.z;
+
+    while (true) {
+      int link = nodes[NODE_INTS*currentNode+6];
+      if (link < 0) {
+        // Is leaf
+        int first = ~link >>> LEAF_SIZE_BITS;
+        int end = first + (~link & (MAX_LEAF_SIZE - 1)) + 1;
+        for (int triangleIndex = first; triangleIndex < end; ++triangleIndex) {
+          if (triangles.intersectDeferred(triangleIndex, ray)) {
+            hitIndex = triangleIndex;
+          }
+        }
+
+        if (stackSize == 0) break;
+        currentNode = nodesToVisit[--stackSize];
+      } else {
+        // Is branch, find closest node
+        int childIndex = currentNode + 1;
+        double t1 = intersectNode(ray, childIndex, rx, ry, rz);
+        double t2 = intersectNode(ray, link, rx, ry, rz);
+
+        if (t1 > ray.t | t1 == -1) {
+          if (t2 > ray.t | t2 == -1) {
+            if (stackSize == 0) break;
+            currentNode = nodesToVisit[--stackSize];
+          } else {
+            currentNode = link;
+          }
+        } else if (t2 > ray.t | t2 == -1) {
+          currentNode = childIndex;
+        } else if (t1 < t2) {
+          nodesToVisit[stackSize++] = link;
+          currentNode = childIndex;
+        } else {
+          nodesToVisit[stackSize++] = childIndex;
+          currentNode = link;
+        }
+      }
+    }
+
+    if (hitIndex < 0) {
+      return false;
+    }
+    triangles.finishHit(hitIndex, ray);
+    return true;
+  }
+}
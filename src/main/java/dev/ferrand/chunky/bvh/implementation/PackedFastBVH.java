@@ -0,0 +1,102 @@
+package dev.ferrand.chunky.bvh.implementation;
+
+import dev.ferrand.chunky.bvh.BvhSettings;
+import dev.ferrand.chunky.bvh.util.OffHeapAllocator;
+import dev.ferrand.chunky.bvh.util.PackedTriangles;
+import dev.ferrand.chunky.bvh.util.PrecomputedTriangles;
+import se.llbit.chunky.entity.Entity;
+import se.llbit.math.Ray;
+import se.llbit.math.Vector3;
+import se.llbit.math.bvh.BVH;
+import se.llbit.util.TaskTracker;
+
+import java.util.Collection;
+
+/**
+ * Same tree as {@link PackedSahMaBVH}, with the triangles tested using {@link PrecomputedTriangles}.
+ * The triangles of a leaf are contiguous so their precomputed data is read sequentially, one cache line each.
+ * This trades 64 more bytes per triangle for faster rays.
+ */
+public class PackedFastBVH extends PackedSahMaBVH {
+
+  public static void addImplementation() {
+    Factory.addBVHBuilder(new Factory.BVHBuilder() {
+      @Override
+      public BVH create(Collection<Entity> entities, Vector3 origin, TaskTracker.Task task) {
+        PackedTriangles triangles = packTriangles(entities, origin, task);
+        OffHeapAllocator nodeAllocator = BvhSettings.storage();
+        // The tree is the same as the one of PACKED_SAH_MA and shares its cache entries
+        PackedSahMaBVH binary = logStats("PACKED_SAH_MA_FAST",
+            BvhCache.getOrBuild("PACKED_SAH_MA", triangles, origin, task, nodeAllocator,
+                () -> new PackedSahMaBVH(triangles, task, true, nodeAllocator)));
+        return new PackedFastBVH(binary);
+      }
+
+      @Override
+      public String getName() {
+        return "PACKED_SAH_MA_FAST";
+      }
+
+      @Override
+      public String getDescription() {
+        return "PACKED_SAH_MA with precomputed triangles, faster but uses more memory";
+      }
+    });
+  }
+
+  private final PrecomputedTriangles precomputed;
+
+  public PackedFastBVH(PackedSahMaBVH binary) {
+    // Takes over the nodes of the binary tree
+    super(binary.triangles, binary.bbox, binary.children, binary.rootIndex, binary.offHeapNodes);
+    peakBuildBytes = binary.peakBuildBytes;
+    precomputed = new PrecomputedTriangles(triangles);
+  }
+
+  /**
+   * Number of bytes used by the precomputed triangles.
+   */
+  public long precomputedBytes() {
+    return precomputed.bytes();
+  }
+
+  @Override
+  public MemoryFootprint memoryFootprint() {
+    MemoryFootprint binary = super.memoryFootprint();
+    // Precomputed once the tree is built, when the node lists are gone
+    long peak = Math.max(binary.peakBuildBytes(), binary.totalBytes() + precomputed.bytes());
+    return new MemoryFootprint(binary.geometryBytes(), binary.uvBytes(), binary.materialBytes(), binary.sourceBytes(),
+        binary.nodeBytes(), precomputed.bytes(), peak, binary.offHeapBytes());
+  }
+
+  @Override
+  public void refit() {
+    precomputed.update();
+    super.refit();
+  }
+
+  @Override
+  public int rebuildDegraded(double threshold) {
+    int rebuilt = super.rebuildDegraded(threshold);
+    if (rebuilt > 0) {
+      // The triangles of the rebuilt subtrees were reordered
+      precomputed.update();
+    }
+    return rebuilt;
+  }
+
+  @Override
+  protected boolean intersectDeferred(int index, Ray ray) {
+    return precomputed.intersectDeferred(index, ray);
+  }
+
+  @Override
+  protected void finishHit(int index, Ray ray) {
+    precomputed.finishHit(index, ray);
+  }
+
+  @Override
+  protected boolean occludes(int index, Ray ray) {
+    return precomputed.occludes(index, ray);
+  }
+}
@@ -1,55 +1,58 @@
 package dev.ferrand.chunky.bvh.implementation;
 
+import dev.ferrand.chunky.bvh.BvhSettings;
+import dev.ferrand.chunky.bvh.util.OffHeapAllocator;
 import dev.ferrand.chunky.bvh.util.PackedTriangles;
 import dev.ferrand.chunky.bvh.util.PackedTrianglesBuilder;
+import dev.ferrand.chunky.bvh.util.TraversalStats;
 import it.unimi.dsi.fastutil.Stack;
 import it.unimi.dsi.fastutil.floats.FloatArrayList;
 import it.unimi.dsi.fastutil.ints.IntArrayList;
-import it.unimi.dsi.fastutil.ints.IntIntImmutablePair;
 import it.unimi.dsi.fastutil.ints.IntStack;
 import it.unimi.dsi.fastutil.objects.ObjectArrayList;
 import org.apache.commons.math3.util.FastMath;
 import se.llbit.chunky.entity.Entity;
-import se.llbit.math.AABB;
+import se.llbit.log.Log;
 import se.llbit.math.Ray;
 import se.llbit.math.Vector3;
 import se.llbit.math.bvh.BVH;
 import se.llbit.math.primitive.Primitive;
-import se.llbit.math.primitive.TexturedTriangle;
 import se.llbit.util.TaskTracker;
 
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collection;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
 
 import static se.llbit.math.Ray.OFFSET;
 
 public class PackedSahMaBVH implements BVH {
 
-  public static final int SPLIT_LIMIT = 5;
+  /**
+   * Minimum size of a chunk to be built as its own fork-join task in parallel mode.
+   */
+  public static final int PARALLEL_THRESHOLD = 4096;
+
+  /**
+   * Minimum number of entities collected by a shard of the builder when collecting in parallel.
+   */
+  public static final int MIN_INGESTION_CHUNK = 256;
 
   public static void addImplementation() {
     Factory.addBVHBuilder(new Factory.BVHBuilder() {
       @Override
       public BVH create(Collection<Entity> entities, Vector3 origin, TaskTracker.Task task) {
-        task.update(1000, 0);
-        PackedTrianglesBuilder builder = new PackedTrianglesBuilder();
-        double entityScaler = 500.0 / entities.size();
-        int done = 0;
-        for(Entity entity : entities) {
-          Collection<Primitive> primitives = entity.primitives(origin);
-          for(Primitive primitive : primitives) {
-            if(primitive instanceof TexturedTriangle) {
-              builder.addTriangle((TexturedTriangle) primitive);
-            } else {
-              // Not Supported, defer to SAH_MA
-              builder = null;
-              return Factory.create("SAH_MA", entities, origin, task);
-            }
-          }
-          done++;
-          task.updateInterval((int) (done * entityScaler), 1);
-        }
-
-        return new PackedSahMaBVH(builder.build(), task);
+        PackedTriangles triangles = packTriangles(entities, origin, task);
+        OffHeapAllocator nodeAllocator = BvhSettings.storage();
+        return logStats("PACKED_SAH_MA",
+            BvhCache.getOrBuild("PACKED_SAH_MA", triangles, origin, task, nodeAllocator,
+                () -> new PackedSahMaBVH(triangles, task, true, nodeAllocator)));
       }
 
       @Override
@@ -64,14 +67,371 @@ public class PackedSahMaBVH implements BVH {
     });
   }
 
-  private final PackedTriangles triangles;
-  private final FloatArrayList bbox = new FloatArrayList();
-  private final IntArrayList children = new IntArrayList();
-  private final int rootIndex;
+  /**
+   * With {@link BvhSettings#stats()}, log the traversal counters of the previous tree and the quality of a new one.
+   */
+  static <T extends PackedSahMaBVH> T logStats(String name, T bvh) {
+    if (TraversalStats.ENABLED) {
+      TraversalStats.Snapshot previous = TraversalStats.snapshot();
+      if (previous.rays() > 0) {
+        Log.infof("Traversal of the previous BVH: %s", previous);
+      }
+      TraversalStats.reset();
+      Log.infof("%s: %s", name, bvh.quality());
+    }
+    return bvh;
+  }
+
+  /**
+   * Collect the primitives of all the entities, reporting the first half of the progress.
+   * With {@link BvhSettings#parallelIngestion()} the entities are split in chunks collected by shards of the builder.
+   */
+  static PackedTriangles packTriangles(Collection<Entity> entities, Vector3 origin, TaskTracker.Task task) {
+    return packTriangles(entities, origin, task, BvhSettings.indexedTriangles(), BvhSettings.storage());
+  }
+
+  /**
+   * Same as {@link #packTriangles(Collection, Vector3, TaskTracker.Task)} with the given storage instead of the one
+   * from the settings.
+   *
+   * @param indexed   ignored when the entities are tracked for {@link #refit()}
+   * @param allocator if not null and {@code indexed} is false, the triangles are stored in buffers from this allocator
+   */
+  static PackedTriangles packTriangles(Collection<Entity> entities, Vector3 origin, TaskTracker.Task task,
+                                       boolean indexed, OffHeapAllocator allocator) {
+    task.update(1000, 0);
+    boolean trackEntities = BvhSettings.refit();
+    if (trackEntities && indexed) {
+      // The vertices of indexed triangles are shared with other entities, they can't be updated in place
+      Log.warn("Indexed triangles can't be refitted, storing the triangles flat instead");
+      indexed = false;
+    }
+    PackedTrianglesBuilder builder = allocator == null || indexed
+        ? new PackedTrianglesBuilder(indexed)
+        : new PackedTrianglesBuilder(allocator);
+    Entity[] entityArray = entities.toArray(new Entity[0]);
+    AtomicInteger done = new AtomicInteger();
+
+    // More chunks than threads as the entities don't all have the same number of primitives
+    int chunkCount = BvhSettings.parallelIngestion()
+        ? Math.min(4 * ForkJoinPool.getCommonPoolParallelism(), entityArray.length / MIN_INGESTION_CHUNK)
+        : 1;
+    if (chunkCount <= 1) {
+      collect(builder, entityArray, 0, entityArray.length, origin, trackEntities, task, done);
+      return builder.build();
+    }
+
+    PackedTrianglesBuilder[] shards = new PackedTrianglesBuilder[chunkCount];
+    IntStream.range(0, chunkCount).parallel().forEach(chunk -> {
+      PackedTrianglesBuilder shard = builder.newShard();
+      collect(shard, entityArray, (int) ((long) chunk * entityArray.length / chunkCount),
+          (int) ((long) (chunk + 1) * entityArray.length / chunkCount), origin, trackEntities, task, done);
+      shards[chunk] = shard;
+    });
+    for (int chunk = 0; chunk < chunkCount; ++chunk) {
+      builder.append(shards[chunk]);
+      shards[chunk] = null;
+    }
+    return builder.build();
+  }
+
+  private static void collect(PackedTrianglesBuilder builder, Entity[] entities, int from, int to, Vector3 origin,
+                              boolean trackEntities, TaskTracker.Task task, AtomicInteger done) {
+    for (int i = from; i < to; ++i) {
+      Entity entity = entities[i];
+      Collection<Primitive> primitives = entity.primitives(origin);
+      if (trackEntities) {
+        builder.startEntity(entity);
+      }
+      for(Primitive primitive : primitives) {
+        builder.addPrimitive(primitive);
+      }
+      int progress = done.incrementAndGet();
+      if ((int) (progress * 500.0 / entities.length) != (int) ((progress - 1) * 500.0 / entities.length)) {
+        synchronized (task) {
+          task.updateInterval((int) (progress * 500.0 / entities.length), 1);
+        }
+      }
+    }
+  }
+
+  protected final PackedTriangles triangles;
+  private final OffHeapAllocator nodeAllocator;
+  private final SahCostModel costModel;
+  // The nodes are only replaced by rebuildDegraded, between two renders
+  FloatBuffer bbox; // 6 floats per node
+  IntBuffer children; // 2 ints per node
+  ByteBuffer[] offHeapNodes; // Storage of bbox and children when they are off the heap, see release()
+  int rootIndex;
+  int depth; // Number of nodes on the longest path from the root to a leaf
+  private ThreadLocal<int[]> traversalStack;
+  private ThreadLocal<long[]> packetMaskStack; // Rays of the packet still active in each node of the traversal stack
+  private float[] builtAreas; // Surface area of each node when it was built, only when the triangles can be updated
+  long peakBuildBytes; // See MemoryFootprint, only known for trees built here
+  private long buildCacheBytes; // Taken by PackedTriangles.beginBuild during the build in progress
 
   public PackedSahMaBVH(PackedTriangles triangles, TaskTracker.Task task) {
+    this(triangles, task, false);
+  }
+
+  /**
+   * @param parallel if true, disjoint chunks of at least {@link #PARALLEL_THRESHOLD} triangles are built
+   *                 as separate fork-join tasks. The resulting tree is identical to the serial one.
+   */
+  public PackedSahMaBVH(PackedTriangles triangles, TaskTracker.Task task, boolean parallel) {
+    this(triangles, task, parallel, null);
+  }
+
+  /**
+   * @param nodeAllocator if not null, the nodes are moved to buffers from this allocator once built
+   */
+  public PackedSahMaBVH(PackedTriangles triangles, TaskTracker.Task task, boolean parallel, OffHeapAllocator nodeAllocator) {
+    this(triangles, task, parallel, nodeAllocator, SahCostModel.fromSettings());
+  }
+
+  /**
+   * @param costModel decides which chunks of triangles are kept as leaves, instead of the one from the settings
+   */
+  public PackedSahMaBVH(PackedTriangles triangles, TaskTracker.Task task, boolean parallel, OffHeapAllocator nodeAllocator,
+                        SahCostModel costModel) {
     this.triangles = triangles;
-    rootIndex = construct(task);
+    this.nodeAllocator = nodeAllocator;
+    this.costModel = costModel;
+    FloatArrayList bboxList = new FloatArrayList();
+    IntArrayList childrenList = new IntArrayList();
+    int root = construct(bboxList, childrenList, task, parallel);
+    setNodes(bboxList, childrenList, root);
+  }
+
+  /**
+   * Tree that was already built over the triangles, for example loaded from the {@link BvhCache}.
+   *
+   * @param offHeapNodes the buffers of {@code bbox} and {@code children} from an {@link OffHeapAllocator},
+   *                     or null if they are on the heap
+   */
+  PackedSahMaBVH(PackedTriangles triangles, FloatBuffer bbox, IntBuffer children, int rootIndex, ByteBuffer[] offHeapNodes) {
+    this.triangles = triangles;
+    this.nodeAllocator = null;
+    this.costModel = SahCostModel.fromSettings();
+    this.bbox = bbox;
+    this.children = children;
+    this.offHeapNodes = offHeapNodes;
+    this.rootIndex = rootIndex;
+    nodesChanged();
+  }
+
+  private void setNodes(FloatArrayList bboxList, IntArrayList childrenList, int root) {
+    // The lists, grown by half their size at a time, are copied to the final nodes
+    long listBytes = 4L * bboxList.elements().length + 4L * childrenList.elements().length;
+    // The nodes replaced by rebuildDegraded are not used anymore
+    releaseNodes();
+    if (nodeAllocator != null && 4L * bboxList.size() <= Integer.MAX_VALUE) {
+      offHeapNodes = new ByteBuffer[] {
+          nodeAllocator.allocate(4 * bboxList.size()),
+          nodeAllocator.allocate(4 * childrenList.size()),
+      };
+      bbox = offHeapNodes[0].asFloatBuffer();
+      bbox.put(bboxList.elements(), 0, bboxList.size());
+      children = offHeapNodes[1].asIntBuffer();
+      children.put(childrenList.elements(), 0, childrenList.size());
+    } else {
+      bboxList.trim();
+      childrenList.trim();
+      bbox = FloatBuffer.wrap(bboxList.elements());
+      children = IntBuffer.wrap(childrenList.elements());
+    }
+    rootIndex = root;
+    nodesChanged();
+    // The bounds of the triangles are cached until the node lists are complete
+    peakBuildBytes = triangles.bytes() + Math.max(buildCacheBytes + Math.max(buildScratchBytes(), listBytes),
+        listBytes + nodeBytes());
+    buildCacheBytes = 0;
+  }
+
+  /**
+   * Free the nodes and the triangles stored off the heap right away instead of waiting for the garbage collector.
+   * To be called when the tree is replaced or discarded, it can't be used anymore.
+   */
+  public void release() {
+    releaseNodes();
+    triangles.release();
+  }
+
+  /**
+   * Free the nodes stored off the heap, for the trees converted to another layout that keeps the triangles.
+   */
+  void releaseNodes() {
+    if (offHeapNodes != null) {
+      for (ByteBuffer buffer : offHeapNodes) {
+        OffHeapAllocator.release(buffer);
+      }
+      offHeapNodes = null;
+    }
+  }
+
+  /**
+   * Bytes of the largest temporary arrays used to split the chunk of all the triangles: the centers, the indexes
+   * and the radix sort buffer of {@link PackedTriangles#sort}, and the surface areas of the sweep,
+   * for {@link #memoryFootprint()}.
+   */
+  protected long buildScratchBytes() {
+    return 16L * triangles.count;
+  }
+
+  private void nodesChanged() {
+    depth = computeDepth();
+    // A node is only pushed when going one level down, so the stack never holds more than depth nodes
+    int stackSize = depth;
+    traversalStack = ThreadLocal.withInitial(() -> new int[stackSize]);
+    packetMaskStack = ThreadLocal.withInitial(() -> new long[stackSize]);
+    if (triangles.sources() != null) {
+      builtAreas = new float[children.capacity() / 2];
+      for (int node = 0; node < builtAreas.length; ++node) {
+        builtAreas[node] = nodeArea(node);
+      }
+    }
+  }
+
+  private float nodeArea(int node) {
+    float xdiff = bbox.get(6*node+1) - bbox.get(6*node);
+    float ydiff = bbox.get(6*node+3) - bbox.get(6*node+2);
+    float zdiff = bbox.get(6*node+5) - bbox.get(6*node+4);
+    return xdiff*ydiff + xdiff*zdiff + ydiff*zdiff;
+  }
+
+  /**
+   * Recompute the bounding boxes of the nodes after triangles were updated with {@link PackedTriangles#updateEntity}.
+   * The structure of the tree is kept, so it gets slower to traverse as the entities move away
+   * from where they were built, see {@link #rebuildDegraded(double)}.
+   */
+  public void refit() {
+    float[] bounds = new float[6];
+    // Children always have lower indexes than their parent
+    for (int node = 0; node < children.capacity() / 2; ++node) {
+      int first = children.get(2*node);
+      int second = children.get(2*node+1);
+      if (first < 0) {
+        for (int i = 0; i < 6; i += 2) {
+          bounds[i] = Float.POSITIVE_INFINITY;
+          bounds[i+1] = Float.NEGATIVE_INFINITY;
+        }
+        int from = -first - 1;
+        for (int index = from; index < from + second; ++index) {
+          triangles.expandBounds(bounds, 0, index);
+        }
+      } else {
+        for (int i = 0; i < 6; i += 2) {
+          bounds[i] = Math.min(bbox.get(6*first+i), bbox.get(6*second+i));
+          bounds[i+1] = Math.max(bbox.get(6*first+i+1), bbox.get(6*second+i+1));
+        }
+      }
+      for (int i = 0; i < 6; ++i) {
+        bbox.put(6*node+i, bounds[i]);
+      }
+    }
+  }
+
+  /**
+   * Rebuild the subtrees whose surface area grew more than {@code threshold} times since they were built,
+   * to be called after {@link #refit()}. The rest of the tree is copied as is.
+   * This needs the triangles to track their entities, see {@link BvhSettings#refit()}.
+   *
+   * @return the number of subtrees that were rebuilt
+   */
+  public int rebuildDegraded(double threshold) {
+    if (builtAreas == null) {
+      throw new IllegalStateException("The triangles don't track their entities");
+    }
+    BitSet degraded = new BitSet();
+    int[] stack = new int[depth];
+    int stackSize = 0;
+    stack[stackSize++] = rootIndex;
+    while (stackSize > 0) {
+      int node = stack[--stackSize];
+      int first = children.get(2*node);
+      if (first < 0) {
+        continue;
+      }
+      if (nodeArea(node) > threshold * builtAreas[node]) {
+        // The highest degraded node is rebuilt with all its subtree
+        degraded.set(node);
+      } else {
+        stack[stackSize++] = first;
+        stack[stackSize++] = children.get(2*node+1);
+      }
+    }
+    if (degraded.isEmpty()) {
+      return 0;
+    }
+
+    FloatArrayList bboxList = new FloatArrayList(bbox.capacity());
+    IntArrayList childrenList = new IntArrayList(children.capacity());
+    int root;
+    try {
+      root = copyOrRebuild(rootIndex, degraded, bboxList, childrenList);
+    } finally {
+      releaseBuild();
+    }
+    setNodes(bboxList, childrenList, root);
+    return degraded.cardinality();
+  }
+
+  /**
+   * Append a subtree to the lists, children first, rebuilding the subtrees of the degraded nodes.
+   */
+  private int copyOrRebuild(int node, BitSet degraded, FloatArrayList bboxList, IntArrayList childrenList) {
+    int first = children.get(2*node);
+    int second = children.get(2*node+1);
+    if (degraded.get(node)) {
+      // The triangles of a subtree are contiguous, from its leftmost to its rightmost leaf
+      int leftmost = first;
+      while (leftmost >= 0) {
+        leftmost = children.get(2*leftmost);
+      }
+      int rightmost = node;
+      while (children.get(2*rightmost) >= 0) {
+        rightmost = children.get(2*rightmost+1);
+      }
+      int from = -leftmost - 1;
+      int to = -children.get(2*rightmost) - 1 + children.get(2*rightmost+1);
+      prepareBuild(from, to);
+      float[] bounds = new float[6];
+      triangles.computeBounds(from, to, bounds, 0);
+      AtomicInteger progress = new AtomicInteger();
+      if (to - from >= PARALLEL_THRESHOLD) {
+        return ForkJoinPool.commonPool().invoke(new SubtreeTask(from, to, bounds, bboxList, childrenList, TaskTracker.Task.NONE, progress));
+      }
+      return construct(from, to, bounds, new SplitScratch(), bboxList, childrenList, TaskTracker.Task.NONE, progress);
+    }
+    if (first < 0) {
+      int leafIndex = childrenList.size() / 2;
+      childrenList.add(first);
+      childrenList.add(second);
+      for (int i = 0; i < 6; ++i) {
+        bboxList.add(bbox.get(6*node+i));
+      }
+      return leafIndex;
+    }
+    int right = copyOrRebuild(second, degraded, bboxList, childrenList);
+    int left = copyOrRebuild(first, degraded, bboxList, childrenList);
+    return merge(bboxList, childrenList, left, right);
+  }
+
+  private int computeDepth() {
+    // A node is always added after its children, going down the indexes visits the parents first
+    int[] nodeDepths = new int[children.capacity() / 2];
+    nodeDepths[rootIndex] = 1;
+    int maxDepth = 1;
+    for (int node = rootIndex; node >= 0; --node) {
+      int left = children.get(2*node);
+      if (left >= 0) {
+        int right = children.get(2*node+1);
+        nodeDepths[left] = nodeDepths[node] + 1;
+        nodeDepths[right] = nodeDepths[node] + 1;
+        maxDepth = Math.max(maxDepth, nodeDepths[node] + 1);
+      }
+    }
+    return maxDepth;
   }
 
   private enum Action {
@@ -79,69 +439,285 @@ public class PackedSahMaBVH implements BVH {
     MERGE,
   }
 
-  private int construct(TaskTracker.Task task) {
-    int progress = 0;
+  private int construct(FloatArrayList bbox, IntArrayList children, TaskTracker.Task task, boolean parallel) {
+    boolean indirect = BvhSettings.indirectBuild();
+    triangles.beginBuild(indirect);
+    buildCacheBytes = triangles.buildCacheBytes(indirect);
+    try {
+      prepareBuild(0, triangles.count);
+      float[] bounds = new float[6];
+      triangles.computeBounds(0, triangles.count, bounds, 0);
+      AtomicInteger progress = new AtomicInteger();
+      if (parallel && triangles.count >= PARALLEL_THRESHOLD) {
+        return ForkJoinPool.commonPool().invoke(new SubtreeTask(0, triangles.count, bounds, bbox, children, task, progress));
+      }
+      return construct(0, triangles.count, bounds, new SplitScratch(), bbox, children, task, progress);
+    } finally {
+      releaseBuild();
+      triangles.finishBuild();
+    }
+  }
 
+  /**
+   * Build the subtree of the triangles in [from, to), whose bounds are given, on the current thread.
+   * The nodes are appended to the given lists and the index of the subtree root is returned.
+   */
+  private int construct(int from, int to, float[] bounds, SplitScratch scratch, FloatArrayList bbox, IntArrayList children,
+                        TaskTracker.Task task, AtomicInteger progress) {
     IntStack nodes = new IntArrayList();
     Stack<Action> actions = new ObjectArrayList<>();
-    Stack<IntIntImmutablePair> chunks = new ObjectArrayList<>();
-    chunks.push(new IntIntImmutablePair(0, triangles.count));
+    IntArrayList chunks = new IntArrayList(); // from and to of each chunk
+    FloatArrayList chunkBounds = new FloatArrayList(); // 6 floats per chunk, computed by the split of its parent
+    float[] chunk = new float[6];
+    chunks.push(from);
+    chunks.push(to);
+    chunkBounds.addElements(0, bounds, 0, 6);
     actions.push(Action.PUSH);
     while (!actions.isEmpty()) {
       Action action = actions.pop();
       if (action == Action.MERGE) {
-        int groupIndex = children.size() / 2;
         int left = nodes.popInt();
         int right = nodes.popInt();
-        children.add(left);
-        children.add(right);
-        bbox.add(Math.min(bbox.getFloat(6*left), bbox.getFloat(6*right))); // xmin
-        bbox.add(Math.max(bbox.getFloat(6*left+1), bbox.getFloat(6*right+1))); // xmax
-        bbox.add(Math.min(bbox.getFloat(6*left+2), bbox.getFloat(6*right+2))); // ymin
-        bbox.add(Math.max(bbox.getFloat(6*left+3), bbox.getFloat(6*right+3))); // ymax
-        bbox.add(Math.min(bbox.getFloat(6*left+4), bbox.getFloat(6*right+4))); // zmin
-        bbox.add(Math.max(bbox.getFloat(6*left+5), bbox.getFloat(6*right+5))); // zmax
-        nodes.push(groupIndex);
+        nodes.push(merge(bbox, children, left, right));
       } else {
-        IntIntImmutablePair chunk = chunks.pop();
-        if (chunk.rightInt() - chunk.leftInt() < SPLIT_LIMIT) {
-          int chunkIndex = children.size() / 2;
-
-          children.add(-chunk.leftInt()-1); // Primitive index is negated and decremented
-          children.add(chunk.rightInt() - chunk.leftInt()); // store size in second
-          AABB bb = triangles.computeAABB(chunk.leftInt(), chunk.rightInt());
-          bbox.add((float) bb.xmin);
-          bbox.add((float) bb.xmax);
-          bbox.add((float) bb.ymin);
-          bbox.add((float) bb.ymax);
-          bbox.add((float) bb.zmin);
-          bbox.add((float) bb.zmax);
-
-          nodes.push(chunkIndex);
-
-          progress += chunk.rightInt() - chunk.leftInt();
-          task.updateInterval((int) (progress * 500.0/triangles.count) + 500, 1);
+        int chunkTo = chunks.popInt();
+        int chunkFrom = chunks.popInt();
+        System.arraycopy(chunkBounds.elements(), chunkBounds.size() - 6, chunk, 0, 6);
+        chunkBounds.size(chunkBounds.size() - 6);
+        int split = chunkTo - chunkFrom > 1 ? split(chunkFrom, chunkTo, chunk, scratch) : chunkTo;
+        if (keepLeaf(chunkFrom, split, chunkTo, chunk, scratch.childBounds)) {
+          nodes.push(leaf(bbox, children, chunkFrom, chunkTo, chunk));
+          reportProgress(task, progress, chunkTo - chunkFrom);
         } else {
-          split(chunk, actions, chunks);
+          actions.push(Action.MERGE);
+          chunks.push(chunkFrom);
+          chunks.push(split);
+          chunkBounds.addElements(chunkBounds.size(), scratch.childBounds, 0, 6);
+          actions.push(Action.PUSH);
+
+          chunks.push(split);
+          chunks.push(chunkTo);
+          chunkBounds.addElements(chunkBounds.size(), scratch.childBounds, 6, 6);
+          actions.push(Action.PUSH);
         }
       }
     }
     return nodes.popInt();
   }
 
-  private float surfaceArea(AABB aabb) {
-    double xdiff = aabb.xmax - aabb.xmin;
-    double ydiff = aabb.ymax - aabb.ymin;
-    double zdiff = aabb.zmax - aabb.zmin;
+  /**
+   * Returns true if the chunk [from, to) is cheaper as a leaf than split at {@code split}, see {@link SahCostModel}.
+   * The bounds of the two sides are read from {@code childBounds}, left then right.
+   */
+  private boolean keepLeaf(int from, int split, int to, float[] bounds, float[] childBounds) {
+    return costModel.keepLeaf(to - from, surfaceArea(bounds, 0),
+        surfaceArea(childBounds, 0), split - from,
+        surfaceArea(childBounds, 6), to - split);
+  }
+
+  private int leaf(FloatArrayList bbox, IntArrayList children, int from, int to, float[] bounds) {
+    int chunkIndex = children.size() / 2;
+
+    children.add(-from-1); // Primitive index is negated and decremented
+    children.add(to - from); // store size in second
+    bbox.addElements(bbox.size(), bounds, 0, 6);
+
+    return chunkIndex;
+  }
+
+  private static int merge(FloatArrayList bbox, IntArrayList children, int left, int right) {
+    int groupIndex = children.size() / 2;
+    children.add(left);
+    children.add(right);
+    bbox.add(Math.min(bbox.getFloat(6*left), bbox.getFloat(6*right))); // xmin
+    bbox.add(Math.max(bbox.getFloat(6*left+1), bbox.getFloat(6*right+1))); // xmax
+    bbox.add(Math.min(bbox.getFloat(6*left+2), bbox.getFloat(6*right+2))); // ymin
+    bbox.add(Math.max(bbox.getFloat(6*left+3), bbox.getFloat(6*right+3))); // ymax
+    bbox.add(Math.min(bbox.getFloat(6*left+4), bbox.getFloat(6*right+4))); // zmin
+    bbox.add(Math.max(bbox.getFloat(6*left+5), bbox.getFloat(6*right+5))); // zmax
+    return groupIndex;
+  }
+
+  /**
+   * Append the nodes of a subtree built in separate lists, relocating its branch nodes.
+   * Returns the offset that was applied to the node indexes.
+   */
+  private static int append(FloatArrayList bbox, IntArrayList children, FloatArrayList subtreeBbox, IntArrayList subtreeChildren) {
+    int offset = children.size() / 2;
+    bbox.addElements(bbox.size(), subtreeBbox.elements(), 0, subtreeBbox.size());
+    for (int i = 0; i < subtreeChildren.size(); i += 2) {
+      int first = subtreeChildren.getInt(i);
+      int second = subtreeChildren.getInt(i+1);
+      if (first >= 0) {
+        // Branch, leaves store primitive indexes that don't move
+        first += offset;
+        second += offset;
+      }
+      children.add(first);
+      children.add(second);
+    }
+    return offset;
+  }
+
+  private void reportProgress(TaskTracker.Task task, AtomicInteger progress, int size) {
+    int done = progress.addAndGet(size);
+    int before = (int) ((done - size) * 500.0 / triangles.count);
+    int after = (int) (done * 500.0 / triangles.count);
+    if (before != after) {
+      synchronized (task) {
+        task.updateInterval(after + 500, 1);
+      }
+    }
+  }
+
+  /**
+   * Builds a subtree, forking the left halves of the chunks big enough to be worth it.
+   * The nodes are laid out in the same order as {@link #construct(int, int, float[], SplitScratch, FloatArrayList, IntArrayList, TaskTracker.Task, AtomicInteger)}
+   * would have (right subtree, left subtree, then the merge node) so that the tree is the same as the serial one.
+   */
+  private class SubtreeTask extends RecursiveTask<Integer> {
+    private static final long serialVersionUID = 1L;
+
+    private final int from;
+    private final int to;
+    private final float[] bounds;
+    private final FloatArrayList bbox;
+    private final IntArrayList children;
+    private final TaskTracker.Task task;
+    private final AtomicInteger progress;
+
+    SubtreeTask(int from, int to, float[] bounds, FloatArrayList bbox, IntArrayList children, TaskTracker.Task task,
+                AtomicInteger progress) {
+      this.from = from;
+      this.to = to;
+      this.bounds = bounds;
+      this.bbox = bbox;
+      this.children = children;
+      this.task = task;
+      this.progress = progress;
+    }
+
+    @Override
+    protected Integer compute() {
+      // Walk down the right side iteratively so that a chain of unbalanced splits can't overflow the stack
+      Stack<SubtreeTask> pending = new ObjectArrayList<>();
+      SplitScratch scratch = new SplitScratch();
+      int chunkFrom = from;
+      float[] chunkBounds = bounds;
+      while (to - chunkFrom >= PARALLEL_THRESHOLD) {
+        int split = split(chunkFrom, to, chunkBounds, scratch);
+        SubtreeTask left = new SubtreeTask(chunkFrom, split, Arrays.copyOfRange(scratch.childBounds, 0, 6),
+            new FloatArrayList(), new IntArrayList(), task, progress);
+        left.fork();
+        pending.push(left);
+        chunkFrom = split;
+        chunkBounds = Arrays.copyOfRange(scratch.childBounds, 6, 12);
+      }
+
+      int node = construct(chunkFrom, to, chunkBounds, scratch, bbox, children, task, progress);
+      while (!pending.isEmpty()) {
+        SubtreeTask left = pending.pop();
+        int leftRoot = left.join();
+        leftRoot += append(bbox, children, left.bbox, left.children);
+        node = merge(bbox, children, leftRoot, node);
+      }
+      return node;
+    }
+  }
+
+  /**
+   * Surface area of the bounds stored in 6 floats starting at offset, computed in double precision.
+   */
+  static float surfaceArea(float[] bounds, int offset) {
+    double xdiff = (double) bounds[offset+1] - bounds[offset];
+    double ydiff = (double) bounds[offset+3] - bounds[offset+2];
+    double zdiff = (double) bounds[offset+5] - bounds[offset+4];
 
     return (float) (xdiff*ydiff + xdiff*zdiff + ydiff*zdiff);
   }
 
-  private void split(IntIntImmutablePair chunk, Stack<Action> actions, Stack<IntIntImmutablePair> chunks) {
-    AABB bb = triangles.computeAABB(chunk.leftInt(), chunk.rightInt());
-    double xl = bb.xmax - bb.xmin;
-    double yl = bb.ymax - bb.ymin;
-    double zl = bb.zmax - bb.zmin;
+  /**
+   * Buffers reused by the splits of the chunks built by one task, so that splitting a chunk allocates nothing.
+   * They belong to the task rather than to a thread, so that they are freed with the tree builder.
+   */
+  protected static final class SplitScratch {
+    /**
+     * Bounds of the two sides found by the last split, left then right.
+     */
+    final float[] childBounds = new float[12];
+    final float[] sweep = new float[6];
+    final float[] centerBounds = new float[6];
+    final float[] triangleBounds = new float[6];
+    private float[] areas = new float[0];
+    private float[] binBounds = new float[0];
+    private int[] binCounts = new int[0];
+
+    /**
+     * Returns an array of at least {@code size} floats, whose content is undefined.
+     */
+    float[] areas(int size) {
+      if (areas.length < size) {
+        areas = new float[size];
+      }
+      return areas;
+    }
+
+    /**
+     * Returns an array of the empty bounds of {@code count} bins, 6 floats each.
+     */
+    float[] binBounds(int count) {
+      if (binBounds.length < 6*count) {
+        binBounds = new float[6*count];
+      }
+      for (int bin = 0; bin < count; ++bin) {
+        resetBounds(binBounds, 6*bin);
+      }
+      return binBounds;
+    }
+
+    /**
+     * Returns an array of at least {@code count} counts, the first {@code count} of which are zero.
+     */
+    int[] binCounts(int count) {
+      if (binCounts.length < count) {
+        binCounts = new int[count];
+      } else {
+        Arrays.fill(binCounts, 0, count, 0);
+      }
+      return binCounts;
+    }
+  }
+
+  static void resetBounds(float[] bounds, int offset) {
+    for (int i = 0; i < 6; i += 2) {
+      bounds[offset+i] = Float.POSITIVE_INFINITY;
+      bounds[offset+i+1] = Float.NEGATIVE_INFINITY;
+    }
+  }
+
+  /**
+   * Called before the triangles in [from, to) are built into a subtree: once for all the triangles by the
+   * constructor, and once for each degraded subtree by {@link #rebuildDegraded(double)}, before any split.
+   */
+  protected void prepareBuild(int from, int to) {
+  }
+
+  /**
+   * Called once the subtrees prepared by {@link #prepareBuild(int, int)} are built.
+   */
+  protected void releaseBuild() {
+  }
+
+  /**
+   * Sort the chunk [from, to), whose bounds are given, and find the best split position according to the SAH.
+   * Returns the index of the first triangle of the right side and writes the bounds of both sides
+   * to {@code scratch.childBounds}.
+   * This is called from the constructor and may be called concurrently on disjoint chunks, with their own scratch.
+   */
+  protected int split(int from, int to, float[] bounds, SplitScratch scratch) {
+    double xl = (double) bounds[1] - bounds[0];
+    double yl = (double) bounds[3] - bounds[2];
+    double zl = (double) bounds[5] - bounds[4];
     int axis; // 0 - x, 1 - y, 2 - z
     if (xl >= yl && xl >= zl) {
       axis = 0;
@@ -151,113 +727,427 @@ public class PackedSahMaBVH implements BVH {
       axis = 2;
     }
 
-    AABB bounds = new AABB(Float.POSITIVE_INFINITY, Float.NEGATIVE_INFINITY, Float.POSITIVE_INFINITY, Float.NEGATIVE_INFINITY, Float.POSITIVE_INFINITY, Float.NEGATIVE_INFINITY);
-    float cmin = Float.POSITIVE_INFINITY;
-    int split = 0;
-    int end = chunk.rightInt() - chunk.leftInt();
-
-    float[] sl = new float[end];
-    float[] sr = new float[end];
+    int end = to - from;
+    float[] rightAreas = scratch.areas(end);
+    float[] sweep = scratch.sweep;
+    float[] childBounds = scratch.childBounds;
 
-    triangles.sort(chunk.leftInt(), chunk.rightInt(), axis);
-    for (int i = 0; i < end - 1; ++i) {
-      triangles.expandAABB(bounds, chunk.leftInt() + i);
-      sl[i] = surfaceArea(bounds);
-    }
-    bounds = new AABB(Float.POSITIVE_INFINITY, Float.NEGATIVE_INFINITY, Float.POSITIVE_INFINITY, Float.NEGATIVE_INFINITY, Float.POSITIVE_INFINITY, Float.NEGATIVE_INFINITY);
+    triangles.sort(from, to, axis);
+    resetBounds(sweep, 0);
     for (int i = end - 1; i > 0; --i) {
-      triangles.expandAABB(bounds, chunk.leftInt() + i);
-      sr[i - 1] = surfaceArea(bounds);
+      triangles.expandBounds(sweep, 0, from + i);
+      rightAreas[i] = surfaceArea(sweep, 0);
     }
-    for (int i = 0; i < end - 1; ++i) {
-      float c = sl[i] * (i + 1) + sr[i] * (end - i - 1);
+    resetBounds(sweep, 0);
+    float cmin = Float.POSITIVE_INFINITY;
+    int split = 1;
+    for (int i = 1; i < end; ++i) {
+      triangles.expandBounds(sweep, 0, from + i - 1);
+      float c = surfaceArea(sweep, 0) * i + rightAreas[i] * (end - i);
       if (c < cmin) {
         cmin = c;
         split = i;
+        System.arraycopy(sweep, 0, childBounds, 0, 6);
       }
     }
+    if (cmin == Float.POSITIVE_INFINITY) {
+      // No finite cost, the left side was never copied
+      triangles.computeBounds(from, from + split, childBounds, 0);
+    }
+    triangles.computeBounds(from + split, to, childBounds, 6);
 
-    split += 1;
+    return from + split;
+  }
 
-    actions.push(Action.MERGE);
-    chunks.push(new IntIntImmutablePair(chunk.leftInt(), chunk.leftInt()+split));
-    actions.push(Action.PUSH);
+  /**
+   * Write the bounds of both sides of a split to {@code scratch.childBounds}, for the splits that don't sweep them.
+   */
+  protected void computeChildBounds(int from, int split, int to, SplitScratch scratch) {
+    triangles.computeBounds(from, split, scratch.childBounds, 0);
+    triangles.computeBounds(split, to, scratch.childBounds, 6);
+  }
 
-    chunks.push(new IntIntImmutablePair(chunk.leftInt()+split, chunk.rightInt()));
-    actions.push(Action.PUSH);
+  /**
+   * Number of bytes used by the nodes.
+   */
+  public long nodeBytes() {
+    return 4L * bbox.capacity() + 4L * children.capacity();
+  }
+
+  /**
+   * Bytes held by the triangles and the nodes, and estimated peak while building them.
+   * Trees loaded from the cache report their final size as peak.
+   */
+  public MemoryFootprint memoryFootprint() {
+    long offHeap = (triangles.offHeap() ? triangles.geometryBytes() + triangles.uvBytes() : 0)
+        + (bbox.isDirect() ? nodeBytes() : 0);
+    return new MemoryFootprint(triangles.geometryBytes(), triangles.uvBytes(), triangles.materialBytes(),
+        triangles.sourceBytes(), nodeBytes(), 0, Math.max(peakBuildBytes, triangles.bytes() + nodeBytes()), offHeap);
+  }
+
+  /**
+   * Compute the metrics of the quality of the tree, going through all its nodes.
+   */
+  public BvhQuality quality() {
+    int nodeCount = children.capacity() / 2;
+    int[] nodeDepths = new int[nodeCount];
+    nodeDepths[rootIndex] = 1;
+    long[] leafSizes = new long[costModel.maxLeafSize() + 1];
+    double branchAreas = 0;
+    double leafCosts = 0;
+    double overlaps = 0;
+    long leafDepths = 0;
+    long leafCount = 0;
+    // A node is always added after its children, going down the indexes visits the parents first
+    for (int node = rootIndex; node >= 0; --node) {
+      int first = children.get(2*node);
+      int second = children.get(2*node+1);
+      if (first < 0) {
+        if (second >= leafSizes.length) {
+          leafSizes = Arrays.copyOf(leafSizes, second + 1);
+        }
+        ++leafSizes[second];
+        leafCosts += (double) nodeArea(node) * second;
+        leafDepths += nodeDepths[node];
+        ++leafCount;
+      } else {
+        branchAreas += nodeArea(node);
+        overlaps += overlapArea(first, second);
+        nodeDepths[first] = nodeDepths[node] + 1;
+        nodeDepths[second] = nodeDepths[node] + 1;
+      }
+    }
+    double rootArea = nodeArea(rootIndex);
+    double sahCost = rootArea > 0
+        ? (costModel.traversalCost() * branchAreas + costModel.intersectionCost() * leafCosts) / rootArea
+        : 0;
+    return new BvhQuality(nodeCount, sahCost, depth, leafDepths / (double) leafCount, leafSizes,
+        rootArea > 0 ? overlaps / rootArea : 0);
+  }
+
+  private double overlapArea(int first, int second) {
+    double[] extents = new double[3];
+    for (int axis = 0; axis < 3; ++axis) {
+      float min = Math.max(bbox.get(6*first+2*axis), bbox.get(6*second+2*axis));
+      float max = Math.min(bbox.get(6*first+2*axis+1), bbox.get(6*second+2*axis+1));
+      if (max < min) {
+        return 0;
+      }
+      extents[axis] = max - min;
+    }
+    return extents[0]*extents[1] + extents[0]*extents[2] + extents[1]*extents[2];
   }
 
   @Override
   public boolean closestIntersection(Ray ray) {
-    boolean hit = false;
+    int hitIndex = -1; // Last triangle hit, which is the closest one
     int currentNode = rootIndex;
-    IntStack nodesToVisit = new IntArrayList();
+    int[] nodesToVisit = traversalStack.get();
+    int stackSize = 0;
+    // Only read with TraversalStats.ENABLED, dead code for the JIT otherwise
+    int visited = 0;
+    int leaves = 0;
+    int triangleTests = 0;
 
     double rx = 1 / ray.d.x;
     double ry = 1 / ray.d.y;
     double rz = 1 / ray.d.z;
 
     while (true) {
-      int childIndex = children.getInt(currentNode*2);
+      ++visited;
+      int childIndex = children.get(currentNode*2);
       if (childIndex < 0) {
         // Is leaf
         int primFrom = -childIndex - 1;
-        int primTo = primFrom + children.getInt(currentNode*2+1);
+        int primTo = primFrom + children.get(currentNode*2+1);
+        ++leaves;
+        triangleTests += primTo - primFrom;
         for(int triangleIndex = primFrom; triangleIndex < primTo; ++triangleIndex) {
-          hit = triangles.intersect(triangleIndex, ray) | hit;
+          if (intersectDeferred(triangleIndex, ray)) {
+            hitIndex = triangleIndex;
+          }
         }
 
-        if (nodesToVisit.isEmpty()) break;
-        currentNode = nodesToVisit.popInt();
+        if (stackSize == 0) break;
+        currentNode = nodesToVisit[--stackSize];
       } else {
         // Is branch, find closest node
         int bbBaseIndex = 6*childIndex;
         double t1 = quickAabbIntersect(ray,
-                bbox.getFloat(bbBaseIndex),
-                bbox.getFloat(bbBaseIndex+1),
-                bbox.getFloat(bbBaseIndex+2),
-                bbox.getFloat(bbBaseIndex+3),
-                bbox.getFloat(bbBaseIndex+4),
-                bbox.getFloat(bbBaseIndex+5),
+                bbox.get(bbBaseIndex),
+                bbox.get(bbBaseIndex+1),
+                bbox.get(bbBaseIndex+2),
+                bbox.get(bbBaseIndex+3),
+                bbox.get(bbBaseIndex+4),
+                bbox.get(bbBaseIndex+5),
                 rx, ry, rz);
-        int rightChildIndex = children.getInt(currentNode*2+1);
+        int rightChildIndex = children.get(currentNode*2+1);
         bbBaseIndex = 6*rightChildIndex;
         double t2 = quickAabbIntersect(ray,
-                bbox.getFloat(bbBaseIndex),
-                bbox.getFloat(bbBaseIndex+1),
-                bbox.getFloat(bbBaseIndex+2),
-                bbox.getFloat(bbBaseIndex+3),
-                bbox.getFloat(bbBaseIndex+4),
-                bbox.getFloat(bbBaseIndex+5),
+                bbox.get(bbBaseIndex),
+                bbox.get(bbBaseIndex+1),
+                bbox.get(bbBaseIndex+2),
+                bbox.get(bbBaseIndex+3),
+                bbox.get(bbBaseIndex+4),
+                bbox.get(bbBaseIndex+5),
                 rx, ry, rz);
 
         if (t1 > ray.t | t1 == -1) {
           if (t2 > ray.t | t2 == -1) {
-            if (nodesToVisit.isEmpty()) break;
-            currentNode = nodesToVisit.popInt();
+            if (stackSize == 0) break;
+            currentNode = nodesToVisit[--stackSize];
           } else {
             currentNode = rightChildIndex;
           }
         } else if (t2 > ray.t | t2 == -1) {
           currentNode = childIndex;
         } else if (t1 < t2) {
-          nodesToVisit.push(rightChildIndex);
+          nodesToVisit[stackSize++] = rightChildIndex;
+          currentNode = childIndex;
+        } else {
+          nodesToVisit[stackSize++] = childIndex;
+          currentNode = rightChildIndex;
+        }
+      }
+    }
+
+    if (TraversalStats.ENABLED) {
+      TraversalStats.add(1, visited, 2L * (visited - leaves), triangleTests);
+    }
+
+    if (hitIndex < 0) {
+      return false;
+    }
+    finishHit(hitIndex, ray);
+    return true;
+  }
+
+  /**
+   * Find the closest intersection of every ray of a packet, like {@link #closestIntersection(Ray)} would.
+   * The packet goes down the tree with the mask of its rays that hit each node, so the bounds of a node
+   * are read once for all the rays and the children are visited in the order preferred by most of them.
+   * This is faster for coherent rays, like the camera rays of neighbouring pixels.
+   *
+   * @return the mask of the rays that hit something, bit i for the ray i of the packet
+   */
+  public long closestIntersection(RayPacket packet) {
+    if (packet.size == 0) {
+      return 0;
+    }
+    packet.load();
+    Ray[] rays = packet.rays;
+    int[] hitIndexes = packet.hitIndexes;
+    long hits = 0;
+    int currentNode = rootIndex;
+    long currentMask = packet.size == 64 ? -1L : (1L << packet.size) - 1;
+    int[] nodesToVisit = traversalStack.get();
+    long[] masksToVisit = packetMaskStack.get();
+    int stackSize = 0;
+    // Counted for each active ray, only read with TraversalStats.ENABLED
+    long visited = 0;
+    long aabbTests = 0;
+    long triangleTests = 0;
+
+    while (true) {
+      int activeRays = Long.bitCount(currentMask);
+      visited += activeRays;
+      int childIndex = children.get(currentNode*2);
+      if (childIndex < 0) {
+        // Is leaf, intersect each triangle with all the active rays
+        int primFrom = -childIndex - 1;
+        int primTo = primFrom + children.get(currentNode*2+1);
+        triangleTests += (long) activeRays * (primTo - primFrom);
+        for(int triangleIndex = primFrom; triangleIndex < primTo; ++triangleIndex) {
+          for (long mask = currentMask; mask != 0; mask &= mask - 1) {
+            int i = Long.numberOfTrailingZeros(mask);
+            if (intersectDeferred(triangleIndex, rays[i])) {
+              hits |= 1L << i;
+              hitIndexes[i] = triangleIndex;
+            }
+          }
+        }
+
+        if (stackSize == 0) break;
+        --stackSize;
+        currentNode = nodesToVisit[stackSize];
+        currentMask = masksToVisit[stackSize];
+      } else {
+        aabbTests += 2 * activeRays;
+        int rightChildIndex = children.get(currentNode*2+1);
+        int left = 6*childIndex;
+        int right = 6*rightChildIndex;
+        float lxmin = bbox.get(left);
+        float lxmax = bbox.get(left+1);
+        float lymin = bbox.get(left+2);
+        float lymax = bbox.get(left+3);
+        float lzmin = bbox.get(left+4);
+        float lzmax = bbox.get(left+5);
+        float rxmin = bbox.get(right);
+        float rxmax = bbox.get(right+1);
+        float rymin = bbox.get(right+2);
+        float rymax = bbox.get(right+3);
+        float rzmin = bbox.get(right+4);
+        float rzmax = bbox.get(right+5);
+
+        long leftMask = 0;
+        long rightMask = 0;
+        int leftFirstVotes = 0; // Rays hitting both children that hit the left one first, minus the others
+        for (long mask = currentMask; mask != 0; mask &= mask - 1) {
+          int i = Long.numberOfTrailingZeros(mask);
+          double rayT = rays[i].t;
+          double t1 = packet.aabbIntersect(i, lxmin, lxmax, lymin, lymax, lzmin, lzmax);
+          double t2 = packet.aabbIntersect(i, rxmin, rxmax, rymin, rymax, rzmin, rzmax);
+          boolean hitLeft = !(t1 > rayT | t1 == -1);
+          boolean hitRight = !(t2 > rayT | t2 == -1);
+          if (hitLeft) {
+            leftMask |= 1L << i;
+          }
+          if (hitRight) {
+            rightMask |= 1L << i;
+          }
+          if (hitLeft & hitRight) {
+            leftFirstVotes += t1 < t2 ? 1 : -1;
+          }
+        }
+
+        if (leftMask == 0) {
+          if (rightMask == 0) {
+            if (stackSize == 0) break;
+            --stackSize;
+            currentNode = nodesToVisit[stackSize];
+            currentMask = masksToVisit[stackSize];
+          } else {
+            currentNode = rightChildIndex;
+            currentMask = rightMask;
+          }
+        } else if (rightMask == 0) {
+          currentNode = childIndex;
+          currentMask = leftMask;
+        } else if (leftFirstVotes > 0) {
+          nodesToVisit[stackSize] = rightChildIndex;
+          masksToVisit[stackSize++] = rightMask;
           currentNode = childIndex;
+          currentMask = leftMask;
         } else {
-          nodesToVisit.push(childIndex);
+          nodesToVisit[stackSize] = childIndex;
+          masksToVisit[stackSize++] = leftMask;
+          currentNode = rightChildIndex;
+          currentMask = rightMask;
+        }
+      }
+    }
+
+    if (TraversalStats.ENABLED) {
+      TraversalStats.add(packet.size, visited, aabbTests, triangleTests);
+    }
+    for (long mask = hits; mask != 0; mask &= mask - 1) {
+      int i = Long.numberOfTrailingZeros(mask);
+      finishHit(hitIndexes[i], rays[i]);
+    }
+    return hits;
+  }
+
+  /**
+   * Returns true if anything opaque is hit closer than {@code ray.t}, for shadow and visibility rays.
+   * The traversal stops at the first hit found instead of looking for the closest one, the children are not ordered
+   * and the ray is not updated with the color and normal of the hit.
+   */
+  public boolean anyIntersection(Ray ray) {
+    int currentNode = rootIndex;
+    int[] nodesToVisit = traversalStack.get();
+    int stackSize = 0;
+    // Only read with TraversalStats.ENABLED, dead code for the JIT otherwise
+    int visited = 0;
+    int leaves = 0;
+    int triangleTests = 0;
+
+    double rx = 1 / ray.d.x;
+    double ry = 1 / ray.d.y;
+    double rz = 1 / ray.d.z;
+
+    while (true) {
+      ++visited;
+      int childIndex = children.get(currentNode*2);
+      if (childIndex < 0) {
+        // Is leaf
+        int primFrom = -childIndex - 1;
+        int primTo = primFrom + children.get(currentNode*2+1);
+        ++leaves;
+        triangleTests += primTo - primFrom;
+        for(int triangleIndex = primFrom; triangleIndex < primTo; ++triangleIndex) {
+          if (occludes(triangleIndex, ray)) {
+            if (TraversalStats.ENABLED) {
+              TraversalStats.add(1, visited, 2L * (visited - leaves), triangleTests);
+            }
+            return true;
+          }
+        }
+
+        if (stackSize == 0) break;
+        currentNode = nodesToVisit[--stackSize];
+      } else {
+        int bbBaseIndex = 6*childIndex;
+        double t1 = quickAabbIntersect(ray,
+                bbox.get(bbBaseIndex),
+                bbox.get(bbBaseIndex+1),
+                bbox.get(bbBaseIndex+2),
+                bbox.get(bbBaseIndex+3),
+                bbox.get(bbBaseIndex+4),
+                bbox.get(bbBaseIndex+5),
+                rx, ry, rz);
+        int rightChildIndex = children.get(currentNode*2+1);
+        bbBaseIndex = 6*rightChildIndex;
+        double t2 = quickAabbIntersect(ray,
+                bbox.get(bbBaseIndex),
+                bbox.get(bbBaseIndex+1),
+                bbox.get(bbBaseIndex+2),
+                bbox.get(bbBaseIndex+3),
+                bbox.get(bbBaseIndex+4),
+                bbox.get(bbBaseIndex+5),
+                rx, ry, rz);
+
+        boolean visitLeft = !(t1 > ray.t | t1 == -1);
+        boolean visitRight = !(t2 > ray.t | t2 == -1);
+        if (visitLeft) {
+          if (visitRight) {
+            nodesToVisit[stackSize++] = rightChildIndex;
+          }
+          currentNode = childIndex;
+        } else if (visitRight) {
           currentNode = rightChildIndex;
+        } else {
+          if (stackSize == 0) break;
+          currentNode = nodesToVisit[--stackSize];
         }
       }
     }
 
-    return hit;
+    if (TraversalStats.ENABLED) {
+      TraversalStats.add(1, visited, 2L * (visited - leaves), triangleTests);
+    }
+    return false;
+  }
+
+  /**
+   * Intersect a triangle of a leaf, see {@link PackedTriangles#intersectDeferred(int, Ray)}.
+   */
+  protected boolean intersectDeferred(int index, Ray ray) {
+    return triangles.intersectDeferred(index, ray);
+  }
+
+  protected void finishHit(int index, Ray ray) {
+    triangles.finishHit(index, ray);
+  }
+
+  protected boolean occludes(int index, Ray ray) {
+    return triangles.occludes(index, ray);
   }
 
   /**
    * Perform a fast AABB intersection with cached reciprocal direction. This is a branchless approach based on:
    * https://gamedev.stackexchange.com/a/146362
    */
-  public double quickAabbIntersect(Ray ray, float xmin, float xmax, float ymin, float ymax, float zmin, float zmax, double rx, double ry, double rz) {
+  public static double quickAabbIntersect(Ray ray, float xmin, float xmax, float ymin, float ymax, float zmin, float zmax, double rx, double ry, double rz) {
     if (ray.o.x >= xmin && ray.o.x <= xmax && ray.o.y >= ymin && ray.o.y <= ymax && ray.o.z >= zmin && ray.o.z <= zmax) {
       return 0;
     }
@@ -0,0 +1,487 @@
+package dev.ferrand.chunky.bvh.implementation;
+
+import dev.ferrand.chunky.bvh.BvhSettings;
+import dev.ferrand.chunky.bvh.util.OffHeapAllocator;
+import dev.ferrand.chunky.bvh.util.PackedTriangles;
+import it.unimi.dsi.fastutil.floats.FloatArrayList;
+import it.unimi.dsi.fastutil.floats.FloatArrays;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntStack;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import se.llbit.chunky.entity.Entity;
+import se.llbit.math.Vector3;
+import se.llbit.math.bvh.BVH;
+import se.llbit.util.TaskTracker;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.Collection;
+
+/**
+ * BVH with spatial splits (SBVH): besides the object splits of {@link PackedSahMaBVH}, a node can be split
+ * by a plane, the triangles crossing it being referenced by both children with their bounds clipped to each side.
+ * This avoids the heavily overlapping nodes built over long and thin triangles. The references are then packed
+ * in leaf order, a triangle referenced by several leaves is stored several times, up to
+ * {@link BvhSettings#spatialSplitBudget()} more triangles. The tree is traversed like the one of {@link PackedSahMaBVH}.
+ */
+public class PackedSbvhBVH extends PackedSahMaBVH {
+
+  /**
+   * Number of candidate planes along each axis for the spatial splits, plus one.
+   */
+  public static final int SPATIAL_BINS = 32;
+
+  /**
+   * Spatial splits are only tried when the children of the best object split overlap by more than
+   * this fraction of the surface area of the root.
+   */
+  public static final float OVERLAP_THRESHOLD = 1e-5f;
+
+  public static void addImplementation() {
+    Factory.addBVHBuilder(new Factory.BVHBuilder() {
+      @Override
+      public BVH create(Collection<Entity> entities, Vector3 origin, TaskTracker.Task task) {
+        PackedTriangles triangles = packTriangles(entities, origin, task);
+        // The triangles are duplicated in a new order, they can't be written back over the collected ones by the cache
+        return logStats("PACKED_SBVH", build(triangles, task, BvhSettings.spatialSplitBudget(), BvhSettings.storage()));
+      }
+
+      @Override
+      public String getName() {
+        return "PACKED_SBVH";
+      }
+
+      @Override
+      public String getDescription() {
+        return "PACKED_SAH_MA with spatial splits, faster on scenes with long thin triangles at the cost of more memory";
+      }
+    });
+  }
+
+  private PackedSbvhBVH(PackedTriangles triangles, FloatBuffer bbox, IntBuffer children, int rootIndex,
+                        ByteBuffer[] offHeapNodes) {
+    super(triangles, bbox, children, rootIndex, offHeapNodes);
+  }
+
+  /**
+   * Build the tree over the triangles, duplicating at most {@code budget} times their number of triangles.
+   * The tree holds a copy of the triangles in a new order, the given ones are released once copied.
+   *
+   * @param nodeAllocator if not null, the nodes are stored in buffers from this allocator
+   */
+  public static PackedSbvhBVH build(PackedTriangles triangles, TaskTracker.Task task, double budget, OffHeapAllocator nodeAllocator) {
+    Builder builder = new Builder(triangles, task, (int) Math.min(Integer.MAX_VALUE - triangles.count, budget * triangles.count),
+        SahCostModel.fromSettings());
+    int root = builder.construct();
+    PackedTriangles packed = triangles.gather(builder.order.toIntArray());
+    long collectedBytes = triangles.bytes();
+    triangles.release();
+
+    FloatBuffer bbox;
+    IntBuffer children;
+    ByteBuffer[] offHeapNodes = null;
+    if (nodeAllocator != null && 4L * builder.bbox.size() <= Integer.MAX_VALUE) {
+      offHeapNodes = new ByteBuffer[] {
+          nodeAllocator.allocate(4 * builder.bbox.size()),
+          nodeAllocator.allocate(4 * builder.children.size()),
+      };
+      bbox = offHeapNodes[0].asFloatBuffer();
+      bbox.put(builder.bbox.elements(), 0, builder.bbox.size());
+      children = offHeapNodes[1].asIntBuffer();
+      children.put(builder.children.elements(), 0, builder.children.size());
+    } else {
+      builder.bbox.trim();
+      builder.children.trim();
+      bbox = FloatBuffer.wrap(builder.bbox.elements());
+      children = IntBuffer.wrap(builder.children.elements());
+    }
+    PackedSbvhBVH bvh = new PackedSbvhBVH(packed, bbox, children, root, offHeapNodes);
+    // The collected and the gathered triangles are both held while gathering, with the order and the node lists
+    bvh.peakBuildBytes = collectedBytes + packed.bytes() + 4L * builder.order.elements().length
+        + 4L * builder.bbox.elements().length + 4L * builder.children.elements().length;
+    return bvh;
+  }
+
+  /**
+   * Triangles of a node with their bounds, clipped by the spatial splits above it.
+   */
+  private static final class References {
+    final int[] indexes;
+    final float[] bounds; // 6 floats per reference
+
+    References(int[] indexes, float[] bounds) {
+      this.indexes = indexes;
+      this.bounds = bounds;
+    }
+
+    int size() {
+      return indexes.length;
+    }
+
+    float[] union() {
+      float[] union = emptyBounds();
+      for (int i = 0; i < size(); ++i) {
+        expand(union, bounds, 6*i);
+      }
+      return union;
+    }
+  }
+
+  private static final class Builder {
+    private final PackedTriangles triangles;
+    private final TaskTracker.Task task;
+    private final SahCostModel costModel;
+    private int remainingBudget;
+    private float rootArea;
+    private int progress;
+    final IntArrayList order = new IntArrayList(); // triangle referenced at each position of the packed triangles
+    final FloatArrayList bbox = new FloatArrayList();
+    final IntArrayList children = new IntArrayList();
+    private final float[] clipped = new float[6];
+
+    Builder(PackedTriangles triangles, TaskTracker.Task task, int budget, SahCostModel costModel) {
+      this.triangles = triangles;
+      this.costModel = costModel;
+      this.task = task;
+      this.remainingBudget = budget;
+    }
+
+    /**
+     * Build the nodes in the same order as {@link PackedSahMaBVH}, children before their parent.
+     */
+    int construct() {
+      int[] indexes = new int[triangles.count];
+      float[] bounds = new float[6 * triangles.count];
+      for (int i = 0; i < triangles.count; ++i) {
+        indexes[i] = i;
+        for (int j = 0; j < 6; j += 2) {
+          bounds[6*i+j] = Float.POSITIVE_INFINITY;
+          bounds[6*i+j+1] = Float.NEGATIVE_INFINITY;
+        }
+        triangles.expandBounds(bounds, 6*i, i);
+      }
+      References root = new References(indexes, bounds);
+      rootArea = area(root.union(), 0);
+
+      IntStack nodes = new IntArrayList();
+      // A null chunk marks the merge of the two nodes on top of the stack
+      ObjectArrayList<References> chunks = new ObjectArrayList<>();
+      chunks.push(root);
+      while (!chunks.isEmpty()) {
+        References chunk = chunks.pop();
+        if (chunk == null) {
+          int left = nodes.popInt();
+          int right = nodes.popInt();
+          nodes.push(merge(left, right));
+          continue;
+        }
+        References[] split = chunk.size() > 1 ? split(chunk) : null;
+        if (split == null || keepLeaf(chunk, split)) {
+          nodes.push(leaf(chunk));
+        } else {
+          chunks.push(null);
+          chunks.push(split[0]);
+          chunks.push(split[1]);
+        }
+      }
+      return nodes.popInt();
+    }
+
+    /**
+     * Returns true if the chunk is cheaper as a leaf than split, see {@link SahCostModel}.
+     * The triangles duplicated by a discarded spatial split are given back to the budget.
+     */
+    private boolean keepLeaf(References chunk, References[] split) {
+      int count = chunk.size();
+      if (costModel.keepLeaf(count, area(chunk.union(), 0), area(split[0].union(), 0), split[0].size(),
+          area(split[1].union(), 0), split[1].size())) {
+        remainingBudget += split[0].size() + split[1].size() - count;
+        return true;
+      }
+      return false;
+    }
+
+    private int leaf(References chunk) {
+      int leafIndex = children.size() / 2;
+      children.add(-order.size() - 1);
+      children.add(chunk.size());
+      order.addElements(order.size(), chunk.indexes, 0, chunk.size());
+      float[] union = chunk.union();
+      for (int i = 0; i < 6; ++i) {
+        bbox.add(union[i]);
+      }
+
+      int before = (int) (progress * 500.0 / triangles.count);
+      progress = Math.min(triangles.count, progress + chunk.size());
+      int after = (int) (progress * 500.0 / triangles.count);
+      if (before != after) {
+        task.updateInterval(after + 500, 1);
+      }
+      return leafIndex;
+    }
+
+    private int merge(int left, int right) {
+      int nodeIndex = children.size() / 2;
+      children.add(left);
+      children.add(right);
+      for (int i = 0; i < 6; i += 2) {
+        bbox.add(Math.min(bbox.getFloat(6*left+i), bbox.getFloat(6*right+i)));
+        bbox.add(Math.max(bbox.getFloat(6*left+i+1), bbox.getFloat(6*right+i+1)));
+      }
+      return nodeIndex;
+    }
+
+    /**
+     * Split the references in two with the cheapest object or spatial split according to the SAH.
+     */
+    private References[] split(References chunk) {
+      int n = chunk.size();
+      float bestCost = Float.POSITIVE_INFINITY;
+      int[] bestOrder = null;
+      int bestSplit = 0;
+      float[] rightAreas = new float[n];
+      for (int axis = 0; axis < 3; ++axis) {
+        float[] centers = new float[n];
+        int[] sorted = new int[n];
+        for (int i = 0; i < n; ++i) {
+          centers[i] = chunk.bounds[6*i+2*axis] + chunk.bounds[6*i+2*axis+1];
+          sorted[i] = i;
+        }
+        FloatArrays.radixSortIndirect(sorted, centers, true);
+
+        float[] bounds = emptyBounds();
+        for (int i = n - 1; i > 0; --i) {
+          expand(bounds, chunk.bounds, 6*sorted[i]);
+          rightAreas[i] = area(bounds, 0);
+        }
+        bounds = emptyBounds();
+        for (int i = 1; i < n; ++i) {
+          expand(bounds, chunk.bounds, 6*sorted[i-1]);
+          float cost = area(bounds, 0) * i + rightAreas[i] * (n - i);
+          if (cost < bestCost) {
+            bestCost = cost;
+            bestOrder = sorted;
+            bestSplit = i;
+          }
+        }
+      }
+      boolean finiteCost = bestOrder != null;
+      if (!finiteCost) {
+        // No finite cost, for example with huge or NaN bounds: split the references in the middle
+        bestOrder = new int[n];
+        for (int i = 0; i < n; ++i) {
+          bestOrder[i] = i;
+        }
+        bestSplit = n / 2;
+      }
+
+      float[] left = emptyBounds();
+      float[] right = emptyBounds();
+      for (int i = 0; i < n; ++i) {
+        expand(i < bestSplit ? left : right, chunk.bounds, 6*bestOrder[i]);
+      }
+      float[] overlap = new float[6];
+      for (int i = 0; i < 6; i += 2) {
+        overlap[i] = Math.max(left[i], right[i]);
+        overlap[i+1] = Math.min(left[i+1], right[i+1]);
+      }
+      if (finiteCost && remainingBudget > 0 && overlap[0] <= overlap[1] && overlap[2] <= overlap[3] && overlap[4] <= overlap[5]
+          && area(overlap, 0) > OVERLAP_THRESHOLD * rootArea) {
+        References[] spatial = spatialSplit(chunk, bestCost);
+        if (spatial != null) {
+          return spatial;
+        }
+      }
+
+      int[] leftIndexes = new int[bestSplit];
+      float[] leftBounds = new float[6 * bestSplit];
+      int[] rightIndexes = new int[n - bestSplit];
+      float[] rightBounds = new float[6 * (n - bestSplit)];
+      for (int i = 0; i < n; ++i) {
+        int reference = bestOrder[i];
+        if (i < bestSplit) {
+          leftIndexes[i] = chunk.indexes[reference];
+          System.arraycopy(chunk.bounds, 6*reference, leftBounds, 6*i, 6);
+        } else {
+          rightIndexes[i - bestSplit] = chunk.indexes[reference];
+          System.arraycopy(chunk.bounds, 6*reference, rightBounds, 6*(i - bestSplit), 6);
+        }
+      }
+      return new References[] {
+          new References(leftIndexes, leftBounds),
+          new References(rightIndexes, rightBounds),
+      };
+    }
+
+    /**
+     * Find the best plane among the bin boundaries along each axis and split the references by it if it's cheaper
+     * than the object split and within the budget. Returns null otherwise.
+     */
+    private References[] spatialSplit(References chunk, float objectCost) {
+      int n = chunk.size();
+      float[] nodeBounds = chunk.union();
+      float bestCost = objectCost;
+      int bestAxis = -1;
+      float bestPlane = 0;
+      for (int axis = 0; axis < 3; ++axis) {
+        float min = nodeBounds[2*axis];
+        float extent = nodeBounds[2*axis+1] - min;
+        if (!(extent > 0)) {
+          continue;
+        }
+        float[] binBounds = new float[6 * SPATIAL_BINS];
+        for (int bin = 0; bin < SPATIAL_BINS; ++bin) {
+          for (int i = 0; i < 6; i += 2) {
+            binBounds[6*bin+i] = Float.POSITIVE_INFINITY;
+            binBounds[6*bin+i+1] = Float.NEGATIVE_INFINITY;
+          }
+        }
+        int[] entries = new int[SPATIAL_BINS];
+        int[] exits = new int[SPATIAL_BINS];
+        for (int i = 0; i < n; ++i) {
+          float referenceMin = chunk.bounds[6*i+2*axis];
+          float referenceMax = chunk.bounds[6*i+2*axis+1];
+          int firstBin = bin(referenceMin, min, extent);
+          int lastBin = bin(referenceMax, min, extent);
+          if (firstBin == lastBin) {
+            expand(binBounds, 6*firstBin, chunk.bounds, 6*i);
+          } else {
+            for (int bin = firstBin; bin <= lastBin; ++bin) {
+              float binMin = Math.max(referenceMin, plane(bin, min, extent));
+              float binMax = Math.min(referenceMax, plane(bin + 1, min, extent));
+              if (clip(chunk, i, axis, binMin, binMax)) {
+                expand(binBounds, 6*bin, clipped, 0);
+              }
+            }
+          }
+          entries[firstBin]++;
+          exits[lastBin]++;
+        }
+
+        float[] rightAreas = new float[SPATIAL_BINS];
+        int[] rightCounts = new int[SPATIAL_BINS];
+        float[] bounds = emptyBounds();
+        int count = 0;
+        for (int bin = SPATIAL_BINS - 1; bin > 0; --bin) {
+          expand(bounds, 0, binBounds, 6*bin);
+          count += exits[bin];
+          rightAreas[bin] = area(bounds, 0);
+          rightCounts[bin] = count;
+        }
+        bounds = emptyBounds();
+        count = 0;
+        for (int bin = 1; bin < SPATIAL_BINS; ++bin) {
+          expand(bounds, 0, binBounds, 6*(bin-1));
+          count += entries[bin-1];
+          if (count == 0 || rightCounts[bin] == 0 || count + rightCounts[bin] - n > remainingBudget) {
+            continue;
+          }
+          float cost = area(bounds, 0) * count + rightAreas[bin] * rightCounts[bin];
+          if (cost < bestCost) {
+            bestCost = cost;
+            bestAxis = axis;
+            bestPlane = plane(bin, min, extent);
+          }
+        }
+      }
+      if (bestAxis == -1) {
+        return null;
+      }
+
+      IntArrayList leftIndexes = new IntArrayList();
+      FloatArrayList leftBounds = new FloatArrayList();
+      IntArrayList rightIndexes = new IntArrayList();
+      FloatArrayList rightBounds = new FloatArrayList();
+      for (int i = 0; i < n; ++i) {
+        float referenceMin = chunk.bounds[6*i+2*bestAxis];
+        float referenceMax = chunk.bounds[6*i+2*bestAxis+1];
+        if (referenceMax <= bestPlane) {
+          leftIndexes.add(chunk.indexes[i]);
+          leftBounds.addElements(leftBounds.size(), chunk.bounds, 6*i, 6);
+        } else if (referenceMin >= bestPlane) {
+          rightIndexes.add(chunk.indexes[i]);
+          rightBounds.addElements(rightBounds.size(), chunk.bounds, 6*i, 6);
+        } else {
+          // Straddling reference, clipped on each side
+          boolean added = false;
+          if (clip(chunk, i, bestAxis, referenceMin, bestPlane)) {
+            leftIndexes.add(chunk.indexes[i]);
+            leftBounds.addElements(leftBounds.size(), clipped, 0, 6);
+            added = true;
+          }
+          if (clip(chunk, i, bestAxis, bestPlane, referenceMax)) {
+            rightIndexes.add(chunk.indexes[i]);
+            rightBounds.addElements(rightBounds.size(), clipped, 0, 6);
+            added = true;
+          }
+          if (!added) {
+            leftIndexes.add(chunk.indexes[i]);
+            leftBounds.addElements(leftBounds.size(), chunk.bounds, 6*i, 6);
+          }
+        }
+      }
+      int duplicated = leftIndexes.size() + rightIndexes.size() - n;
+      if (leftIndexes.isEmpty() || rightIndexes.isEmpty() || duplicated > remainingBudget
+          || (leftIndexes.size() == n && rightIndexes.size() == n)) {
+        // The binned estimate was wrong, this split would not make progress or is over the budget
+        return null;
+      }
+      remainingBudget -= duplicated;
+      return new References[] {
+          new References(leftIndexes.toIntArray(), leftBounds.toFloatArray()),
+          new References(rightIndexes.toIntArray(), rightBounds.toFloatArray()),
+      };
+    }
+
+    /**
+     * Clip a reference between two planes into {@link #clipped}. Returns false if nothing is left.
+     */
+    private boolean clip(References chunk, int reference, int axis, float min, float max) {
+      if (!triangles.clipBounds(chunk.indexes[reference], axis, min, max, clipped)) {
+        return false;
+      }
+      // The reference may already be clipped along other axes
+      for (int i = 0; i < 6; i += 2) {
+        clipped[i] = Math.max(clipped[i], chunk.bounds[6*reference+i]);
+        clipped[i+1] = Math.min(clipped[i+1], chunk.bounds[6*reference+i+1]);
+        if (clipped[i] > clipped[i+1]) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+
+  private static int bin(float coordinate, float min, float extent) {
+    int bin = (int) ((coordinate - min) * SPATIAL_BINS / extent);
+    return Math.max(0, Math.min(SPATIAL_BINS - 1, bin));
+  }
+
+  private static float plane(int bin, float min, float extent) {
+    return min + extent * bin / SPATIAL_BINS;
+  }
+
+  private static float[] emptyBounds() {
+    return new float[] {Float.POSITIVE_INFINITY, Float.NEGATIVE_INFINITY, Float.POSITIVE_INFINITY,
+        Float.NEGATIVE_INFINITY, Float.POSITIVE_INFINITY, Float.NEGATIVE_INFINITY};
+  }
+
+  private static void expand(float[] bounds, float[] other, int otherOffset) {
+    expand(bounds, 0, other, otherOffset);
+  }
+
+  private static void expand(float[] bounds, int offset, float[] other, int otherOffset) {
+    for (int i = 0; i < 6; i += 2) {
+      bounds[offset+i] = Math.min(bounds[offset+i], other[otherOffset+i]);
+      bounds[offset+i+1] = Math.max(bounds[offset+i+1], other[otherOffset+i+1]);
+    }
+  }
+
+  private static float area(float[] bounds, int offset) {
+    float xdiff = bounds[offset+1] - bounds[offset];
+    float ydiff = bounds[offset+3] - bounds[offset+2];
+    float zdiff = bounds[offset+5] - bounds[offset+4];
+    return xdiff*ydiff + xdiff*zdiff + ydiff*zdiff;
+  }
+}
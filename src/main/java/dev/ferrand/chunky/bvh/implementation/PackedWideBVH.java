@@ -0,0 +1,248 @@
+package dev.ferrand.chunky.bvh.implementation;
+
+import dev.ferrand.chunky.bvh.util.PackedTriangles;
+import it.unimi.dsi.fastutil.floats.FloatArrayList;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import se.llbit.chunky.entity.Entity;
+import se.llbit.math.Ray;
+import se.llbit.math.Vector3;
+import se.llbit.math.bvh.BVH;
+import se.llbit.util.TaskTracker;
+
+import java.nio.FloatBuffer;
+import java.util.Collection;
+
+/**
+ * BVH with up to 4 or 8 children per node, obtained by collapsing the binary tree of {@link PackedSahMaBVH}.
+ * The bounds of the children of a node are stored as a structure of arrays so that they are tested
+ * from a single contiguous block.
+ */
+public class PackedWideBVH implements BVH {
+
+  private static final int EMPTY = Integer.MIN_VALUE;
+
+  public static void addImplementation() {
+    addImplementation(4);
+    addImplementation(8);
+  }
+
+  private static void addImplementation(int width) {
+    Factory.addBVHBuilder(new Factory.BVHBuilder() {
+      @Override
+      public BVH create(Collection<Entity> entities, Vector3 origin, TaskTracker.Task task) {
+        PackedTriangles triangles = PackedSahMaBVH.packTriangles(entities, origin, task);
+        // The binary tree is the same as the one of PACKED_SAH_MA and shares its cache entries
+        PackedSahMaBVH binary = PackedSahMaBVH.logStats("PACKED_SAH_MA_WIDE" + width,
+            BvhCache.getOrBuild("PACKED_SAH_MA", triangles, origin, task, null,
+                () -> new PackedSahMaBVH(triangles, task, true)));
+        return new PackedWideBVH(binary, width);
+      }
+
+      @Override
+      public String getName() {
+        return "PACKED_SAH_MA_WIDE" + width;
+      }
+
+      @Override
+      public String getDescription() {
+        return "PACKED_SAH_MA collapsed to " + width + " children per node for a shallower tree";
+      }
+    });
+  }
+
+  private final PackedTriangles triangles;
+  private final int width;
+  private final float[] bounds; // 6*width floats per node: xmin of every child, then xmax, ymin, ymax, zmin, zmax
+  private final int[] children; // width ints per node: node index, negated and decremented leaf index or EMPTY
+  private final int[] leaves; // 2 ints per leaf: first primitive index and primitive count
+  private final ThreadLocal<TraversalState> traversalState;
+
+  /**
+   * Per thread scratch space of the traversal, so that tracing a ray doesn't allocate.
+   */
+  private static class TraversalState {
+    final int[] stack;
+    final int[] order;
+    final double[] distances;
+
+    TraversalState(int stackSize, int width) {
+      stack = new int[stackSize];
+      order = new int[width];
+      distances = new double[width];
+    }
+  }
+
+  public PackedWideBVH(PackedSahMaBVH binary, int width) {
+    this.triangles = binary.triangles;
+    this.width = width;
+
+    FloatArrayList boundsList = new FloatArrayList();
+    IntArrayList childrenList = new IntArrayList();
+    IntArrayList leavesList = new IntArrayList();
+    // Binary node that each wide node is collapsed from, the wide nodes are created in breadth first order
+    IntArrayList queue = new IntArrayList();
+    IntArrayList depths = new IntArrayList();
+    queue.add(binary.rootIndex);
+    depths.add(1);
+    int depth = 1;
+    int[] slots = new int[width];
+    for (int node = 0; node < queue.size(); ++node) {
+      depth = Math.max(depth, depths.getInt(node));
+      int slotCount = collapse(binary, queue.getInt(node), slots);
+      for (int i = 0; i < width; ++i) {
+        if (i >= slotCount) {
+          childrenList.add(EMPTY);
+        } else if (isLeaf(binary, slots[i])) {
+          childrenList.add(-leavesList.size() / 2 - 1);
+          leavesList.add(-binary.children.get(2*slots[i]) - 1);
+          leavesList.add(binary.children.get(2*slots[i]+1));
+        } else {
+          childrenList.add(queue.size());
+          queue.add(slots[i]);
+          depths.add(depths.getInt(node) + 1);
+        }
+      }
+      for (int j = 0; j < 6; ++j) {
+        for (int i = 0; i < width; ++i) {
+          boundsList.add(i < slotCount ? binary.bbox.get(6*slots[i]+j) : 0);
+        }
+      }
+    }
+    bounds = boundsList.toFloatArray();
+    children = childrenList.toIntArray();
+    leaves = leavesList.toIntArray();
+
+    // Every visited node pops one entry and pushes at most width
+    int stackSize = depth * (width - 1) + 1;
+    traversalState = ThreadLocal.withInitial(() -> new TraversalState(stackSize, width));
+  }
+
+  private static boolean isLeaf(PackedSahMaBVH binary, int node) {
+    return binary.children.get(2*node) < 0;
+  }
+
+  /**
+   * Find the binary nodes that become the children of the wide node made from the given binary node,
+   * by repeatedly opening the branch with the largest surface area.
+   */
+  private int collapse(PackedSahMaBVH binary, int node, int[] slots) {
+    if (isLeaf(binary, node)) {
+      // Only happens for the root of a tree with a single leaf
+      slots[0] = node;
+      return 1;
+    }
+    slots[0] = binary.children.get(2*node);
+    slots[1] = binary.children.get(2*node+1);
+    int slotCount = 2;
+    while (slotCount < width) {
+      int largest = -1;
+      float largestArea = Float.NEGATIVE_INFINITY;
+      for (int i = 0; i < slotCount; ++i) {
+        if (!isLeaf(binary, slots[i])) {
+          float area = surfaceArea(binary.bbox, 6*slots[i]);
+          if (area > largestArea) {
+            largestArea = area;
+            largest = i;
+          }
+        }
+      }
+      if (largest == -1) {
+        break;
+      }
+      int opened = slots[largest];
+      slots[largest] = binary.children.get(2*opened);
+      slots[slotCount++] = binary.children.get(2*opened+1);
+    }
+    return slotCount;
+  }
+
+  private static float surfaceArea(FloatBuffer bbox, int offset) {
+    float xdiff = bbox.get(offset+1) - bbox.get(offset);
+    float ydiff = bbox.get(offset+3) - bbox.get(offset+2);
+    float zdiff = bbox.get(offset+5) - bbox.get(offset+4);
+    return xdiff*ydiff + xdiff*zdiff + ydiff*zdiff;
+  }
+
+  /**
+   * Free the triangles stored off the heap right away, see {@link PackedSahMaBVH#release()}.
+   */
+  public void release() {
+    triangles.release();
+  }
+
+  /**
+   * Number of bytes used by the nodes.
+   */
+  public long nodeBytes() {
+    return 4L * bounds.length + 4L * children.length + 4L * leaves.length;
+  }
+
+  @Override
+  public boolean closestIntersection(Ray ray) {
+    int hitIndex = -1; // Last triangle hit, which is the closest one
+    TraversalState state = traversalState.get();
+    int[] nodesToVisit = state.stack;
+    int[] order = state.order;
+    double[] distances = state.distances;
+    int stackSize = 0;
+
+    double rx = 1 / ray.d.x;
+    double ry = 1 / ray.d.y;
+    double rz = 1 / ray.d.z;
+
+    nodesToVisit[stackSize++] = 0;
+    while (stackSize > 0) {
+      int currentNode = nodesToVisit[--stackSize];
+      if (currentNode < 0) {
+        // Is leaf
+        int leafIndex = -currentNode - 1;
+        int primFrom = leaves[2*leafIndex];
+        int primTo = primFrom + leaves[2*leafIndex+1];
+        for (int triangleIndex = primFrom; triangleIndex < primTo; ++triangleIndex) {
+          if (triangles.intersectDeferred(triangleIndex, ray)) {
+            hitIndex = triangleIndex;
+          }
+        }
+        continue;
+      }
+
+      // Test every child and sort the ones that are hit from the farthest to the closest
+      int bbBaseIndex = 6*width*currentNode;
+      int childBaseIndex = width*currentNode;
+      int hitCount = 0;
+      for (int i = 0; i < width; ++i) {
+        int child = children[childBaseIndex+i];
+        if (child == EMPTY) break;
+        double t = PackedSahMaBVH.quickAabbIntersect(ray,
+                bounds[bbBaseIndex+i],
+                bounds[bbBaseIndex+width+i],
+                bounds[bbBaseIndex+2*width+i],
+                bounds[bbBaseIndex+3*width+i],
+                bounds[bbBaseIndex+4*width+i],
+                bounds[bbBaseIndex+5*width+i],
+                rx, ry, rz);
+        if (t > ray.t | t == -1) continue;
+
+        int j = hitCount++;
+        while (j > 0 && distances[j-1] < t) {
+          distances[j] = distances[j-1];
+          order[j] = order[j-1];
+          --j;
+        }
+        distances[j] = t;
+        order[j] = child;
+      }
+
+      // The closest child ends up on top of the stack
+      for (int i = 0; i < hitCount; ++i) {
+        nodesToVisit[stackSize++] = order[i];
+      }
+    }
+
+    if (hitIndex < 0) {
+      return false;
+    }
+    triangles.finishHit(hitIndex, ray);
+    return true;
+  }
+}
@@ -0,0 +1,87 @@
+package dev.ferrand.chunky.bvh.implementation;
+
+import org.apache.commons.math3.util.FastMath;
+import se.llbit.math.Ray;
+
+/**
+ * Group of up to 64 rays traced together by {@link PackedSahMaBVH#closestIntersection(RayPacket)}, for example
+ * the camera rays of an 8x8 block of pixels. The origins and inverse directions are copied as a structure of arrays
+ * so that the bounds of a node are tested against all the rays of the packet at once.
+ * A packet can be reused for any number of traces, tracing doesn't allocate.
+ */
+public class RayPacket {
+  public static final int MAX_SIZE = 64;
+
+  public final Ray[] rays;
+  int size;
+  final double[] ox = new double[MAX_SIZE];
+  final double[] oy = new double[MAX_SIZE];
+  final double[] oz = new double[MAX_SIZE];
+  final double[] rx = new double[MAX_SIZE];
+  final double[] ry = new double[MAX_SIZE];
+  final double[] rz = new double[MAX_SIZE];
+  final int[] hitIndexes = new int[MAX_SIZE]; // Closest triangle hit by each ray during a trace
+
+  public RayPacket() {
+    rays = new Ray[MAX_SIZE];
+    for (int i = 0; i < MAX_SIZE; ++i) {
+      rays[i] = new Ray();
+    }
+    size = MAX_SIZE;
+  }
+
+  /**
+   * Set the number of rays of the packet that are traced, the first ones of {@link #rays}.
+   */
+  public void setSize(int size) {
+    if (size < 0 || size > MAX_SIZE) {
+      throw new IllegalArgumentException("A packet has between 0 and " + MAX_SIZE + " rays");
+    }
+    this.size = size;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Copy the origins and inverse directions of the rays, after they were set for a new trace.
+   */
+  void load() {
+    for (int i = 0; i < size; ++i) {
+      Ray ray = rays[i];
+      ox[i] = ray.o.x;
+      oy[i] = ray.o.y;
+      oz[i] = ray.o.z;
+      rx[i] = 1 / ray.d.x;
+      ry[i] = 1 / ray.d.y;
+      rz[i] = 1 / ray.d.z;
+    }
+  }
+
+  /**
+   * Same test as {@link PackedSahMaBVH#quickAabbIntersect} for one ray of the packet.
+   */
+  double aabbIntersect(int i, float xmin, float xmax, float ymin, float ymax, float zmin, float zmax) {
+    double x = ox[i];
+    double y = oy[i];
+    double z = oz[i];
+    if (x >= xmin && x <= xmax && y >= ymin && y <= ymax && z >= zmin && z <= zmax) {
+      return 0;
+    }
+
+    double tx1 = (xmin - x) * rx[i];
+    double tx2 = (xmax - x) * rx[i];
+
+    double ty1 = (ymin - y) * ry[i];
+    double ty2 = (ymax - y) * ry[i];
+
+    double tz1 = (zmin - z) * rz[i];
+    double tz2 = (zmax - z) * rz[i];
+
+    double tmin = FastMath.max(FastMath.max(FastMath.min(tx1, tx2), FastMath.min(ty1, ty2)), FastMath.min(tz1, tz2));
+    double tmax = FastMath.min(FastMath.min(FastMath.max(tx1, tx2), FastMath.max(ty1, ty2)), FastMath.max(tz1, tz2));
+
+    return (tmin <= tmax + Ray.OFFSET) & (tmin >= 0) ? tmin : -1;
+  }
+}
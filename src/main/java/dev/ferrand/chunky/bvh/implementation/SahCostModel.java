@@ -0,0 +1,49 @@
+package dev.ferrand.chunky.bvh.implementation;
+
+import dev.ferrand.chunky.bvh.BvhSettings;
+
+/**
+ * Surface area heuristic deciding whether a chunk of triangles is kept as a leaf: a leaf costs one intersection
+ * per triangle, a split costs a traversal plus the intersections of each child weighted by the probability
+ * of hitting it, its surface area relative to the one of the chunk.
+ *
+ * @param traversalCost    cost of traversing a node
+ * @param intersectionCost cost of intersecting a triangle
+ * @param maxLeafSize      chunks with more triangles are always split
+ */
+public record SahCostModel(double traversalCost, double intersectionCost, int maxLeafSize) {
+
+  public SahCostModel {
+    if (!(traversalCost >= 0) || !(intersectionCost >= 0) || maxLeafSize < 1) {
+      throw new IllegalArgumentException("Invalid cost model " + traversalCost + ", " + intersectionCost + ", " + maxLeafSize);
+    }
+  }
+
+  /**
+   * The cost model given by {@link BvhSettings#traversalCost()}, {@link BvhSettings#intersectionCost()}
+   * and {@link BvhSettings#maxLeafSize()}.
+   */
+  public static SahCostModel fromSettings() {
+    return new SahCostModel(BvhSettings.traversalCost(), BvhSettings.intersectionCost(), BvhSettings.maxLeafSize());
+  }
+
+  /**
+   * Returns true if a chunk is better kept as a leaf than split in the two given children.
+   *
+   * @param area      surface area of the chunk
+   * @param leftArea  surface area of the left child
+   * @param rightArea surface area of the right child
+   */
+  public boolean keepLeaf(int count, float area, float leftArea, int leftCount, float rightArea, int rightCount) {
+    if (count > maxLeafSize) {
+      return false;
+    }
+    if (count <= 1 || !(area > 0)) {
+      // Flat chunks have no area to compare, split them only when they are too big
+      return true;
+    }
+    double splitCost = traversalCost
+        + intersectionCost * ((double) leftArea * leftCount + (double) rightArea * rightCount) / area;
+    return intersectionCost * count <= splitCost;
+  }
+}
@@ -0,0 +1,141 @@
+package dev.ferrand.chunky.bvh.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+
+/**
+ * Growable list of floats stored off-heap in segments, indexed by longs like the fastutil big arrays.
+ * Only the last segment may be smaller than 64MB, it is grown by half its size at a time
+ * so that small scenes don't allocate whole segments.
+ */
+public class BigFloatBuffer {
+  private static final int SEGMENT_SHIFT = 24;
+  private static final int SEGMENT_SIZE = 1 << SEGMENT_SHIFT; // 64MB segments
+  private static final int SEGMENT_MASK = SEGMENT_SIZE - 1;
+  private static final int MIN_CAPACITY = 1 << 10;
+
+  private final OffHeapAllocator allocator;
+  private ByteBuffer[] blocks = new ByteBuffer[0]; // Storage of the segments, to release them
+  private FloatBuffer[] segments = new FloatBuffer[0];
+  private long size = 0;
+
+  public BigFloatBuffer(OffHeapAllocator allocator) {
+    this.allocator = allocator;
+  }
+
+  /**
+   * @param expectedSize number of floats allocated up front
+   */
+  public BigFloatBuffer(OffHeapAllocator allocator, long expectedSize) {
+    this(allocator);
+    while (expectedSize > 0) {
+      int capacity = (int) Math.min(SEGMENT_SIZE, Math.max(MIN_CAPACITY, expectedSize));
+      addSegment(capacity);
+      expectedSize -= capacity;
+    }
+  }
+
+  public void add(float value) {
+    int segment = (int) (size >>> SEGMENT_SHIFT);
+    int offset = (int) (size & SEGMENT_MASK);
+    if (segment == segments.length) {
+      addSegment(MIN_CAPACITY);
+    } else if (offset == segments[segment].capacity()) {
+      grow(segment);
+    }
+    segments[segment].put(offset, value);
+    ++size;
+  }
+
+  private void addSegment(int capacity) {
+    blocks = Arrays.copyOf(blocks, blocks.length + 1);
+    segments = Arrays.copyOf(segments, segments.length + 1);
+    blocks[blocks.length - 1] = allocator.allocate(4 * capacity);
+    segments[segments.length - 1] = blocks[blocks.length - 1].asFloatBuffer();
+  }
+
+  private void grow(int segment) {
+    FloatBuffer old = segments[segment];
+    int capacity = (int) Math.min(SEGMENT_SIZE, old.capacity() + (old.capacity() >> 1));
+    ByteBuffer block = allocator.allocate(4 * capacity);
+    FloatBuffer grown = block.asFloatBuffer();
+    grown.put(old.duplicate().clear());
+    OffHeapAllocator.release(blocks[segment]);
+    blocks[segment] = block;
+    segments[segment] = grown;
+  }
+
+  /**
+   * Free the segments right away, the list is empty afterwards.
+   */
+  public void release() {
+    for (ByteBuffer block : blocks) {
+      OffHeapAllocator.release(block);
+    }
+    blocks = new ByteBuffer[0];
+    segments = new FloatBuffer[0];
+    size = 0;
+  }
+
+  public float get(long index) {
+    return segments[(int) (index >>> SEGMENT_SHIFT)].get((int) (index & SEGMENT_MASK));
+  }
+
+  public void set(long index, float value) {
+    segments[(int) (index >>> SEGMENT_SHIFT)].put((int) (index & SEGMENT_MASK), value);
+  }
+
+  public void swap(long indexA, long indexB) {
+    float a = get(indexA);
+    set(indexA, get(indexB));
+    set(indexB, a);
+  }
+
+  /**
+   * Write the floats of the list, see {@link ChannelIO}.
+   */
+  public void write(WritableByteChannel channel) throws IOException {
+    for (int segment = 0; segment < segments.length; ++segment) {
+      ChannelIO.writeFloats(channel, usedPart(segment));
+    }
+  }
+
+  /**
+   * Overwrite the floats of the list, keeping its size.
+   */
+  public void read(ReadableByteChannel channel) throws IOException {
+    for (int segment = 0; segment < segments.length; ++segment) {
+      ChannelIO.readFloats(channel, usedPart(segment));
+    }
+  }
+
+  private FloatBuffer usedPart(int segment) {
+    FloatBuffer part = segments[segment].duplicate();
+    part.clear();
+    part.limit((int) Math.min(SEGMENT_SIZE, size - ((long) segment << SEGMENT_SHIFT)));
+    return part;
+  }
+
+  OffHeapAllocator allocator() {
+    return allocator;
+  }
+
+  /**
+   * Number of bytes allocated, including the unused end of the last segment.
+   */
+  public long bytes() {
+    long bytes = 0;
+    for (FloatBuffer segment : segments) {
+      bytes += 4L * segment.capacity();
+    }
+    return bytes;
+  }
+
+  public long size64() {
+    return size;
+  }
+}
@@ -0,0 +1,143 @@
+package dev.ferrand.chunky.bvh.util;
+
+import it.unimi.dsi.fastutil.BigArrays;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Bulk reads and writes of float and int data on channels, in little endian order.
+ */
+public final class ChannelIO {
+  private static final int CHUNK_BYTES = 1 << 20;
+
+  private ChannelIO() {
+  }
+
+  private static ByteBuffer newChunk() {
+    return ByteBuffer.allocate(CHUNK_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+  }
+
+  public static void writeFully(WritableByteChannel channel, ByteBuffer buffer) throws IOException {
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+  }
+
+  public static void readFully(ReadableByteChannel channel, ByteBuffer buffer) throws IOException {
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer) < 0) {
+        throw new EOFException();
+      }
+    }
+  }
+
+  /**
+   * Write the remaining floats of the buffer, without changing its position.
+   */
+  public static void writeFloats(WritableByteChannel channel, FloatBuffer floats) throws IOException {
+    ByteBuffer chunk = newChunk();
+    FloatBuffer src = floats.duplicate();
+    while (src.hasRemaining()) {
+      int n = Math.min(src.remaining(), CHUNK_BYTES / 4);
+      FloatBuffer part = src.slice();
+      part.limit(n);
+      chunk.clear();
+      chunk.asFloatBuffer().put(part);
+      chunk.limit(4 * n);
+      writeFully(channel, chunk);
+      src.position(src.position() + n);
+    }
+  }
+
+  /**
+   * Fill the remaining floats of the buffer, without changing its position.
+   */
+  public static void readFloats(ReadableByteChannel channel, FloatBuffer floats) throws IOException {
+    ByteBuffer chunk = newChunk();
+    FloatBuffer dst = floats.duplicate();
+    while (dst.hasRemaining()) {
+      int n = Math.min(dst.remaining(), CHUNK_BYTES / 4);
+      chunk.clear().limit(4 * n);
+      readFully(channel, chunk);
+      chunk.flip();
+      dst.put(chunk.asFloatBuffer());
+    }
+  }
+
+  public static void writeInts(WritableByteChannel channel, IntBuffer ints) throws IOException {
+    ByteBuffer chunk = newChunk();
+    IntBuffer src = ints.duplicate();
+    while (src.hasRemaining()) {
+      int n = Math.min(src.remaining(), CHUNK_BYTES / 4);
+      IntBuffer part = src.slice();
+      part.limit(n);
+      chunk.clear();
+      chunk.asIntBuffer().put(part);
+      chunk.limit(4 * n);
+      writeFully(channel, chunk);
+      src.position(src.position() + n);
+    }
+  }
+
+  public static void readInts(ReadableByteChannel channel, IntBuffer ints) throws IOException {
+    ByteBuffer chunk = newChunk();
+    IntBuffer dst = ints.duplicate();
+    while (dst.hasRemaining()) {
+      int n = Math.min(dst.remaining(), CHUNK_BYTES / 4);
+      chunk.clear().limit(4 * n);
+      readFully(channel, chunk);
+      chunk.flip();
+      dst.put(chunk.asIntBuffer());
+    }
+  }
+
+  /**
+   * Write the first {@code length} elements of a big array.
+   */
+  public static void writeFloats(WritableByteChannel channel, float[][] array, long length) throws IOException {
+    for (long position = 0; position < length; ) {
+      float[] segment = array[BigArrays.segment(position)];
+      int displacement = BigArrays.displacement(position);
+      int n = (int) Math.min(segment.length - displacement, length - position);
+      writeFloats(channel, FloatBuffer.wrap(segment, displacement, n));
+      position += n;
+    }
+  }
+
+  public static void readFloats(ReadableByteChannel channel, float[][] array, long length) throws IOException {
+    for (long position = 0; position < length; ) {
+      float[] segment = array[BigArrays.segment(position)];
+      int displacement = BigArrays.displacement(position);
+      int n = (int) Math.min(segment.length - displacement, length - position);
+      readFloats(channel, FloatBuffer.wrap(segment, displacement, n));
+      position += n;
+    }
+  }
+
+  public static void writeInts(WritableByteChannel channel, int[][] array, long length) throws IOException {
+    for (long position = 0; position < length; ) {
+      int[] segment = array[BigArrays.segment(position)];
+      int displacement = BigArrays.displacement(position);
+      int n = (int) Math.min(segment.length - displacement, length - position);
+      writeInts(channel, IntBuffer.wrap(segment, displacement, n));
+      position += n;
+    }
+  }
+
+  public static void readInts(ReadableByteChannel channel, int[][] array, long length) throws IOException {
+    for (long position = 0; position < length; ) {
+      int[] segment = array[BigArrays.segment(position)];
+      int displacement = BigArrays.displacement(position);
+      int n = (int) Math.min(segment.length - displacement, length - position);
+      readInts(channel, IntBuffer.wrap(segment, displacement, n));
+      position += n;
+    }
+  }
+}
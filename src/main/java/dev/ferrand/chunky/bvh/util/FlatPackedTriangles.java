@@ -0,0 +1,145 @@
+package dev.ferrand.chunky.bvh.util;
+
+import it.unimi.dsi.fastutil.BigArrays;
+import it.unimi.dsi.fastutil.floats.FloatBigArrays;
+import se.llbit.chunky.world.Material;
+import se.llbit.math.Ray;
+import se.llbit.math.primitive.TexturedTriangle;
+
+import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Triangles stored as their first vertex and two edges, with their own texture coordinates.
+ */
+public class FlatPackedTriangles extends PackedTriangles {
+  private final float[][] points; // 9 floats per primitive
+  private final float[][] uv; // 6 floats per primitive
+
+  FlatPackedTriangles(float[][] points, float[][] uv, int[][] materialIds, Material[] materialPalette, int count) {
+    super(materialIds, materialPalette, count);
+    this.points = points;
+    this.uv = uv;
+  }
+
+  @Override
+  public long geometryBytes() {
+    return 4L * BigArrays.length(points);
+  }
+
+  @Override
+  public long uvBytes() {
+    return 4L * BigArrays.length(uv);
+  }
+
+  @Override
+  protected float vertex(int index, int vertex, int axis) {
+    float origin = BigArrays.get(points, 9L * index + axis);
+    if (vertex == 0) {
+      return origin;
+    }
+    return BigArrays.get(points, 9L * index + vertex * 3 + axis) + origin;
+  }
+
+  @Override
+  protected float edge(int index, int edge, int axis) {
+    return BigArrays.get(points, 9L * index + edge * 3 + axis);
+  }
+
+  @Override
+  protected float uv(int index, int component) {
+    return BigArrays.get(uv, 6L * index + component);
+  }
+
+  @Override
+  protected void swapData(int indexA, int indexB) {
+    // swap points
+    for(int i = 0; i < 9; ++i) {
+      BigArrays.swap(points, 9L * indexA + i, 9L * indexB + i);
+    }
+
+    // swap uv
+    for(int i = 0; i < 6; ++i) {
+      BigArrays.swap(uv, 6L * indexA + i, 6L * indexB + i);
+    }
+  }
+
+  @Override
+  protected void moveData(int from, int to) {
+    BigArrays.copy(points, 9L*from, points, 9L*to, 9);
+    BigArrays.copy(uv, 6L*from, uv, 6L*to, 6);
+  }
+
+  @Override
+  protected PackedTriangles gatherData(int[] order, int[][] materialIds) {
+    float[][] gatheredPoints = FloatBigArrays.newBigArray(9L * order.length);
+    float[][] gatheredUv = FloatBigArrays.newBigArray(6L * order.length);
+    for (int i = 0; i < order.length; ++i) {
+      BigArrays.copy(points, 9L*order[i], gatheredPoints, 9L*i, 9);
+      BigArrays.copy(uv, 6L*order[i], gatheredUv, 6L*i, 6);
+    }
+    return new FlatPackedTriangles(gatheredPoints, gatheredUv, materialIds, materialPalette, order.length);
+  }
+
+  @Override
+  protected void writeArrays(WritableByteChannel channel) throws IOException {
+    ChannelIO.writeFloats(channel, points, 9L * count);
+    ChannelIO.writeFloats(channel, uv, 6L * count);
+  }
+
+  @Override
+  protected void readArrays(ReadableByteChannel channel) throws IOException {
+    ChannelIO.readFloats(channel, points, 9L * count);
+    ChannelIO.readFloats(channel, uv, 6L * count);
+  }
+
+  @Override
+  protected void setData(int index, TexturedTriangle triangle) {
+    float[] data = {
+        (float) triangle.o.x, (float) triangle.o.y, (float) triangle.o.z,
+        (float) triangle.e1.x, (float) triangle.e1.y, (float) triangle.e1.z,
+        (float) triangle.e2.x, (float) triangle.e2.y, (float) triangle.e2.z,
+        (float) triangle.t1u, (float) triangle.t1v,
+        (float) triangle.t2u, (float) triangle.t2v,
+        (float) triangle.t3u, (float) triangle.t3v,
+    };
+    BigArrays.copyToBig(data, 0, points, 9L*index, 9);
+    BigArrays.copyToBig(data, 9, uv, 6L*index, 6);
+  }
+
+  @Override
+  protected TempTriangle newTempTriangle() {
+    return new TempTriangle() {
+      final float[] pointsTemp = new float[9];
+      final float[] uvTemp = new float[6];
+
+      @Override
+      protected void readData(int index) {
+        BigArrays.copyFromBig(points, 9L * index, pointsTemp, 0, 9);
+        BigArrays.copyFromBig(uv, 6L*index, uvTemp, 0, 6);
+      }
+
+      @Override
+      protected void writeData(int index) {
+        BigArrays.copyToBig(pointsTemp, 0, points, 9L*index, 9);
+        BigArrays.copyToBig(uvTemp, 0, uv, 6L*index, 6);
+      }
+    };
+  }
+
+  @Override
+  protected boolean intersectTriangle(int index, Ray ray, boolean anyHit) {
+    long pointsBaseIndex = 9L * index;
+    return intersect(index, ray, anyHit,
+      BigArrays.get(points, pointsBaseIndex),
+      BigArrays.get(points, pointsBaseIndex + 1),
+      BigArrays.get(points, pointsBaseIndex + 2),
+      BigArrays.get(points, pointsBaseIndex + 3),
+      BigArrays.get(points, pointsBaseIndex + 4),
+      BigArrays.get(points, pointsBaseIndex + 5),
+      BigArrays.get(points, pointsBaseIndex + 6),
+      BigArrays.get(points, pointsBaseIndex + 7),
+      BigArrays.get(points, pointsBaseIndex + 8));
+  }
+}
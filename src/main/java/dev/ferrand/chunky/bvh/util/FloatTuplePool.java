@@ -0,0 +1,98 @@
+package dev.ferrand.chunky.bvh.util;
+
+import it.unimi.dsi.fastutil.HashCommon;
+import it.unimi.dsi.fastutil.floats.FloatBigArrayBigList;
+
+/**
+ * Deduplicated list of tuples of floats, used to build the shared pools of {@link IndexedPackedTriangles}.
+ * Tuples are compared by the bits of their floats.
+ */
+class FloatTuplePool {
+  private final int tupleSize;
+  private final FloatBigArrayBigList values = new FloatBigArrayBigList();
+  private int[] table = new int[1024]; // Index of the tuple plus one, 0 for empty slots
+  private int size = 0;
+
+  FloatTuplePool(int tupleSize) {
+    this.tupleSize = tupleSize;
+  }
+
+  /**
+   * Returns the index of the tuple, adding it if it wasn't in the pool yet.
+   */
+  int add(float[] tuple) {
+    int mask = table.length - 1;
+    int slot = hash(tuple) & mask;
+    while (table[slot] != 0) {
+      int index = table[slot] - 1;
+      if (equals(index, tuple)) {
+        return index;
+      }
+      slot = (slot + 1) & mask;
+    }
+
+    int index = size++;
+    for (int i = 0; i < tupleSize; ++i) {
+      values.add(tuple[i]);
+    }
+    table[slot] = index + 1;
+    if (2 * size > table.length) {
+      rehash();
+    }
+    return index;
+  }
+
+  private boolean equals(int index, float[] tuple) {
+    long base = (long) tupleSize * index;
+    for (int i = 0; i < tupleSize; ++i) {
+      if (Float.floatToIntBits(values.getFloat(base + i)) != Float.floatToIntBits(tuple[i])) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private int hash(float[] tuple) {
+    int hash = 0;
+    for (int i = 0; i < tupleSize; ++i) {
+      hash = hash * 31 + Float.floatToIntBits(tuple[i]);
+    }
+    return HashCommon.mix(hash);
+  }
+
+  private void rehash() {
+    int[] newTable = new int[2 * table.length];
+    int mask = newTable.length - 1;
+    float[] tuple = new float[tupleSize];
+    for (int index = 0; index < size; ++index) {
+      for (int i = 0; i < tupleSize; ++i) {
+        tuple[i] = values.getFloat((long) tupleSize * index + i);
+      }
+      int slot = hash(tuple) & mask;
+      while (newTable[slot] != 0) {
+        slot = (slot + 1) & mask;
+      }
+      newTable[slot] = index + 1;
+    }
+    table = newTable;
+  }
+
+  int size() {
+    return size;
+  }
+
+  void get(int index, float[] tuple) {
+    for (int i = 0; i < tupleSize; ++i) {
+      tuple[i] = values.getFloat((long) tupleSize * index + i);
+    }
+  }
+
+  /**
+   * Returns the values as a big array, the pool must not be used afterwards.
+   */
+  float[][] build() {
+    table = null;
+    values.trim();
+    return values.elements();
+  }
+}
@@ -0,0 +1,143 @@
+package dev.ferrand.chunky.bvh.util;
+
+import it.unimi.dsi.fastutil.BigArrays;
+import it.unimi.dsi.fastutil.ints.IntBigArrays;
+import se.llbit.chunky.world.Material;
+import se.llbit.math.Ray;
+import se.llbit.math.primitive.TexturedTriangle;
+
+import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Triangles referencing deduplicated pools of vertices and texture coordinates.
+ * Neighbouring triangles of entity models share most of their corners, so storing 6 indexes per
+ * triangle takes much less memory than storing 15 floats. Only the indexes are moved when sorting.
+ */
+public class IndexedPackedTriangles extends PackedTriangles {
+  private final float[][] vertices; // 3 floats per vertex
+  private final float[][] uvs; // 2 floats per texture coordinate
+  private final int[][] vertexIndexes; // 3 ints per primitive
+  private final int[][] uvIndexes; // 3 ints per primitive
+
+  IndexedPackedTriangles(float[][] vertices, float[][] uvs, int[][] vertexIndexes, int[][] uvIndexes, int[][] materialIds, Material[] materialPalette, int count) {
+    super(materialIds, materialPalette, count);
+    this.vertices = vertices;
+    this.uvs = uvs;
+    this.vertexIndexes = vertexIndexes;
+    this.uvIndexes = uvIndexes;
+  }
+
+  @Override
+  public long geometryBytes() {
+    return 4L * BigArrays.length(vertices) + 4L * BigArrays.length(vertexIndexes);
+  }
+
+  @Override
+  public long uvBytes() {
+    return 4L * BigArrays.length(uvs) + 4L * BigArrays.length(uvIndexes);
+  }
+
+  @Override
+  protected float vertex(int index, int vertex, int axis) {
+    return BigArrays.get(vertices, 3L * BigArrays.get(vertexIndexes, 3L * index + vertex) + axis);
+  }
+
+  @Override
+  protected float uv(int index, int component) {
+    return BigArrays.get(uvs, 2L * BigArrays.get(uvIndexes, 3L * index + component / 2) + component % 2);
+  }
+
+  @Override
+  protected void swapData(int indexA, int indexB) {
+    for(int i = 0; i < 3; ++i) {
+      BigArrays.swap(vertexIndexes, 3L * indexA + i, 3L * indexB + i);
+      BigArrays.swap(uvIndexes, 3L * indexA + i, 3L * indexB + i);
+    }
+  }
+
+  @Override
+  protected void moveData(int from, int to) {
+    BigArrays.copy(vertexIndexes, 3L*from, vertexIndexes, 3L*to, 3);
+    BigArrays.copy(uvIndexes, 3L*from, uvIndexes, 3L*to, 3);
+  }
+
+  @Override
+  protected PackedTriangles gatherData(int[] order, int[][] materialIds) {
+    // The pools are shared, only the indexes are copied
+    int[][] gatheredVertexIndexes = IntBigArrays.newBigArray(3L * order.length);
+    int[][] gatheredUvIndexes = IntBigArrays.newBigArray(3L * order.length);
+    for (int i = 0; i < order.length; ++i) {
+      BigArrays.copy(vertexIndexes, 3L*order[i], gatheredVertexIndexes, 3L*i, 3);
+      BigArrays.copy(uvIndexes, 3L*order[i], gatheredUvIndexes, 3L*i, 3);
+    }
+    return new IndexedPackedTriangles(vertices, uvs, gatheredVertexIndexes, gatheredUvIndexes, materialIds, materialPalette, order.length);
+  }
+
+  @Override
+  protected void writeArrays(WritableByteChannel channel) throws IOException {
+    ChannelIO.writeFloats(channel, vertices, BigArrays.length(vertices));
+    ChannelIO.writeFloats(channel, uvs, BigArrays.length(uvs));
+    ChannelIO.writeInts(channel, vertexIndexes, 3L * count);
+    ChannelIO.writeInts(channel, uvIndexes, 3L * count);
+  }
+
+  @Override
+  protected void readArrays(ReadableByteChannel channel) throws IOException {
+    ChannelIO.readFloats(channel, vertices, BigArrays.length(vertices));
+    ChannelIO.readFloats(channel, uvs, BigArrays.length(uvs));
+    ChannelIO.readInts(channel, vertexIndexes, 3L * count);
+    ChannelIO.readInts(channel, uvIndexes, 3L * count);
+  }
+
+  @Override
+  protected boolean supportsUpdates() {
+    // The vertices may be shared with triangles of other entities
+    return false;
+  }
+
+  @Override
+  protected void setData(int index, TexturedTriangle triangle) {
+    throw new UnsupportedOperationException("Indexed triangles can't be updated in place");
+  }
+
+  @Override
+  protected TempTriangle newTempTriangle() {
+    return new TempTriangle() {
+      final int[] vertexIndexesTemp = new int[3];
+      final int[] uvIndexesTemp = new int[3];
+
+      @Override
+      protected void readData(int index) {
+        BigArrays.copyFromBig(vertexIndexes, 3L * index, vertexIndexesTemp, 0, 3);
+        BigArrays.copyFromBig(uvIndexes, 3L * index, uvIndexesTemp, 0, 3);
+      }
+
+      @Override
+      protected void writeData(int index) {
+        BigArrays.copyToBig(vertexIndexesTemp, 0, vertexIndexes, 3L * index, 3);
+        BigArrays.copyToBig(uvIndexesTemp, 0, uvIndexes, 3L * index, 3);
+      }
+    };
+  }
+
+  @Override
+  protected boolean intersectTriangle(int index, Ray ray, boolean anyHit) {
+    long indexBase = 3L * index;
+    long o = 3L * BigArrays.get(vertexIndexes, indexBase);
+    long v1 = 3L * BigArrays.get(vertexIndexes, indexBase + 1);
+    long v2 = 3L * BigArrays.get(vertexIndexes, indexBase + 2);
+    float ox = BigArrays.get(vertices, o);
+    float oy = BigArrays.get(vertices, o + 1);
+    float oz = BigArrays.get(vertices, o + 2);
+    return intersect(index, ray, anyHit,
+      ox, oy, oz,
+      BigArrays.get(vertices, v1) - ox,
+      BigArrays.get(vertices, v1 + 1) - oy,
+      BigArrays.get(vertices, v1 + 2) - oz,
+      BigArrays.get(vertices, v2) - ox,
+      BigArrays.get(vertices, v2 + 1) - oy,
+      BigArrays.get(vertices, v2 + 2) - oz);
+  }
+}
@@ -0,0 +1,102 @@
+package dev.ferrand.chunky.bvh.util;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Allocates buffers outside of the Java heap, either as direct buffers or mapped from temporary files.
+ * Mapped buffers let the OS page cache decide what stays in memory, so the data can be larger than the heap.
+ * The buffers are freed by the garbage collector, or right away by {@link #release}.
+ */
+public class OffHeapAllocator {
+  private static final Object UNSAFE;
+  private static final Method INVOKE_CLEANER;
+
+  static {
+    Object unsafe = null;
+    Method invokeCleaner = null;
+    try {
+      Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+      Field field = unsafeClass.getDeclaredField("theUnsafe");
+      field.setAccessible(true);
+      unsafe = field.get(null);
+      invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+    } catch (ReflectiveOperationException | RuntimeException e) {
+      // The buffers are only freed by the garbage collector
+    }
+    UNSAFE = unsafe;
+    INVOKE_CLEANER = invokeCleaner;
+  }
+
+  private final Path directory; // null for direct buffers
+
+  private OffHeapAllocator(Path directory) {
+    this.directory = directory;
+  }
+
+  /**
+   * Direct buffers, limited by {@code -XX:MaxDirectMemorySize} which defaults to the maximum heap size.
+   */
+  public static OffHeapAllocator direct() {
+    return new OffHeapAllocator(null);
+  }
+
+  /**
+   * Buffers mapped from temporary files created in the given directory.
+   */
+  public static OffHeapAllocator mapped(Path directory) {
+    return new OffHeapAllocator(directory);
+  }
+
+  /**
+   * Allocate a zeroed buffer in the native byte order.
+   */
+  public ByteBuffer allocate(int bytes) {
+    ByteBuffer buffer = directory == null ? ByteBuffer.allocateDirect(bytes) : map(bytes);
+    return buffer.order(ByteOrder.nativeOrder());
+  }
+
+  private ByteBuffer map(int bytes) {
+    try {
+      Path file = Files.createTempFile(directory, "chunky-bvh", ".bin");
+      ByteBuffer buffer;
+      try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+        // The mapping stays valid once the channel is closed
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, bytes);
+      }
+      try {
+        Files.delete(file);
+      } catch (IOException e) {
+        // Can't delete a mapped file on some platforms
+        file.toFile().deleteOnExit();
+      }
+      return buffer;
+    } catch (IOException e) {
+      throw new UncheckedIOException("Could not map a temporary file in " + directory, e);
+    }
+  }
+
+  /**
+   * Free a buffer returned by {@link #allocate} without waiting for the garbage collector.
+   * The buffer and its views must not be used anymore, and it must not be released twice.
+   */
+  public static void release(ByteBuffer buffer) {
+    if (INVOKE_CLEANER == null) {
+      return;
+    }
+    try {
+      // Also unmaps the mapped buffers, whose files were already deleted
+      INVOKE_CLEANER.invoke(UNSAFE, buffer);
+    } catch (ReflectiveOperationException e) {
+      // Left to the garbage collector
+    }
+  }
+}
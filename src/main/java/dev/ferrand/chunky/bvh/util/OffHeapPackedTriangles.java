@@ -0,0 +1,173 @@
+package dev.ferrand.chunky.bvh.util;
+
+import se.llbit.chunky.world.Material;
+import se.llbit.math.Ray;
+import se.llbit.math.primitive.TexturedTriangle;
+
+import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Same layout as {@link FlatPackedTriangles} with the points and texture coordinates stored off-heap.
+ */
+public class OffHeapPackedTriangles extends PackedTriangles {
+  private final BigFloatBuffer points; // 9 floats per primitive
+  private final BigFloatBuffer uv; // 6 floats per primitive
+
+  OffHeapPackedTriangles(BigFloatBuffer points, BigFloatBuffer uv, int[][] materialIds, Material[] materialPalette, int count) {
+    super(materialIds, materialPalette, count);
+    this.points = points;
+    this.uv = uv;
+  }
+
+  @Override
+  public long geometryBytes() {
+    return points.bytes();
+  }
+
+  @Override
+  public long uvBytes() {
+    return uv.bytes();
+  }
+
+  @Override
+  public boolean offHeap() {
+    return true;
+  }
+
+  @Override
+  public void release() {
+    points.release();
+    uv.release();
+  }
+
+  @Override
+  protected float vertex(int index, int vertex, int axis) {
+    float origin = points.get(9L * index + axis);
+    if (vertex == 0) {
+      return origin;
+    }
+    return points.get(9L * index + vertex * 3 + axis) + origin;
+  }
+
+  @Override
+  protected float edge(int index, int edge, int axis) {
+    return points.get(9L * index + edge * 3 + axis);
+  }
+
+  @Override
+  protected float uv(int index, int component) {
+    return uv.get(6L * index + component);
+  }
+
+  @Override
+  protected void swapData(int indexA, int indexB) {
+    for(int i = 0; i < 9; ++i) {
+      points.swap(9L * indexA + i, 9L * indexB + i);
+    }
+    for(int i = 0; i < 6; ++i) {
+      uv.swap(6L * indexA + i, 6L * indexB + i);
+    }
+  }
+
+  @Override
+  protected void moveData(int from, int to) {
+    for(int i = 0; i < 9; ++i) {
+      points.set(9L * to + i, points.get(9L * from + i));
+    }
+    for(int i = 0; i < 6; ++i) {
+      uv.set(6L * to + i, uv.get(6L * from + i));
+    }
+  }
+
+  @Override
+  protected PackedTriangles gatherData(int[] order, int[][] materialIds) {
+    BigFloatBuffer gatheredPoints = new BigFloatBuffer(points.allocator(), 9L * order.length);
+    BigFloatBuffer gatheredUv = new BigFloatBuffer(uv.allocator(), 6L * order.length);
+    for (int index : order) {
+      for(int i = 0; i < 9; ++i) {
+        gatheredPoints.add(points.get(9L * index + i));
+      }
+      for(int i = 0; i < 6; ++i) {
+        gatheredUv.add(uv.get(6L * index + i));
+      }
+    }
+    return new OffHeapPackedTriangles(gatheredPoints, gatheredUv, materialIds, materialPalette, order.length);
+  }
+
+  @Override
+  protected void writeArrays(WritableByteChannel channel) throws IOException {
+    points.write(channel);
+    uv.write(channel);
+  }
+
+  @Override
+  protected void readArrays(ReadableByteChannel channel) throws IOException {
+    points.read(channel);
+    uv.read(channel);
+  }
+
+  @Override
+  protected void setData(int index, TexturedTriangle triangle) {
+    points.set(9L*index, (float) triangle.o.x);
+    points.set(9L*index + 1, (float) triangle.o.y);
+    points.set(9L*index + 2, (float) triangle.o.z);
+    points.set(9L*index + 3, (float) triangle.e1.x);
+    points.set(9L*index + 4, (float) triangle.e1.y);
+    points.set(9L*index + 5, (float) triangle.e1.z);
+    points.set(9L*index + 6, (float) triangle.e2.x);
+    points.set(9L*index + 7, (float) triangle.e2.y);
+    points.set(9L*index + 8, (float) triangle.e2.z);
+
+    uv.set(6L*index, (float) triangle.t1u);
+    uv.set(6L*index + 1, (float) triangle.t1v);
+    uv.set(6L*index + 2, (float) triangle.t2u);
+    uv.set(6L*index + 3, (float) triangle.t2v);
+    uv.set(6L*index + 4, (float) triangle.t3u);
+    uv.set(6L*index + 5, (float) triangle.t3v);
+  }
+
+  @Override
+  protected TempTriangle newTempTriangle() {
+    return new TempTriangle() {
+      final float[] pointsTemp = new float[9];
+      final float[] uvTemp = new float[6];
+
+      @Override
+      protected void readData(int index) {
+        for(int i = 0; i < 9; ++i) {
+          pointsTemp[i] = points.get(9L * index + i);
+        }
+        for(int i = 0; i < 6; ++i) {
+          uvTemp[i] = uv.get(6L * index + i);
+        }
+      }
+
+      @Override
+      protected void writeData(int index) {
+        for(int i = 0; i < 9; ++i) {
+          points.set(9L * index + i, pointsTemp[i]);
+        }
+        for(int i = 0; i < 6; ++i) {
+          uv.set(6L * index + i, uvTemp[i]);
+        }
+      }
+    };
+  }
+
+  @Override
+  protected boolean intersectTriangle(int index, Ray ray, boolean anyHit) {
+    long pointsBaseIndex = 9L * index;
+    return intersect(index, ray, anyHit,
+      points.get(pointsBaseIndex),
+      points.get(pointsBaseIndex + 1),
+      points.get(pointsBaseIndex + 2),
+      points.get(pointsBaseIndex + 3),
+      points.get(pointsBaseIndex + 4),
+      points.get(pointsBaseIndex + 5),
+      points.get(pointsBaseIndex + 6),
+      points.get(pointsBaseIndex + 7),
+      points.get(pointsBaseIndex + 8));
+  }
+}
@@ -2,72 +2,358 @@ package dev.ferrand.chunky.bvh.util;
 
 import it.unimi.dsi.fastutil.BigArrays;
 import it.unimi.dsi.fastutil.floats.FloatArrays;
+import it.unimi.dsi.fastutil.floats.FloatBigArrays;
+import it.unimi.dsi.fastutil.ints.IntBigArrays;
+import it.unimi.dsi.fastutil.longs.LongArrays;
+import se.llbit.chunky.entity.Entity;
 import se.llbit.chunky.world.Material;
 import se.llbit.math.AABB;
 import se.llbit.math.Ray;
 import se.llbit.math.Vector2;
-import se.llbit.math.Vector3;
+import se.llbit.math.primitive.Primitive;
 import se.llbit.math.primitive.TexturedTriangle;
 
-import java.util.BitSet;
-public class PackedTriangles {
-  private final float[][] points; // 9 floats per primitive
-  private final float[][] uv; // 6 floats per primitive
-  private final int[][] materialIds; // 1 int per primitive
-  private final BitSet doubleSided; // 1 bit per primitive
-  private final Material[] materialPalette;
+import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.function.IntPredicate;
+
+/**
+ * Triangles packed in big arrays, with the algorithms used to build a BVH over them.
+ * The subclasses decide how the geometry and texture coordinates are stored.
+ * Other primitives are kept as objects, their bounding box takes the place of the triangle.
+ */
+public abstract class PackedTriangles {
+  protected final int[][] materialIds; // 1 int per primitive, the double sided and opaque flags are stored in the highest bits
+  protected final Material[] materialPalette;
   public final int count;
-
-  PackedTriangles(float[][] points, float[][] uv, int[][] materialIds, BitSet doubleSided, Material[] materialPalette, int count) {
-    this.points = points;
-    this.uv = uv;
+  TriangleSources sources; // null unless the builder tracks the entities
+  Primitive[] primitives; // the primitives that are not triangles, null if there are none
+  float[][] bounds; // 6 floats per triangle while a BVH is built over them, see beginBuild()
+  int[] order; // index of the triangle at each position during an indirect build, null otherwise
+
+  /**
+   * Flag set in the material id of double sided triangles.
+   * Keeping it there rather than in a {@code BitSet} means that disjoint ranges can be sorted concurrently.
+   */
+  static final int DOUBLE_SIDED = 0x80000000;
+
+  /**
+   * Flag set in the material id of the primitives that are not triangles, the rest of the id is their index
+   * in {@link #primitives}. Their vertices are two opposite corners of their bounding box.
+   */
+  static final int PRIMITIVE = 0x40000000;
+
+  /**
+   * Flag set in the material id of the triangles whose part of the texture is fully opaque, see {@link TextureOpacity}.
+   * Their texture is only looked up for the closest hit, by {@link #finishHit(int, Ray)}.
+   */
+  static final int OPAQUE = 0x20000000;
+
+  /**
+   * Flags of the material id of a triangle, the rest is the index of its material in the palette.
+   */
+  static final int FLAGS = DOUBLE_SIDED | OPAQUE;
+
+  PackedTriangles(int[][] materialIds, Material[] materialPalette, int count) {
     this.materialIds = materialIds;
-    this.doubleSided = doubleSided;
     this.materialPalette = materialPalette;
     this.count = count;
   }
 
+  /**
+   * Returns the coordinate along an axis of a vertex (0, 1 or 2) of a triangle.
+   */
+  protected abstract float vertex(int index, int vertex, int axis);
+
+  /**
+   * Returns the coordinate along an axis of an edge (1 or 2) of a triangle, from its first vertex
+   * to the given one, as given to {@link #intersectTriangle(int, Ray, boolean)}.
+   */
+  protected float edge(int index, int edge, int axis) {
+    return vertex(index, edge, axis) - vertex(index, 0, axis);
+  }
+
+  /**
+   * Returns the texture coordinates of a triangle in the order t1u, t1v, t2u, t2v, t3u, t3v.
+   */
+  protected abstract float uv(int index, int component);
+
+  /**
+   * Swap the geometry and texture coordinates of two triangles. The material is swapped by the caller.
+   */
+  protected abstract void swapData(int indexA, int indexB);
+
+  /**
+   * Copy the geometry and texture coordinates of a triangle over another one. The material is copied by the caller.
+   */
+  protected abstract void moveData(int from, int to);
+
+  protected abstract TempTriangle newTempTriangle();
+
+  /**
+   * Overwrite the geometry and texture coordinates of a triangle.
+   */
+  protected abstract void setData(int index, TexturedTriangle triangle);
+
+  /**
+   * Number of bytes of the vertices of the triangles, or of the vertex pool and the indexes for indexed triangles.
+   */
+  public abstract long geometryBytes();
+
+  /**
+   * Number of bytes of the texture coordinates, or of their pool and the indexes for indexed triangles.
+   */
+  public abstract long uvBytes();
+
+  /**
+   * Number of bytes of the material ids, which also hold the double sided and opaque flags, and of the palette.
+   */
+  public long materialBytes() {
+    return 4L * BigArrays.length(materialIds) + 4L * materialPalette.length;
+  }
+
+  /**
+   * Number of bytes used to track the entities, 0 if they are not tracked.
+   */
+  public long sourceBytes() {
+    return sources == null ? 0 : sources.bytes();
+  }
+
+  /**
+   * Returns true if the geometry and texture coordinates are stored off the heap.
+   */
+  public boolean offHeap() {
+    return false;
+  }
+
+  /**
+   * Free the off-heap storage right away instead of waiting for the garbage collector.
+   * The triangles can't be used anymore.
+   */
+  public void release() {
+  }
+
+  /**
+   * Number of bytes used by the triangles, not counting the primitives that are not triangles.
+   */
+  public long bytes() {
+    return geometryBytes() + uvBytes() + materialBytes() + sourceBytes();
+  }
+
+  /**
+   * Compute the bounds of every triangle once, so that building a BVH reads 6 floats per triangle instead of
+   * looking up its 9 vertex coordinates at every level. The bounds move with the triangles until {@link #finishBuild()}.
+   * <p>
+   * When {@code indirect}, sorting and partitioning only move the bounds and the index of each triangle, and the
+   * triangles are reordered once by {@link #finishBuild()}. Until then, only their bounds and centers can be read.
+   * This saves moving the whole triangles at every level of the tree.
+   * The build takes {@link #buildCacheBytes(boolean)} more bytes.
+   */
+  public void beginBuild(boolean indirect) {
+    float[][] cache = FloatBigArrays.newBigArray(6L * count);
+    float[] triangleBounds = new float[6];
+    for (int index = 0; index < count; ++index) {
+      vertexBounds(index, triangleBounds);
+      for (int i = 0; i < 6; ++i) {
+        BigArrays.set(cache, 6L*index + i, triangleBounds[i]);
+      }
+    }
+    bounds = cache;
+    order = indirect ? makeIndexes(count) : null;
+  }
+
+  /**
+   * Move the triangles to the order they were sorted in by an indirect build, in a single pass,
+   * and drop the bounds computed by {@link #beginBuild(boolean)}.
+   */
+  public void finishBuild() {
+    int[] finalOrder = order;
+    bounds = null;
+    order = null;
+    if (finalOrder != null) {
+      permute(finalOrder, 0);
+    }
+  }
+
+  /**
+   * Number of bytes taken by {@link #beginBuild(boolean)}.
+   */
+  public long buildCacheBytes(boolean indirect) {
+    return (indirect ? 28L : 24L) * count;
+  }
+
+  /**
+   * Returns where the triangles of each entity are, or null if the builder did not track them.
+   */
+  public TriangleSources sources() {
+    return sources;
+  }
+
+  /**
+   * Replace in place the triangles of an entity, for example when it moved between two frames of an animation.
+   * The entity must have been tracked by the builder and give as many triangles as when it was collected,
+   * with materials that were already used. The BVH built over the triangles must be refitted afterwards.
+   */
+  public void updateEntity(Entity entity, Collection<Primitive> primitives) {
+    if (!supportsUpdates()) {
+      throw new UnsupportedOperationException("These triangles can't be updated in place");
+    }
+    if (sources == null || !sources.contains(entity)) {
+      throw new IllegalArgumentException("The triangles of this entity were not tracked");
+    }
+    if (primitives.size() != sources.triangleCount(entity)) {
+      throw new IllegalArgumentException("The entity has " + primitives.size() + " primitives instead of " + sources.triangleCount(entity));
+    }
+    // Check all the primitives before writing any, so that a rejected update leaves the triangles as they were
+    TextureOpacity textureOpacity = new TextureOpacity();
+    List<Material> palette = Arrays.asList(materialPalette);
+    int[] newMaterialIds = new int[primitives.size()];
+    int i = 0;
+    for (Primitive primitive : primitives) {
+      if (!(primitive instanceof TexturedTriangle)) {
+        throw new IllegalArgumentException("Only the entities made of triangles can be updated");
+      }
+      TexturedTriangle triangle = (TexturedTriangle) primitive;
+      int materialId = palette.indexOf(triangle.material);
+      if (materialId < 0) {
+        throw new IllegalArgumentException("The material " + triangle.material.name + " is not in the palette");
+      }
+      if (triangle.doubleSided) {
+        materialId |= DOUBLE_SIDED;
+      }
+      if (textureOpacity.classify(triangle) == TextureOpacity.OPAQUE) {
+        materialId |= OPAQUE;
+      }
+      newMaterialIds[i++] = materialId;
+    }
+    i = 0;
+    for (Primitive primitive : primitives) {
+      int index = sources.position(entity, i);
+      setData(index, (TexturedTriangle) primitive);
+      BigArrays.set(materialIds, index, newMaterialIds[i++]);
+    }
+  }
+
+  /**
+   * Returns false if {@link #setData} can't overwrite the triangles, then {@link #updateEntity} is not supported.
+   */
+  protected boolean supportsUpdates() {
+    return true;
+  }
+
+  /**
+   * Write the triangles in binary form. They can be read back with {@link #read(ReadableByteChannel)}
+   * into triangles of the same class and count, for example when the same scene is loaded again.
+   * The materials are not written, they are referenced by their index in the palette.
+   */
+  public void write(WritableByteChannel channel) throws IOException {
+    ChannelIO.writeInts(channel, materialIds, count);
+    writeArrays(channel);
+    if (sources != null) {
+      sources.write(channel);
+    }
+  }
+
+  /**
+   * Overwrite the triangles with the ones written by {@link #write(WritableByteChannel)}.
+   */
+  public void read(ReadableByteChannel channel) throws IOException {
+    ChannelIO.readInts(channel, materialIds, count);
+    readArrays(channel);
+    if (sources != null) {
+      sources.read(channel);
+    }
+  }
+
+  /**
+   * Returns new triangles with the same storage made of the triangles at the given indexes, in that order.
+   * A triangle can be given several times, for example when a BVH with spatial splits references it from several leaves.
+   * The entities are not tracked by the new triangles.
+   */
+  public PackedTriangles gather(int[] order) {
+    int[][] gatheredIds = IntBigArrays.newBigArray(order.length);
+    for (int i = 0; i < order.length; ++i) {
+      BigArrays.set(gatheredIds, i, BigArrays.get(materialIds, order[i]));
+    }
+    PackedTriangles gathered = gatherData(order, gatheredIds);
+    gathered.primitives = primitives;
+    return gathered;
+  }
+
+  /**
+   * Create the triangles returned by {@link #gather(int[])} with the given material ids.
+   */
+  protected abstract PackedTriangles gatherData(int[] order, int[][] materialIds);
+
+  protected abstract void writeArrays(WritableByteChannel channel) throws IOException;
+
+  protected abstract void readArrays(ReadableByteChannel channel) throws IOException;
+
   private float[] computeCenters(int from, int to, int axis) {
     final float[] centers = new float[to-from];
     for(int index = from; index < to; ++index) {
-      float origin = BigArrays.get(points, 9L * index + axis);
-      float min = origin;
-      float max = origin;
-      for(int i = 1; i < 3; ++i) {
-        float coordinate = BigArrays.get(points, 9L * index + i * 3 + axis) + origin;
-        min = Math.min(min, coordinate);
-        max = Math.max(max, coordinate);
-      }
-      centers[index-from] = min + max;
+      centers[index-from] = center(index, axis);
     }
     return centers;
   }
+
+  /**
+   * Returns the center of the bounding box of a triangle along an axis, times two.
+   */
+  public float center(int index, int axis) {
+    if (bounds != null) {
+      return BigArrays.get(bounds, 6L*index + 2*axis) + BigArrays.get(bounds, 6L*index + 2*axis + 1);
+    }
+    float min = vertex(index, 0, axis);
+    float max = min;
+    for(int i = 1; i < 3; ++i) {
+      float coordinate = vertex(index, i, axis);
+      min = Math.min(min, coordinate);
+      max = Math.max(max, coordinate);
+    }
+    return min + max;
+  }
   
   private void swap(int indexA, int indexB) {
-    // swap points
-    for(int i = 0; i < 9; ++i) {
-      BigArrays.swap(points, 9L * indexA + i, 9L * indexB + i);
+    if (order != null) {
+      int orderA = order[indexA];
+      order[indexA] = order[indexB];
+      order[indexB] = orderA;
+    } else {
+      swapData(indexA, indexB);
+
+      // swap material and doubleSided
+      BigArrays.swap(materialIds, indexA, indexB);
+      if (sources != null) {
+        sources.swap(indexA, indexB);
+      }
     }
-
-    // swap uv
-    for(int i = 0; i < 6; ++i) {
-      BigArrays.swap(uv, 6L * indexA + i, 6L * indexB + i);
+    if (bounds != null) {
+      for (int i = 0; i < 6; ++i) {
+        BigArrays.swap(bounds, 6L*indexA + i, 6L*indexB + i);
+      }
     }
-
-    // swap material
-    BigArrays.swap(materialIds, indexA, indexB);
-
-    // swap doubleSided
-    boolean isADoubleSided = doubleSided.get(indexA);
-    doubleSided.set(indexA, doubleSided.get(indexB));
-    doubleSided.set(indexB, isADoubleSided);
   }
 
   private void move(int from, int to) {
-    BigArrays.copy(points, 9L*from, points, 9L*to, 9);
-    BigArrays.copy(uv, 6L*from, uv, 6L*to, 6);
-    BigArrays.set(materialIds, to, BigArrays.get(materialIds, from));
-    doubleSided.set(to, doubleSided.get(from));
+    if (order != null) {
+      order[to] = order[from];
+    } else {
+      moveData(from, to);
+      BigArrays.set(materialIds, to, BigArrays.get(materialIds, from));
+      if (sources != null) {
+        sources.move(from, to);
+      }
+    }
+    if (bounds != null) {
+      for (int i = 0; i < 6; ++i) {
+        BigArrays.set(bounds, 6L*to + i, BigArrays.get(bounds, 6L*from + i));
+      }
+    }
   }
 
   public void quickSort(int from, int to, int axis) {
@@ -111,25 +397,52 @@ public class PackedTriangles {
     permute(indexes, from);
   }
   
-  private class TempTriangle {
-    final float[] pointsTemp = new float[9];
-    final float[] uvTemp = new float[6];
+  /**
+   * Copy of a triangle outside of the packed arrays, used to permute the triangles in place.
+   */
+  protected abstract class TempTriangle {
     int materialIdTemp;
-    boolean doubleSidedTemp;
+    int sourceTemp;
+    int orderTemp;
+    final float[] boundsTemp = new float[6];
     
     void readFromPacked(int index) {
-      BigArrays.copyFromBig(points, 9L * index, pointsTemp, 0, 9);
-      BigArrays.copyFromBig(uv, 6L*index, uvTemp, 0, 6);
-      materialIdTemp = BigArrays.get(materialIds, index);
-      doubleSidedTemp = doubleSided.get(index);
+      if (order != null) {
+        orderTemp = order[index];
+      } else {
+        readData(index);
+        materialIdTemp = BigArrays.get(materialIds, index);
+        if (sources != null) {
+          sourceTemp = sources.get(index);
+        }
+      }
+      if (bounds != null) {
+        for (int i = 0; i < 6; ++i) {
+          boundsTemp[i] = BigArrays.get(bounds, 6L*index + i);
+        }
+      }
     }
     
     void writeToPacked(int index) {
-      BigArrays.copyToBig(pointsTemp, 0, points, 9L*index, 9);
-      BigArrays.copyToBig(uvTemp, 0, uv, 6L*index, 6);
-      BigArrays.set(materialIds, index, materialIdTemp);
-      doubleSided.set(index, doubleSidedTemp);
+      if (order != null) {
+        order[index] = orderTemp;
+      } else {
+        writeData(index);
+        BigArrays.set(materialIds, index, materialIdTemp);
+        if (sources != null) {
+          sources.set(index, sourceTemp);
+        }
+      }
+      if (bounds != null) {
+        for (int i = 0; i < 6; ++i) {
+          BigArrays.set(bounds, 6L*index + i, boundsTemp[i]);
+        }
+      }
     }
+
+    protected abstract void readData(int index);
+
+    protected abstract void writeData(int index);
   }
 
   private int[] makeIndexes(int n) {
@@ -158,6 +471,44 @@ public class PackedTriangles {
     permute(indexes, from);
   }
 
+  /**
+   * Sort the triangles in [from, to) by a key given for each of them, for example a Morton code.
+   * The keys, one per triangle starting with the one at {@code from}, are sorted along with the triangles.
+   */
+  public void radixSortByKeys(int from, int to, long[] keys) {
+    final int n = to - from;
+    final int[] indexes = makeIndexes(n);
+
+    LongArrays.radixSortIndirect(indexes, keys, 0, n, true);
+
+    long[] sortedKeys = new long[n];
+    for(int i = 0; i < n; ++i) {
+      sortedKeys[i] = keys[indexes[i]];
+    }
+    System.arraycopy(sortedKeys, 0, keys, 0, n);
+    permute(indexes, from);
+  }
+
+  /**
+   * Reorder the triangles in [from, to) so that the ones accepted by the predicate come first.
+   * Returns the index of the first triangle that was not accepted.
+   */
+  public int partition(int from, int to, IntPredicate isLeft) {
+    int left = from;
+    int right = to - 1;
+    while (true) {
+      while (left <= right && isLeft.test(left))
+        ++left;
+      while (left <= right && !isLeft.test(right))
+        --right;
+      if (left >= right)
+        return left;
+      swap(left, right);
+      ++left;
+      --right;
+    }
+  }
+
   public void sort(int from, int to, int axis) {
     // It has been determined that quickSort is better for n < 2048 and radixSortStable is better for n > 2048
     if(to-from > 2048)
@@ -167,7 +518,7 @@ public class PackedTriangles {
   }
 
   private void permute(int[] indexes, int from) {
-    TempTriangle temp = new TempTriangle();
+    TempTriangle temp = newTempTriangle();
 
     int indexIndex = 0;
     while(indexIndex < indexes.length) {
@@ -198,74 +549,39 @@ public class PackedTriangles {
   }
 
   public AABB computeAABB(int from, int to) {
-    float xmin = Float.POSITIVE_INFINITY;
-    float xmax = Float.NEGATIVE_INFINITY;
-    float ymin = Float.POSITIVE_INFINITY;
-    float ymax = Float.NEGATIVE_INFINITY;
-    float zmin = Float.POSITIVE_INFINITY;
-    float zmax = Float.NEGATIVE_INFINITY;
+    float[] union = new float[6];
+    computeBounds(from, to, union, 0);
+    return new AABB(union[0], union[1], union[2], union[3], union[4], union[5]);
+  }
 
+  /**
+   * Write the bounds (xmin, xmax, ymin, ymax, zmin, zmax) of the triangles in [from, to) in 6 floats starting at offset.
+   */
+  public void computeBounds(int from, int to, float[] union, int offset) {
+    for (int i = 0; i < 6; i += 2) {
+      union[offset+i] = Float.POSITIVE_INFINITY;
+      union[offset+i+1] = Float.NEGATIVE_INFINITY;
+    }
     for (int index = from; index < to; ++index) {
-      long triangleBaseIndex = 9L * index;
-      float originx = BigArrays.get(points, triangleBaseIndex);
-      float originy = BigArrays.get(points, triangleBaseIndex+1);
-      float originz = BigArrays.get(points, triangleBaseIndex+2);
-      if (originx < xmin)
-        xmin = originx;
-      if (originx > xmax)
-        xmax = originx;
-      if (originy < ymin)
-        ymin = originy;
-      if (originy > ymax)
-        ymax = originy;
-      if (originz < zmin)
-        zmin = originz;
-      if (originz > zmax)
-        zmax = originz;
-      for(int i = 1; i < 3; ++i) {
-        long pointBaseIndex = triangleBaseIndex + 3 * i;
-        float x = BigArrays.get(points, pointBaseIndex) + originx;
-        float y = BigArrays.get(points, pointBaseIndex+1) + originy;
-        float z = BigArrays.get(points, pointBaseIndex+2) + originz;
-        if (x < xmin)
-          xmin = x;
-        if (x > xmax)
-          xmax = x;
-        if (y < ymin)
-          ymin = y;
-        if (y > ymax)
-          ymax = y;
-        if (z < zmin)
-          zmin = z;
-        if (z > zmax)
-          zmax = z;
-      }
+      expandBounds(union, offset, index);
     }
-    return new AABB(xmin, xmax, ymin, ymax, zmin, zmax);
   }
 
   public void expandAABB(AABB aabb, int index) {
-    long triangleBaseIndex = 9L * index;
-    float originx = BigArrays.get(points, triangleBaseIndex);
-    float originy = BigArrays.get(points, triangleBaseIndex+1);
-    float originz = BigArrays.get(points, triangleBaseIndex+2);
-    if (originx < aabb.xmin)
-      aabb.xmin = originx;
-    if (originx > aabb.xmax)
-      aabb.xmax = originx;
-    if (originy < aabb.ymin)
-      aabb.ymin = originy;
-    if (originy > aabb.ymax)
-      aabb.ymax = originy;
-    if (originz < aabb.zmin)
-      aabb.zmin = originz;
-    if (originz > aabb.zmax)
-      aabb.zmax = originz;
-    for(int i = 1; i < 3; ++i) {
-      long pointBaseIndex = triangleBaseIndex + 3*i;
-      float x = BigArrays.get(points, pointBaseIndex) + originx;
-      float y = BigArrays.get(points, pointBaseIndex+1) + originy;
-      float z = BigArrays.get(points, pointBaseIndex+2) + originz;
+    if (bounds != null) {
+      long base = 6L * index;
+      aabb.xmin = Math.min(aabb.xmin, BigArrays.get(bounds, base));
+      aabb.xmax = Math.max(aabb.xmax, BigArrays.get(bounds, base + 1));
+      aabb.ymin = Math.min(aabb.ymin, BigArrays.get(bounds, base + 2));
+      aabb.ymax = Math.max(aabb.ymax, BigArrays.get(bounds, base + 3));
+      aabb.zmin = Math.min(aabb.zmin, BigArrays.get(bounds, base + 4));
+      aabb.zmax = Math.max(aabb.zmax, BigArrays.get(bounds, base + 5));
+      return;
+    }
+    for(int i = 0; i < 3; ++i) {
+      float x = vertex(index, i, 0);
+      float y = vertex(index, i, 1);
+      float z = vertex(index, i, 2);
       if (x < aabb.xmin)
         aabb.xmin = x;
       if (x > aabb.xmax)
@@ -281,30 +597,190 @@ public class PackedTriangles {
     }
   }
 
+  /**
+   * Expand the bounds stored in 6 floats (xmin, xmax, ymin, ymax, zmin, zmax) starting at offset
+   * to include a triangle.
+   */
+  public void expandBounds(float[] union, int offset, int index) {
+    if (bounds != null) {
+      long base = 6L * index;
+      for (int i = 0; i < 6; i += 2) {
+        union[offset+i] = Math.min(union[offset+i], BigArrays.get(bounds, base + i));
+        union[offset+i+1] = Math.max(union[offset+i+1], BigArrays.get(bounds, base + i + 1));
+      }
+      return;
+    }
+    for(int i = 0; i < 3; ++i) {
+      float x = vertex(index, i, 0);
+      float y = vertex(index, i, 1);
+      float z = vertex(index, i, 2);
+      union[offset] = Math.min(union[offset], x);
+      union[offset+1] = Math.max(union[offset+1], x);
+      union[offset+2] = Math.min(union[offset+2], y);
+      union[offset+3] = Math.max(union[offset+3], y);
+      union[offset+4] = Math.min(union[offset+4], z);
+      union[offset+5] = Math.max(union[offset+5], z);
+    }
+  }
+
+  /**
+   * Write the bounds (xmin, xmax, ymin, ymax, zmin, zmax) of a triangle in 6 floats,
+   * from the cache of {@link #beginBuild(boolean)} if there is one.
+   */
+  public void triangleBounds(int index, float[] triangleBounds) {
+    if (bounds != null) {
+      long base = 6L * index;
+      for (int i = 0; i < 6; ++i) {
+        triangleBounds[i] = BigArrays.get(bounds, base + i);
+      }
+    } else {
+      vertexBounds(index, triangleBounds);
+    }
+  }
+
+  private void vertexBounds(int index, float[] triangleBounds) {
+    for (int axis = 0; axis < 3; ++axis) {
+      float min = vertex(index, 0, axis);
+      float max = min;
+      for (int i = 1; i < 3; ++i) {
+        float coordinate = vertex(index, i, axis);
+        min = Math.min(min, coordinate);
+        max = Math.max(max, coordinate);
+      }
+      triangleBounds[2*axis] = min;
+      triangleBounds[2*axis+1] = max;
+    }
+  }
+
+  /**
+   * Compute the bounds (xmin, xmax, ymin, ymax, zmin, zmax) of the part of a triangle between two planes
+   * orthogonal to an axis, rounded outwards. Returns false if the triangle doesn't reach between the planes.
+   */
+  public boolean clipBounds(int index, int axis, float min, float max, float[] bounds) {
+    for (int i = 0; i < 6; i += 2) {
+      bounds[i] = Float.POSITIVE_INFINITY;
+      bounds[i+1] = Float.NEGATIVE_INFINITY;
+    }
+    if ((BigArrays.get(materialIds, index) & PRIMITIVE) != 0) {
+      // The vertices are corners of a box
+      expandBounds(bounds, 0, index);
+      bounds[2*axis] = Math.max(bounds[2*axis], min);
+      bounds[2*axis+1] = Math.min(bounds[2*axis+1], max);
+      return bounds[2*axis] <= bounds[2*axis+1];
+    }
+
+    for (int vertex = 0; vertex < 3; ++vertex) {
+      int next = (vertex + 1) % 3;
+      float a = vertex(index, vertex, axis);
+      float b = vertex(index, next, axis);
+      if (a >= min && a <= max) {
+        for (int i = 0; i < 3; ++i) {
+          float coordinate = vertex(index, vertex, i);
+          bounds[2*i] = Math.min(bounds[2*i], coordinate);
+          bounds[2*i+1] = Math.max(bounds[2*i+1], coordinate);
+        }
+      }
+      for (int side = 0; side < 2; ++side) {
+        float plane = side == 0 ? min : max;
+        if ((a < plane && b > plane) || (a > plane && b < plane)) {
+          // The edge crosses the plane
+          double t = ((double) plane - a) / ((double) b - a);
+          for (int i = 0; i < 3; ++i) {
+            if (i == axis) {
+              bounds[2*i] = Math.min(bounds[2*i], plane);
+              bounds[2*i+1] = Math.max(bounds[2*i+1], plane);
+            } else {
+              float from = vertex(index, vertex, i);
+              float coordinate = (float) (from + t * ((double) vertex(index, next, i) - from));
+              bounds[2*i] = Math.min(bounds[2*i], Math.nextDown(coordinate));
+              bounds[2*i+1] = Math.max(bounds[2*i+1], Math.nextUp(coordinate));
+            }
+          }
+        }
+      }
+    }
+    return bounds[0] <= bounds[1];
+  }
+
   public boolean intersect(int index, Ray ray) {
-    // Möller-Trumbore triangle intersection algorithm!
-    Vector3 pvec = new Vector3();
-    Vector3 qvec = new Vector3();
-    Vector3 tvec = new Vector3();
+    if (intersectDeferred(index, ray)) {
+      finishHit(index, ray);
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Same as {@link #intersect(int, Ray)} without setting the color of the ray when the triangle is opaque.
+   * The color of the closest hit must then be set with {@link #finishHit(int, Ray)} once the traversal is done,
+   * so that the texture is looked up once per ray instead of once per hit.
+   */
+  public boolean intersectDeferred(int index, Ray ray) {
+    int materialId = BigArrays.get(materialIds, index);
+    if ((materialId & PRIMITIVE) != 0) {
+      return primitives[materialId & ~PRIMITIVE].intersect(ray);
+    }
+    return intersectTriangle(index, ray, false);
+  }
+
+  /**
+   * Set the color of a ray that hit a primitive with {@link #intersectDeferred(int, Ray)}.
+   */
+  public void finishHit(int index, Ray ray) {
+    int materialId = BigArrays.get(materialIds, index);
+    if ((materialId & (PRIMITIVE | OPAQUE)) == OPAQUE) {
+      ray.color.set(materialPalette[materialId & ~FLAGS].getColor(ray.u, ray.v));
+    }
+  }
 
-    long pointsBaseIndex = 9L * index;
+  /**
+   * Returns true if the ray hits an opaque point of a triangle closer than {@code ray.t}.
+   * Unlike {@link #intersect(int, Ray)} the ray is left as is, except by the primitives that are not triangles.
+   */
+  public boolean occludes(int index, Ray ray) {
+    int materialId = BigArrays.get(materialIds, index);
+    if ((materialId & PRIMITIVE) != 0) {
+      return primitives[materialId & ~PRIMITIVE].intersect(ray);
+    }
+    return intersectTriangle(index, ray, true);
+  }
 
-    float e1x = BigArrays.get(points, pointsBaseIndex + 3);
-    float e1y = BigArrays.get(points, pointsBaseIndex + 4);
-    float e1z = BigArrays.get(points, pointsBaseIndex + 5);
-    float e2x = BigArrays.get(points, pointsBaseIndex + 6);
-    float e2y = BigArrays.get(points, pointsBaseIndex + 7);
-    float e2z = BigArrays.get(points, pointsBaseIndex + 8);
+  /**
+   * Returns true if the triangles have other primitives, which can't be written by {@link #write(WritableByteChannel)}.
+   */
+  public boolean hasPrimitives() {
+    return primitives != null;
+  }
+
+  /**
+   * @param anyHit if true, only check that the triangle is hit without updating the ray, else update it
+   *               except for the color of opaque triangles, see {@link #finishHit(int, Ray)}
+   */
+  protected abstract boolean intersectTriangle(int index, Ray ray, boolean anyHit);
+
+  /**
+   * Intersect a triangle given by its first vertex and its two edges.
+   *
+   * @param anyHit if true, return as soon as an opaque hit is found without updating the ray
+   */
+  protected final boolean intersect(int index, Ray ray, boolean anyHit,
+                                    float ox, float oy, float oz,
+                                    float e1x, float e1y, float e1z,
+                                    float e2x, float e2y, float e2z) {
+    // Möller-Trumbore triangle intersection algorithm!
+    // Everything is kept in scalar locals so that nothing is allocated per test.
+    double dx = ray.d.x;
+    double dy = ray.d.y;
+    double dz = ray.d.z;
 
     // pvec.cross(ray.d, e2);
-    pvec.set(
-      ray.d.y * e2z - ray.d.z * e2y,
-      ray.d.z * e2x - ray.d.x * e2z,
-      ray.d.x * e2y - ray.d.y * e2x
-    );
+    double px = dy * e2z - dz * e2y;
+    double py = dz * e2x - dx * e2z;
+    double pz = dx * e2y - dy * e2x;
     // double det = e1.dot(pvec);
-    double det = pvec.x * e1x + pvec.y * e1y + pvec.z * e1z;
-    if (doubleSided.get(index)) {
+    double det = px * e1x + py * e1y + pz * e1z;
+    int materialId = BigArrays.get(materialIds, index);
+    if ((materialId & DOUBLE_SIDED) != 0) {
       if (det > -Ray.EPSILON && det < Ray.EPSILON) {
         return false;
       }
@@ -313,60 +789,33 @@ public class PackedTriangles {
     }
     double recip = 1 / det;
 
-    float ox = BigArrays.get(points, pointsBaseIndex);
-    float oy = BigArrays.get(points, pointsBaseIndex + 1);
-    float oz = BigArrays.get(points, pointsBaseIndex + 2);
-
     // tvec.sub(ray.o, o);
-    tvec.set(
-      ray.o.x - ox,
-      ray.o.y - oy,
-      ray.o.z - oz
-    );
+    double tx = ray.o.x - ox;
+    double ty = ray.o.y - oy;
+    double tz = ray.o.z - oz;
 
-    double u = tvec.dot(pvec) * recip;
+    double u = (tx * px + ty * py + tz * pz) * recip;
 
     if (u < 0 || u > 1) {
       return false;
     }
 
     // qvec.cross(tvec, e1);
-    qvec.set(
-      tvec.y * e1z - tvec.z * e1y,
-      tvec.z * e1x - tvec.x * e1z,
-      tvec.x * e1y - tvec.y * e1x
-    );
+    double qx = ty * e1z - tz * e1y;
+    double qy = tz * e1x - tx * e1z;
+    double qz = tx * e1y - ty * e1x;
 
-    double v = ray.d.dot(qvec) * recip;
+    double v = (dx * qx + dy * qy + dz * qz) * recip;
 
     if (v < 0 || (u + v) > 1) {
       return false;
     }
 
     // double t = e2.dot(qvec) * recip;
-    double t = (e2x * qvec.x + e2y * qvec.y + e2z * qvec.z) * recip;
-
-    if (t > Ray.EPSILON && t < ray.t) {
-      double w = 1 - u - v;
-
-      long uvBaseIndex = 6L * index;
-      float t1u = BigArrays.get(uv, uvBaseIndex);
-      float t1v = BigArrays.get(uv, uvBaseIndex + 1);
-      float t2u = BigArrays.get(uv, uvBaseIndex + 2);
-      float t2v = BigArrays.get(uv, uvBaseIndex + 3);
-      float t3u = BigArrays.get(uv, uvBaseIndex + 4);
-      float t3v = BigArrays.get(uv, uvBaseIndex + 5);
-
-      ray.u = t1u * u + t2u * v + t3u * w;
-      ray.v = t1v * u + t2v * v + t3v * w;
-
-      Material material = materialPalette[BigArrays.get(materialIds, index)];
-      float[] color = material.getColor(ray.u, ray.v);
-      if (color[3] > 0) {
-        ray.color.set(color);
-        ray.setCurrentMaterial(material);
-        ray.t = t;
+    double t = (e2x * qx + e2y * qy + e2z * qz) * recip;
 
+    if (t > Ray.EPSILON && t < ray.t && acceptHit(index, materialId, ray, anyHit, t, u, v)) {
+      if (!anyHit) {
         float nx = e2y * e1z - e2z * e1y;
         float ny = e2z * e1x - e2x * e1z;
         float nz = e2x * e1y - e2y * e1x;
@@ -374,8 +823,50 @@ public class PackedTriangles {
 
         // n.cross(e2, e1);
         ray.setNormal(nx * n_invr, ny * n_invr, nz * n_invr);
-        return true;
       }
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Check the texture of a triangle at a hit found at distance {@code t} and barycentric coordinates {@code u}
+   * (along the first edge) and {@code v} (along the second edge). Unless {@code anyHit} is true, an accepted hit
+   * updates the ray with everything but the normal, which is left to the caller.
+   */
+  final boolean acceptHit(int index, int materialId, Ray ray, boolean anyHit, double t, double u, double v) {
+    boolean opaque = (materialId & OPAQUE) != 0;
+    if (opaque && anyHit) {
+      return true;
+    }
+    double w = 1 - u - v;
+
+    float t1u = uv(index, 0);
+    float t1v = uv(index, 1);
+    float t2u = uv(index, 2);
+    float t2v = uv(index, 3);
+    float t3u = uv(index, 4);
+    float t3v = uv(index, 5);
+
+    double textureU = t1u * u + t2u * v + t3u * w;
+    double textureV = t1v * u + t2v * v + t3v * w;
+
+    Material material = materialPalette[materialId & ~FLAGS];
+    float[] color = opaque ? null : material.getColor(textureU, textureV);
+    if (opaque || color[3] > 0) {
+      if (!anyHit) {
+        ray.u = textureU;
+        ray.v = textureV;
+        if (!opaque) {
+          ray.color.set(color);
+        }
+        ray.setCurrentMaterial(material);
+        ray.t = t;
+      }
+      return true;
+    }
+    if (TraversalStats.ENABLED) {
+      TraversalStats.alphaRejection();
     }
     return false;
   }
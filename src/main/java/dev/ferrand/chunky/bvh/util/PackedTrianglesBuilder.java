@@ -4,63 +4,343 @@ import it.unimi.dsi.fastutil.floats.FloatBigArrayBigList;
 import it.unimi.dsi.fastutil.ints.IntBigArrayBigList;
 import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
 import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import se.llbit.chunky.entity.Entity;
 import se.llbit.chunky.world.Material;
+import se.llbit.math.AABB;
+import se.llbit.math.primitive.Primitive;
 import se.llbit.math.primitive.TexturedTriangle;
 
-import java.util.BitSet;
-
 public class PackedTrianglesBuilder {
-  private final FloatBigArrayBigList points = new FloatBigArrayBigList(); // 9 floats per primitive
-  private final FloatBigArrayBigList uv = new FloatBigArrayBigList(); // 6 floats per primitive
-  private final IntBigArrayBigList materialIds = new IntBigArrayBigList(); // 1 int per primitive
-  private final BitSet doubleSided = new BitSet(); // 1 bit per primitive
+  private final boolean indexed;
+  // Flat storage
+  private final FloatBigArrayBigList points; // 9 floats per primitive
+  private final FloatBigArrayBigList uv; // 6 floats per primitive
+  // Flat storage off-heap
+  private final BigFloatBuffer offHeapPoints; // 9 floats per primitive
+  private final BigFloatBuffer offHeapUv; // 6 floats per primitive
+  // Indexed storage
+  private final FloatTuplePool vertices; // 3 floats per vertex
+  private final FloatTuplePool uvs; // 2 floats per texture coordinate
+  private final IntBigArrayBigList vertexIndexes; // 3 ints per primitive
+  private final IntBigArrayBigList uvIndexes; // 3 ints per primitive
+  private final float[] tuple = new float[3];
+
+  private final IntBigArrayBigList materialIds = new IntBigArrayBigList(); // 1 int per primitive, with the double sided and opaque flags
   private final ObjectArrayList<Material> materialPalette = new ObjectArrayList<>();
+  private final ObjectArrayList<Primitive> primitives = new ObjectArrayList<>(); // the primitives that are not triangles
   private final Object2IntOpenHashMap<Material> materialToIdx = new Object2IntOpenHashMap<>();
   private int count = 0;
+  private TriangleSources sources = null;
+  private final TextureOpacity textureOpacity = new TextureOpacity();
+
+  public PackedTrianglesBuilder() {
+    this(false);
+  }
+
+  /**
+   * @param indexed if true, build {@link IndexedPackedTriangles} where the vertices and texture coordinates
+   *                are deduplicated, else build {@link FlatPackedTriangles}
+   */
+  public PackedTrianglesBuilder(boolean indexed) {
+    this(indexed, null);
+  }
+
+  /**
+   * Build {@link OffHeapPackedTriangles} with buffers from the given allocator.
+   */
+  public PackedTrianglesBuilder(OffHeapAllocator allocator) {
+    this(false, allocator);
+  }
+
+  private PackedTrianglesBuilder(boolean indexed, OffHeapAllocator allocator) {
+    this.indexed = indexed;
+    if (allocator != null) {
+      offHeapPoints = new BigFloatBuffer(allocator);
+      offHeapUv = new BigFloatBuffer(allocator);
+    } else {
+      offHeapPoints = null;
+      offHeapUv = null;
+    }
+    if (indexed) {
+      points = null;
+      uv = null;
+      vertices = new FloatTuplePool(3);
+      uvs = new FloatTuplePool(2);
+      vertexIndexes = new IntBigArrayBigList();
+      uvIndexes = new IntBigArrayBigList();
+    } else {
+      points = allocator == null ? new FloatBigArrayBigList() : null;
+      uv = allocator == null ? new FloatBigArrayBigList() : null;
+      vertices = null;
+      uvs = null;
+      vertexIndexes = null;
+      uvIndexes = null;
+    }
+  }
+
+  /**
+   * Start collecting the triangles of an entity. Once this was called the triangles are tracked through the sorts
+   * so that the ones of an entity can be updated with {@link PackedTriangles#updateEntity}.
+   */
+  public void startEntity(Entity entity) {
+    if (sources == null) {
+      sources = new TriangleSources();
+    }
+    sources.startEntity(entity, count);
+  }
 
   public void addTriangle(TexturedTriangle triangle) {
-    // TODO Is it better to copy to an array and call addElements
-    points.add((float) triangle.o.x);
-    points.add((float) triangle.o.y);
-    points.add((float) triangle.o.z);
-    points.add((float) triangle.e1.x);
-    points.add((float) triangle.e1.y);
-    points.add((float) triangle.e1.z);
-    points.add((float) triangle.e2.x);
-    points.add((float) triangle.e2.y);
-    points.add((float) triangle.e2.z);
-
-    uv.add((float) triangle.t1u);
-    uv.add((float) triangle.t1v);
-    uv.add((float) triangle.t2u);
-    uv.add((float) triangle.t2v);
-    uv.add((float) triangle.t3u);
-    uv.add((float) triangle.t3v);
-
-    if(materialToIdx.containsKey(triangle.material)) {
-      materialIds.add(materialToIdx.getInt(triangle.material));
+    int opacity = textureOpacity.classify(triangle);
+    if (opacity == TextureOpacity.TRANSPARENT && sources == null) {
+      // Never visible. The triangles of tracked entities are all kept so that they can be updated.
+      return;
+    }
+    addGeometry(triangle.o.x, triangle.o.y, triangle.o.z,
+        triangle.e1.x, triangle.e1.y, triangle.e1.z,
+        triangle.e2.x, triangle.e2.y, triangle.e2.z,
+        triangle.t1u, triangle.t1v, triangle.t2u, triangle.t2v, triangle.t3u, triangle.t3v);
+
+    int materialId = materialIndex(triangle.material);
+    if (triangle.doubleSided) {
+      materialId |= PackedTriangles.DOUBLE_SIDED;
+    }
+    if (opacity == TextureOpacity.OPAQUE) {
+      materialId |= PackedTriangles.OPAQUE;
+    }
+    materialIds.add(materialId);
+
+    ++count;
+  }
+
+  private int materialIndex(Material material) {
+    int materialIndex;
+    if(materialToIdx.containsKey(material)) {
+      materialIndex = materialToIdx.getInt(material);
     } else {
-      int materialIndex = materialPalette.size();
-      materialPalette.add(triangle.material);
-      materialToIdx.put(triangle.material, materialIndex);
-      materialIds.add(materialIndex);
+      materialIndex = materialPalette.size();
+      materialPalette.add(material);
+      materialToIdx.put(material, materialIndex);
     }
+    return materialIndex;
+  }
 
-    doubleSided.set(count, triangle.doubleSided);
+  /**
+   * Returns an empty builder to collect a part of the primitives on another thread, see {@link #append}.
+   * Shards always store their triangles on the heap.
+   */
+  public PackedTrianglesBuilder newShard() {
+    return new PackedTrianglesBuilder(indexed);
+  }
+
+  /**
+   * Append the primitives collected by a shard of this builder, remapping its material ids to this palette.
+   * Appending the shards in the order of their entities gives the same triangles as collecting them here.
+   */
+  public void append(PackedTrianglesBuilder shard) {
+    if (shard.indexed != indexed || shard.offHeapPoints != null) {
+      throw new IllegalArgumentException("Not a shard of this builder");
+    }
+
+    int[] materialRemap = new int[shard.materialPalette.size()];
+    for (int i = 0; i < materialRemap.length; ++i) {
+      materialRemap[i] = materialIndex(shard.materialPalette.get(i));
+    }
+    for (long i = 0; i < shard.materialIds.size64(); ++i) {
+      int materialId = shard.materialIds.getInt(i);
+      if ((materialId & PackedTriangles.PRIMITIVE) != 0) {
+        materialIds.add(PackedTriangles.PRIMITIVE | (primitives.size() + (materialId & ~PackedTriangles.PRIMITIVE)));
+      } else {
+        materialIds.add((materialId & PackedTriangles.FLAGS) | materialRemap[materialId & ~PackedTriangles.FLAGS]);
+      }
+    }
+    primitives.addAll(shard.primitives);
+
+    if (indexed) {
+      int[] vertexRemap = remap(shard.vertices, vertices, 3);
+      int[] uvRemap = remap(shard.uvs, uvs, 2);
+      for (long i = 0; i < shard.vertexIndexes.size64(); ++i) {
+        vertexIndexes.add(vertexRemap[shard.vertexIndexes.getInt(i)]);
+        uvIndexes.add(uvRemap[shard.uvIndexes.getInt(i)]);
+      }
+    } else {
+      for (long i = 0; i < shard.points.size64(); ++i) {
+        if (offHeapPoints != null) {
+          offHeapPoints.add(shard.points.getFloat(i));
+        } else {
+          points.add(shard.points.getFloat(i));
+        }
+      }
+      for (long i = 0; i < shard.uv.size64(); ++i) {
+        if (offHeapUv != null) {
+          offHeapUv.add(shard.uv.getFloat(i));
+        } else {
+          uv.add(shard.uv.getFloat(i));
+        }
+      }
+    }
+
+    if (shard.sources != null) {
+      if (sources == null) {
+        sources = new TriangleSources();
+      }
+      sources.append(shard.sources, count);
+    }
+    count += shard.count;
+  }
+
+  private static int[] remap(FloatTuplePool from, FloatTuplePool to, int tupleSize) {
+    int[] remap = new int[from.size()];
+    float[] tuple = new float[tupleSize];
+    for (int i = 0; i < remap.length; ++i) {
+      from.get(i, tuple);
+      remap[i] = to.add(tuple);
+    }
+    return remap;
+  }
+
+  /**
+   * Add a primitive of any type. The triangles are packed, the other primitives are kept as they are
+   * and only their bounding box is packed.
+   */
+  public void addPrimitive(Primitive primitive) {
+    if (primitive instanceof TexturedTriangle) {
+      addTriangle((TexturedTriangle) primitive);
+      return;
+    }
+
+    // Round outwards so that the packed corners contain the whole primitive
+    AABB bounds = primitive.bounds();
+    float xmin = Math.nextDown((float) bounds.xmin);
+    float ymin = Math.nextDown((float) bounds.ymin);
+    float zmin = Math.nextDown((float) bounds.zmin);
+    addGeometry(xmin, ymin, zmin,
+        edge(xmin, Math.nextUp((float) bounds.xmax)),
+        edge(ymin, Math.nextUp((float) bounds.ymax)),
+        edge(zmin, Math.nextUp((float) bounds.zmax)),
+        0, 0, 0,
+        0, 0, 0, 0, 0, 0);
+    materialIds.add(PackedTriangles.PRIMITIVE | primitives.size());
+    primitives.add(primitive);
 
     ++count;
   }
 
+  /**
+   * Returns the smallest edge such that {@code min + edge >= max} in float.
+   */
+  private static float edge(float min, float max) {
+    float edge = max - min;
+    while (min + edge < max) {
+      edge = Math.nextUp(edge);
+    }
+    return edge;
+  }
+
+  private void addGeometry(double ox, double oy, double oz,
+                           double e1x, double e1y, double e1z,
+                           double e2x, double e2y, double e2z,
+                           double t1u, double t1v, double t2u, double t2v, double t3u, double t3v) {
+    if (indexed) {
+      addVertex(ox, oy, oz);
+      addVertex(ox + e1x, oy + e1y, oz + e1z);
+      addVertex(ox + e2x, oy + e2y, oz + e2z);
+      addUv(t1u, t1v);
+      addUv(t2u, t2v);
+      addUv(t3u, t3v);
+    } else if (offHeapPoints != null) {
+      offHeapPoints.add((float) ox);
+      offHeapPoints.add((float) oy);
+      offHeapPoints.add((float) oz);
+      offHeapPoints.add((float) e1x);
+      offHeapPoints.add((float) e1y);
+      offHeapPoints.add((float) e1z);
+      offHeapPoints.add((float) e2x);
+      offHeapPoints.add((float) e2y);
+      offHeapPoints.add((float) e2z);
+
+      offHeapUv.add((float) t1u);
+      offHeapUv.add((float) t1v);
+      offHeapUv.add((float) t2u);
+      offHeapUv.add((float) t2v);
+      offHeapUv.add((float) t3u);
+      offHeapUv.add((float) t3v);
+    } else {
+      // TODO Is it better to copy to an array and call addElements
+      points.add((float) ox);
+      points.add((float) oy);
+      points.add((float) oz);
+      points.add((float) e1x);
+      points.add((float) e1y);
+      points.add((float) e1z);
+      points.add((float) e2x);
+      points.add((float) e2y);
+      points.add((float) e2z);
+
+      uv.add((float) t1u);
+      uv.add((float) t1v);
+      uv.add((float) t2u);
+      uv.add((float) t2v);
+      uv.add((float) t3u);
+      uv.add((float) t3v);
+    }
+  }
+
+  private void addVertex(double x, double y, double z) {
+    tuple[0] = (float) x;
+    tuple[1] = (float) y;
+    tuple[2] = (float) z;
+    vertexIndexes.add(vertices.add(tuple));
+  }
+
+  private void addUv(double u, double v) {
+    tuple[0] = (float) u;
+    tuple[1] = (float) v;
+    uvIndexes.add(uvs.add(tuple));
+  }
+
   public PackedTriangles build() {
-    points.trim();
-    uv.trim();
+    PackedTriangles triangles = buildTriangles();
+    if (!primitives.isEmpty()) {
+      triangles.primitives = primitives.toArray(new Primitive[0]);
+    }
+    if (sources != null) {
+      sources.finish(count);
+      triangles.sources = sources;
+    }
+    return triangles;
+  }
+
+  private PackedTriangles buildTriangles() {
     materialIds.trim();
     materialPalette.trim();
-    return new PackedTriangles(
+    if (indexed) {
+      vertexIndexes.trim();
+      uvIndexes.trim();
+      return new IndexedPackedTriangles(
+              vertices.build(),
+              uvs.build(),
+              vertexIndexes.elements(),
+              uvIndexes.elements(),
+              materialIds.elements(),
+              materialPalette.toArray(new Material[0]),
+              count
+      );
+    }
+    if (offHeapPoints != null) {
+      return new OffHeapPackedTriangles(
+              offHeapPoints,
+              offHeapUv,
+              materialIds.elements(),
+              materialPalette.toArray(new Material[0]),
+              count
+      );
+    }
+    points.trim();
+    uv.trim();
+    return new FlatPackedTriangles(
             points.elements(),
             uv.elements(),
             materialIds.elements(),
-            doubleSided,
             materialPalette.toArray(new Material[0]),
             count
     );
@@ -0,0 +1,184 @@
+package dev.ferrand.chunky.bvh.util;
+
+import it.unimi.dsi.fastutil.BigArrays;
+import se.llbit.math.Ray;
+
+import java.util.stream.IntStream;
+
+/**
+ * Intersection data precomputed for each of the triangles, in the same order, so that a ray is tested against
+ * a triangle with four dot products instead of the two cross products and four dot products of Möller-Trumbore.
+ * The data of a triangle is padded to 64 bytes, the size of a cache line: its first vertex, its plane normal
+ * {@code e1 x e2}, the two vectors giving its barycentric coordinates from a point of its plane
+ * and its unit shading normal. The material ids are copied to a parallel array for the culling test.
+ * The texture coordinates and materials are still read from the triangles, only for the hits.
+ */
+public class PrecomputedTriangles {
+  private static final int FLOATS = 16;
+  private static final int SEGMENT_SHIFT = 20; // 2^20 triangles, 64 MiB per array
+  private static final int SEGMENT_MASK = (1 << SEGMENT_SHIFT) - 1;
+
+  private final PackedTriangles triangles;
+  private final float[][] segments;
+  private final int[][] materialIds; // Same segments as the data, 1 int per triangle
+
+  public PrecomputedTriangles(PackedTriangles triangles) {
+    this.triangles = triangles;
+    segments = new float[(triangles.count + SEGMENT_MASK) >>> SEGMENT_SHIFT][];
+    materialIds = new int[segments.length][];
+    for (int segment = 0; segment < segments.length; ++segment) {
+      int size = Math.min(SEGMENT_MASK + 1, triangles.count - (segment << SEGMENT_SHIFT));
+      segments[segment] = new float[FLOATS * size];
+      materialIds[segment] = new int[size];
+    }
+    update();
+  }
+
+  /**
+   * Recompute the data of all the triangles, after they were updated or reordered.
+   */
+  public void update() {
+    IntStream.range(0, segments.length).parallel().forEach(segment -> {
+      int from = segment << SEGMENT_SHIFT;
+      int to = Math.min(triangles.count, from + SEGMENT_MASK + 1);
+      for (int index = from; index < to; ++index) {
+        precompute(index, segments[segment], materialIds[segment], index & SEGMENT_MASK);
+      }
+    });
+  }
+
+  private void precompute(int index, float[] data, int[] ids, int offset) {
+    int base = offset * FLOATS;
+    int materialId = BigArrays.get(triangles.materialIds, index);
+    ids[offset] = materialId;
+    if ((materialId & PackedTriangles.PRIMITIVE) != 0) {
+      return;
+    }
+    float ox = triangles.vertex(index, 0, 0);
+    float oy = triangles.vertex(index, 0, 1);
+    float oz = triangles.vertex(index, 0, 2);
+    float e1x = triangles.edge(index, 1, 0);
+    float e1y = triangles.edge(index, 1, 1);
+    float e1z = triangles.edge(index, 1, 2);
+    float e2x = triangles.edge(index, 2, 0);
+    float e2y = triangles.edge(index, 2, 1);
+    float e2z = triangles.edge(index, 2, 2);
+
+    // n = e1 x e2, the plane of the triangle
+    double nx = (double) e1y * e2z - (double) e1z * e2y;
+    double ny = (double) e1z * e2x - (double) e1x * e2z;
+    double nz = (double) e1x * e2y - (double) e1y * e2x;
+    double nn = nx*nx + ny*ny + nz*nz;
+    // (e2 x n) / |n|^2 and (n x e1) / |n|^2 give the coordinates along e1 and e2 of a point of the plane
+    double ux = (e2y * nz - e2z * ny) / nn;
+    double uy = (e2z * nx - e2x * nz) / nn;
+    double uz = (e2x * ny - e2y * nx) / nn;
+    double vx = (ny * e1z - nz * e1y) / nn;
+    double vy = (nz * e1x - nx * e1z) / nn;
+    double vz = (nx * e1y - ny * e1x) / nn;
+
+    // Same shading normal as PackedTriangles, e2 x e1 normalized in single precision
+    float snx = e2y * e1z - e2z * e1y;
+    float sny = e2z * e1x - e2x * e1z;
+    float snz = e2x * e1y - e2y * e1x;
+    float n_invr = (float) (1.0 / Math.sqrt(snx*snx + sny*sny + snz*snz));
+
+    data[base] = ox;
+    data[base + 1] = oy;
+    data[base + 2] = oz;
+    data[base + 3] = (float) nx;
+    data[base + 4] = (float) ny;
+    data[base + 5] = (float) nz;
+    data[base + 6] = (float) ux;
+    data[base + 7] = (float) uy;
+    data[base + 8] = (float) uz;
+    data[base + 9] = (float) vx;
+    data[base + 10] = (float) vy;
+    data[base + 11] = (float) vz;
+    data[base + 12] = snx * n_invr;
+    data[base + 13] = sny * n_invr;
+    data[base + 14] = snz * n_invr;
+  }
+
+  /**
+   * Number of bytes used by the precomputed data.
+   */
+  public long bytes() {
+    return 4L * FLOATS * triangles.count;
+  }
+
+  /**
+   * Same as {@link PackedTriangles#intersectDeferred(int, Ray)}.
+   */
+  public boolean intersectDeferred(int index, Ray ray) {
+    return intersect(index, ray, false);
+  }
+
+  /**
+   * Same as {@link PackedTriangles#finishHit(int, Ray)}.
+   */
+  public void finishHit(int index, Ray ray) {
+    triangles.finishHit(index, ray);
+  }
+
+  /**
+   * Same as {@link PackedTriangles#occludes(int, Ray)}.
+   */
+  public boolean occludes(int index, Ray ray) {
+    return intersect(index, ray, true);
+  }
+
+  private boolean intersect(int index, Ray ray, boolean anyHit) {
+    float[] data = segments[index >>> SEGMENT_SHIFT];
+    int base = (index & SEGMENT_MASK) * FLOATS;
+    int materialId = materialIds[index >>> SEGMENT_SHIFT][index & SEGMENT_MASK];
+    if ((materialId & PackedTriangles.PRIMITIVE) != 0) {
+      return anyHit ? triangles.occludes(index, ray) : triangles.intersectDeferred(index, ray);
+    }
+
+    double dx = ray.d.x;
+    double dy = ray.d.y;
+    double dz = ray.d.z;
+    double nx = data[base + 3];
+    double ny = data[base + 4];
+    double nz = data[base + 5];
+    // Opposite of the determinant of Möller-Trumbore, the triangles are culled the same way
+    double det = nx * dx + ny * dy + nz * dz;
+    if ((materialId & PackedTriangles.DOUBLE_SIDED) != 0) {
+      if (det > -Ray.EPSILON && det < Ray.EPSILON) {
+        return false;
+      }
+    } else if (det < Ray.EPSILON) {
+      return false;
+    }
+
+    double tx = ray.o.x - data[base];
+    double ty = ray.o.y - data[base + 1];
+    double tz = ray.o.z - data[base + 2];
+    double t = -(nx * tx + ny * ty + nz * tz) / det;
+    if (!(t > Ray.EPSILON && t < ray.t)) {
+      return false;
+    }
+
+    // Hit point relative to the first vertex
+    double px = tx + t * dx;
+    double py = ty + t * dy;
+    double pz = tz + t * dz;
+    double u = data[base + 6] * px + data[base + 7] * py + data[base + 8] * pz;
+    if (u < 0 || u > 1) {
+      return false;
+    }
+    double v = data[base + 9] * px + data[base + 10] * py + data[base + 11] * pz;
+    if (v < 0 || (u + v) > 1) {
+      return false;
+    }
+
+    if (triangles.acceptHit(index, materialId, ray, anyHit, t, u, v)) {
+      if (!anyHit) {
+        ray.setNormal(data[base + 12], data[base + 13], data[base + 14]);
+      }
+      return true;
+    }
+    return false;
+  }
+}
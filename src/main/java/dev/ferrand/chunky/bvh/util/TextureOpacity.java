@@ -0,0 +1,90 @@
+package dev.ferrand.chunky.bvh.util;
+
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
+import se.llbit.chunky.resources.Texture;
+import se.llbit.chunky.world.Material;
+import se.llbit.math.primitive.TexturedTriangle;
+
+/**
+ * Classifies the part of its texture covered by a triangle as fully opaque, fully transparent or mixed,
+ * by looking up the alpha of every texel of the bounding box of its texture coordinates.
+ * The result is cached as the triangles of entity models reuse the same parts of their textures.
+ */
+class TextureOpacity {
+  static final int OPAQUE = 0;
+  static final int TRANSPARENT = 1;
+  static final int MIXED = 2;
+
+  /**
+   * Footprints larger than this number of texels are not looked at and classified as mixed.
+   */
+  private static final int MAX_SAMPLES = 4096;
+
+  private final Object2IntOpenHashMap<Footprint> cache = new Object2IntOpenHashMap<>();
+
+  private record Footprint(Material material, double umin, double umax, double vmin, double vmax) {
+  }
+
+  int classify(TexturedTriangle triangle) {
+    Material material = triangle.material;
+    Footprint footprint = new Footprint(material,
+        Math.min(triangle.t1u, Math.min(triangle.t2u, triangle.t3u)),
+        Math.max(triangle.t1u, Math.max(triangle.t2u, triangle.t3u)),
+        Math.min(triangle.t1v, Math.min(triangle.t2v, triangle.t3v)),
+        Math.max(triangle.t1v, Math.max(triangle.t2v, triangle.t3v)));
+    if (cache.containsKey(footprint)) {
+      return cache.getInt(footprint);
+    }
+    int opacity = classify(footprint);
+    cache.put(footprint, opacity);
+    return opacity;
+  }
+
+  private static int classify(Footprint footprint) {
+    Texture texture = footprint.material.texture;
+    if (texture == null) {
+      return MIXED;
+    }
+    double[] us = samples(footprint.umin, footprint.umax, texture.getWidth());
+    double[] vs = samples(footprint.vmin, footprint.vmax, texture.getHeight());
+    if (us == null || vs == null || (long) us.length * vs.length > MAX_SAMPLES) {
+      return MIXED;
+    }
+
+    boolean opaque = false;
+    boolean transparent = false;
+    for (double u : us) {
+      for (double v : vs) {
+        if (footprint.material.getColor(u, v)[3] > 0) {
+          opaque = true;
+        } else {
+          transparent = true;
+        }
+        if (opaque && transparent) {
+          return MIXED;
+        }
+      }
+    }
+    return opaque ? OPAQUE : TRANSPARENT;
+  }
+
+  /**
+   * Returns coordinates that fall in every texel between {@code min} and {@code max}: both ends and the centers
+   * of the texels in between. Returns null if there are too many.
+   */
+  private static double[] samples(double min, double max, int size) {
+    if (!(max - min < (double) MAX_SAMPLES / size)) {
+      return null;
+    }
+    int first = (int) Math.floor(min * size + 0.5);
+    int last = (int) Math.ceil(max * size - 0.5);
+    int centers = Math.max(0, last - first);
+    double[] samples = new double[centers + 2];
+    samples[0] = min;
+    for (int i = 0; i < centers; ++i) {
+      samples[i + 1] = (first + i + 0.5) / size;
+    }
+    samples[centers + 1] = max;
+    return samples;
+  }
+}
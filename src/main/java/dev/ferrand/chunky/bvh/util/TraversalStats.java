@@ -0,0 +1,84 @@
+package dev.ferrand.chunky.bvh.util;
+
+import dev.ferrand.chunky.bvh.BvhSettings;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of the work done by the traversals of the packed trees, enabled with {@link BvhSettings#stats()}.
+ * The traversals count in local variables and add them once per ray, the adders keep a cell per contending thread.
+ * {@link #ENABLED} is a constant so that the JIT removes the counting altogether when it is disabled.
+ */
+public final class TraversalStats {
+  public static final boolean ENABLED = BvhSettings.stats();
+
+  private static final LongAdder rays = new LongAdder();
+  private static final LongAdder nodesVisited = new LongAdder();
+  private static final LongAdder aabbTests = new LongAdder();
+  private static final LongAdder triangleTests = new LongAdder();
+  private static final LongAdder alphaRejections = new LongAdder();
+
+  private TraversalStats() {
+  }
+
+  /**
+   * Add the work done for {@code rayCount} rays.
+   */
+  public static void add(int rayCount, long nodes, long aabbs, long triangles) {
+    rays.add(rayCount);
+    nodesVisited.add(nodes);
+    aabbTests.add(aabbs);
+    triangleTests.add(triangles);
+  }
+
+  /**
+   * Count a hit discarded because the texture is transparent there.
+   */
+  public static void alphaRejection() {
+    alphaRejections.increment();
+  }
+
+  /**
+   * The counters since the last {@link #reset()}. Not atomic, rays traced meanwhile may be partially counted.
+   */
+  public static Snapshot snapshot() {
+    return new Snapshot(rays.sum(), nodesVisited.sum(), aabbTests.sum(), triangleTests.sum(), alphaRejections.sum());
+  }
+
+  public static void reset() {
+    rays.reset();
+    nodesVisited.reset();
+    aabbTests.reset();
+    triangleTests.reset();
+    alphaRejections.reset();
+  }
+
+  public record Snapshot(long rays, long nodesVisited, long aabbTests, long triangleTests, long alphaRejections) {
+
+    public double nodesVisitedPerRay() {
+      return perRay(nodesVisited);
+    }
+
+    public double aabbTestsPerRay() {
+      return perRay(aabbTests);
+    }
+
+    public double triangleTestsPerRay() {
+      return perRay(triangleTests);
+    }
+
+    public double alphaRejectionsPerRay() {
+      return perRay(alphaRejections);
+    }
+
+    private double perRay(long count) {
+      return rays == 0 ? 0 : count / (double) rays;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%d rays, per ray: %.2f nodes visited, %.2f AABB tests, %.2f triangle tests, %.3f alpha rejections",
+          rays, nodesVisitedPerRay(), aabbTestsPerRay(), triangleTestsPerRay(), alphaRejectionsPerRay());
+    }
+  }
+}
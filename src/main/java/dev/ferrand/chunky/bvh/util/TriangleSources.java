@@ -0,0 +1,118 @@
+package dev.ferrand.chunky.bvh.util;
+
+import it.unimi.dsi.fastutil.BigArrays;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntBigArrays;
+import it.unimi.dsi.fastutil.objects.Object2IntMap;
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
+import se.llbit.chunky.entity.Entity;
+
+import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Keeps track of the triangles of each entity while they are sorted, so that the triangles of an entity
+ * that moved can be updated in place. The triangles are numbered in the order they were collected.
+ */
+public class TriangleSources {
+  private final Object2IntOpenHashMap<Entity> entityIndexes = new Object2IntOpenHashMap<>();
+  private final IntArrayList entityStarts = new IntArrayList(); // first collected triangle of each entity
+  private int[][] sources; // collected number of the triangle at each position, moved with the triangles
+  private int[][] positions; // inverse of sources, computed when needed
+
+  TriangleSources() {
+    entityIndexes.defaultReturnValue(-1);
+  }
+
+  void startEntity(Entity entity, int start) {
+    entityIndexes.put(entity, entityStarts.size());
+    entityStarts.add(start);
+  }
+
+  /**
+   * Add the entities of another tracker whose triangles were appended after the {@code offset} first ones.
+   */
+  void append(TriangleSources other, int offset) {
+    int base = entityStarts.size();
+    for (Object2IntMap.Entry<Entity> entry : other.entityIndexes.object2IntEntrySet()) {
+      entityIndexes.put(entry.getKey(), base + entry.getIntValue());
+    }
+    for (int i = 0; i < other.entityStarts.size(); ++i) {
+      entityStarts.add(other.entityStarts.getInt(i) + offset);
+    }
+  }
+
+  void finish(int count) {
+    entityStarts.add(count);
+    entityStarts.trim();
+    sources = IntBigArrays.newBigArray(count);
+    for (int i = 0; i < count; ++i) {
+      BigArrays.set(sources, i, i);
+    }
+  }
+
+  public boolean contains(Entity entity) {
+    return entityIndexes.containsKey(entity);
+  }
+
+  /**
+   * Returns the number of triangles collected from the entity.
+   */
+  public int triangleCount(Entity entity) {
+    int index = entityIndexes.getInt(entity);
+    return entityStarts.getInt(index + 1) - entityStarts.getInt(index);
+  }
+
+  /**
+   * Returns the current position of the i-th triangle collected from the entity.
+   */
+  public int position(Entity entity, int i) {
+    if (positions == null) {
+      positions = IntBigArrays.newBigArray(BigArrays.length(sources));
+      for (int position = 0; position < BigArrays.length(sources); ++position) {
+        BigArrays.set(positions, BigArrays.get(sources, position), position);
+      }
+    }
+    return BigArrays.get(positions, entityStarts.getInt(entityIndexes.getInt(entity)) + i);
+  }
+
+  /**
+   * Approximate number of bytes used, the hash map from the entities counted with its usual load factor.
+   */
+  long bytes() {
+    long tracked = 4L * BigArrays.length(sources);
+    if (positions != null) {
+      tracked += 4L * BigArrays.length(positions);
+    }
+    return tracked + 4L * entityStarts.elements().length + 8L * entityIndexes.size() * 4 / 3;
+  }
+
+  void swap(int indexA, int indexB) {
+    BigArrays.swap(sources, indexA, indexB);
+    positions = null;
+  }
+
+  void move(int from, int to) {
+    BigArrays.set(sources, to, BigArrays.get(sources, from));
+    positions = null;
+  }
+
+  int get(int index) {
+    return BigArrays.get(sources, index);
+  }
+
+  void set(int index, int source) {
+    BigArrays.set(sources, index, source);
+    positions = null;
+  }
+
+  void write(WritableByteChannel channel) throws IOException {
+    ChannelIO.writeInts(channel, sources, BigArrays.length(sources));
+  }
+
+  void read(ReadableByteChannel channel) throws IOException {
+    ChannelIO.readInts(channel, sources, BigArrays.length(sources));
+    positions = null;
+  }
+}
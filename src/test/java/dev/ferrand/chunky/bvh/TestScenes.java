@@ -0,0 +1,150 @@
+package dev.ferrand.chunky.bvh;
+
+import se.llbit.chunky.entity.Entity;
+import se.llbit.chunky.resources.Texture;
+import se.llbit.chunky.world.Material;
+import se.llbit.json.JsonObject;
+import se.llbit.json.JsonValue;
+import se.llbit.math.Ray;
+import se.llbit.math.Vector2;
+import se.llbit.math.Vector3;
+import se.llbit.math.bvh.BVH;
+import se.llbit.math.primitive.Primitive;
+import se.llbit.math.primitive.TexturedTriangle;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Small deterministic scenes and rays to compare the hits of the BVHs.
+ */
+public final class TestScenes {
+  private static final float[] WHITE = {1, 1, 1, 1};
+
+  private TestScenes() {
+  }
+
+  public static Material material() {
+    return new Material("bvh_test", new Texture()) {
+      @Override
+      public float[] getColor(double u, double v) {
+        return WHITE;
+      }
+    };
+  }
+
+  /**
+   * Entity with the given primitives, returned as a new list on each call.
+   */
+  public static Entity entity(Vector3 position, List<Primitive> primitives) {
+    return new Entity(position) {
+      @Override
+      public Collection<Primitive> primitives(Vector3 offset) {
+        return new ArrayList<>(primitives);
+      }
+
+      @Override
+      public JsonValue toJson() {
+        return new JsonObject();
+      }
+    };
+  }
+
+  /**
+   * Boxes of 12 triangles of random sizes, rotated around the vertical axis and spread in a cube.
+   */
+  public static List<Entity> boxes(int count, long seed) {
+    Random random = new Random(seed);
+    Material material = material();
+    double extent = 4 * Math.cbrt(count);
+    List<Entity> entities = new ArrayList<>(count);
+    for (int i = 0; i < count; ++i) {
+      Vector3 center = new Vector3(random.nextDouble() * extent, random.nextDouble() * extent, random.nextDouble() * extent);
+      entities.add(entity(center, box(center, 0.2 + random.nextDouble(), 0.2 + random.nextDouble(),
+          0.2 + random.nextDouble(), random.nextDouble() * Math.PI, material)));
+    }
+    return entities;
+  }
+
+  /**
+   * The 12 triangles of a box, rotated by {@code yaw} around the vertical axis through its center.
+   */
+  public static List<Primitive> box(Vector3 center, double width, double height, double depth, double yaw,
+                                    Material material) {
+    double cos = Math.cos(yaw);
+    double sin = Math.sin(yaw);
+    Vector3[] corners = new Vector3[8];
+    for (int i = 0; i < 8; ++i) {
+      double x = ((i & 1) == 0 ? -width : width) / 2;
+      double y = ((i & 2) == 0 ? -height : height) / 2;
+      double z = ((i & 4) == 0 ? -depth : depth) / 2;
+      corners[i] = new Vector3(center.x + x * cos - z * sin, center.y + y, center.z + x * sin + z * cos);
+    }
+    int[][] faces = {{0, 2, 3, 1}, {4, 5, 7, 6}, {0, 1, 5, 4}, {2, 6, 7, 3}, {0, 4, 6, 2}, {1, 3, 7, 5}};
+    List<Primitive> triangles = new ArrayList<>(12);
+    for (int[] face : faces) {
+      triangles.add(new TexturedTriangle(corners[face[0]], corners[face[1]], corners[face[2]],
+          new Vector2(0, 0), new Vector2(1, 0), new Vector2(1, 1), material, false));
+      triangles.add(new TexturedTriangle(corners[face[0]], corners[face[2]], corners[face[3]],
+          new Vector2(0, 0), new Vector2(1, 1), new Vector2(0, 1), material, false));
+    }
+    return triangles;
+  }
+
+  /**
+   * Rays from random points around the entities, half of them toward an entity and half in a random direction.
+   */
+  public static List<Ray> rays(List<Entity> entities, int count, long seed) {
+    Random random = new Random(seed);
+    double extent = 4 * Math.cbrt(entities.size());
+    List<Ray> rays = new ArrayList<>(count);
+    for (int i = 0; i < count; ++i) {
+      Ray ray = new Ray();
+      ray.o.set((random.nextDouble() * 1.5 - 0.25) * extent, (random.nextDouble() * 1.5 - 0.25) * extent,
+          (random.nextDouble() * 1.5 - 0.25) * extent);
+      if (i % 2 == 0) {
+        Vector3 target = entities.get(random.nextInt(entities.size())).position;
+        ray.d.set(target.x - ray.o.x + random.nextDouble() - 0.5, target.y - ray.o.y + random.nextDouble() - 0.5,
+            target.z - ray.o.z + random.nextDouble() - 0.5);
+      } else {
+        ray.d.set(random.nextGaussian(), random.nextGaussian(), random.nextGaussian());
+      }
+      ray.d.normalize();
+      rays.add(ray);
+    }
+    return rays;
+  }
+
+  /**
+   * Check that the closest hit of every ray is the same in both BVHs, and that some rays hit.
+   */
+  public static void assertSameHits(BVH expected, BVH actual, List<Ray> rays) {
+    int hits = 0;
+    for (int i = 0; i < rays.size(); ++i) {
+      Ray expectedRay = copy(rays.get(i));
+      Ray actualRay = copy(rays.get(i));
+      boolean hit = expected.closestIntersection(expectedRay);
+      assertEquals("ray " + i + " hit", hit, actual.closestIntersection(actualRay));
+      if (hit) {
+        ++hits;
+        assertEquals("ray " + i + " distance", expectedRay.t, actualRay.t, 1e-9);
+        assertEquals("ray " + i + " u", expectedRay.u, actualRay.u, 1e-9);
+        assertEquals("ray " + i + " v", expectedRay.v, actualRay.v, 1e-9);
+      }
+    }
+    assertTrue("no ray hit the scene", hits > 0);
+  }
+
+  private static Ray copy(Ray ray) {
+    Ray copy = new Ray();
+    copy.o.set(ray.o);
+    copy.d.set(ray.d);
+    copy.t = Double.POSITIVE_INFINITY;
+    return copy;
+  }
+}
@@ -0,0 +1,103 @@
+package dev.ferrand.chunky.bvh.implementation;
+
+import dev.ferrand.chunky.bvh.TestScenes;
+import dev.ferrand.chunky.bvh.util.PackedTriangles;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import se.llbit.chunky.entity.Entity;
+import se.llbit.math.Ray;
+import se.llbit.math.Vector3;
+import se.llbit.util.TaskTracker;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+
+public class BvhCacheTest {
+  private static final String CACHE_DIRECTORY = "chunky.bvh.cacheDirectory";
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private final List<Entity> entities = TestScenes.boxes(1000, 1);
+  private final List<Ray> rays = TestScenes.rays(entities, 1000, 2);
+  private final AtomicInteger builds = new AtomicInteger();
+
+  @Before
+  public void setUp() {
+    System.setProperty(CACHE_DIRECTORY, folder.getRoot().getPath());
+  }
+
+  @After
+  public void tearDown() {
+    System.clearProperty(CACHE_DIRECTORY);
+  }
+
+  private PackedSahMaBVH getOrBuild() {
+    PackedTriangles triangles = PackedSahMaBVH.packTriangles(entities, new Vector3(), TaskTracker.Task.NONE);
+    return BvhCache.getOrBuild("TEST", triangles, new Vector3(), TaskTracker.Task.NONE, null, () -> {
+      builds.incrementAndGet();
+      return new PackedSahMaBVH(triangles, TaskTracker.Task.NONE, false);
+    });
+  }
+
+  private Path cacheFile() throws IOException {
+    try (Stream<Path> files = Files.list(folder.getRoot().toPath())) {
+      List<Path> entries = files.toList();
+      assertEquals(1, entries.size());
+      return entries.get(0);
+    }
+  }
+
+  @Test
+  public void loadsStoredTree() {
+    PackedSahMaBVH built = getOrBuild();
+    PackedSahMaBVH loaded = getOrBuild();
+
+    assertEquals(1, builds.get());
+    assertEquals(built.rootIndex, loaded.rootIndex);
+    TestScenes.assertSameHits(built, loaded, rays);
+  }
+
+  @Test
+  public void rebuildsTruncatedFile() throws IOException {
+    PackedSahMaBVH built = getOrBuild();
+    Path file = cacheFile();
+    long size = Files.size(file);
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+      channel.truncate(size / 2);
+    }
+
+    PackedSahMaBVH rebuilt = getOrBuild();
+    assertEquals(2, builds.get());
+    TestScenes.assertSameHits(built, rebuilt, rays);
+    // The entry is written again and used by the next load
+    assertEquals(size, Files.size(cacheFile()));
+    TestScenes.assertSameHits(built, getOrBuild(), rays);
+    assertEquals(2, builds.get());
+  }
+
+  @Test
+  public void rebuildsCorruptNodes() throws IOException {
+    PackedSahMaBVH built = getOrBuild();
+    Path file = cacheFile();
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+      // The last int is a child of the root, replace it with a node that doesn't exist yet
+      channel.write(ByteBuffer.wrap(new byte[] {0x7f, 0x7f, 0x7f, 0x7f}), Files.size(file) - 4);
+    }
+
+    TestScenes.assertSameHits(built, getOrBuild(), rays);
+    assertEquals(2, builds.get());
+  }
+}
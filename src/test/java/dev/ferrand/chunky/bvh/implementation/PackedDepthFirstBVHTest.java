@@ -0,0 +1,60 @@
+package dev.ferrand.chunky.bvh.implementation;
+
+import dev.ferrand.chunky.bvh.TestScenes;
+import dev.ferrand.chunky.bvh.util.PackedTriangles;
+import org.junit.Test;
+import se.llbit.chunky.entity.Entity;
+import se.llbit.math.Ray;
+import se.llbit.math.Vector3;
+import se.llbit.util.TaskTracker;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class PackedDepthFirstBVHTest {
+
+  private static PackedSahMaBVH binary(List<Entity> entities, SahCostModel costModel) {
+    PackedTriangles triangles = PackedSahMaBVH.packTriangles(entities, new Vector3(), TaskTracker.Task.NONE);
+    return new PackedSahMaBVH(triangles, TaskTracker.Task.NONE, false, null, costModel);
+  }
+
+  @Test
+  public void sameHitsAsBinaryTree() {
+    List<Entity> entities = TestScenes.boxes(2000, 1);
+    List<Ray> rays = TestScenes.rays(entities, 2000, 2);
+    PackedSahMaBVH binary = binary(entities, SahCostModel.fromSettings());
+    PackedDepthFirstBVH depthFirst = new PackedDepthFirstBVH(binary);
+
+    TestScenes.assertSameHits(binary, depthFirst, rays);
+    assertEquals(28L * (binary.children.capacity() / 2), depthFirst.nodeBytes());
+  }
+
+  @Test
+  public void sameHitsWithLargestLeaves() {
+    List<Entity> entities = TestScenes.boxes(500, 3);
+    List<Ray> rays = TestScenes.rays(entities, 1000, 4);
+    // Nodes cost so much that every chunk of up to 64 triangles is kept as a leaf
+    PackedSahMaBVH binary = binary(entities, new SahCostModel(1000, 1, 64));
+
+    TestScenes.assertSameHits(binary, new PackedDepthFirstBVH(binary), rays);
+  }
+
+  @Test
+  public void emptyTree() {
+    PackedSahMaBVH binary = binary(List.of(), SahCostModel.fromSettings());
+    Ray ray = new Ray();
+    ray.d.set(0, 0, 1);
+
+    assertFalse(new PackedDepthFirstBVH(binary).closestIntersection(ray));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void rejectsLeavesTooLarge() {
+    PackedSahMaBVH binary = binary(TestScenes.boxes(500, 5), new SahCostModel(1000, 1, 100));
+
+    assertFalse(PackedDepthFirstBVH.fits(binary));
+    new PackedDepthFirstBVH(binary);
+  }
+}
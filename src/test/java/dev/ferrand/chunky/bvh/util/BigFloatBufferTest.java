@@ -0,0 +1,50 @@
+package dev.ferrand.chunky.bvh.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class BigFloatBufferTest {
+
+  @Test
+  public void growsTheLastSegment() {
+    BigFloatBuffer buffer = new BigFloatBuffer(OffHeapAllocator.direct());
+    for (int i = 0; i < 100; ++i) {
+      buffer.add(i);
+    }
+    assertTrue("a small list allocates " + buffer.bytes() + " bytes", buffer.bytes() <= 4096);
+
+    for (int i = 100; i < 100_000; ++i) {
+      buffer.add(i);
+    }
+    assertEquals(100_000, buffer.size64());
+    assertTrue("a list of 100000 floats allocates " + buffer.bytes() + " bytes", buffer.bytes() < 800_000);
+    for (int i = 0; i < 100_000; ++i) {
+      assertEquals(i, buffer.get(i), 0);
+    }
+  }
+
+  @Test
+  public void allocatesTheExpectedSize() {
+    BigFloatBuffer buffer = new BigFloatBuffer(OffHeapAllocator.direct(), 9000);
+    for (int i = 0; i < 9000; ++i) {
+      buffer.add(-i);
+    }
+    assertEquals(4 * 9000, buffer.bytes());
+    assertEquals(-8999, buffer.get(8999), 0);
+  }
+
+  @Test
+  public void releaseEmptiesTheList() {
+    BigFloatBuffer buffer = new BigFloatBuffer(OffHeapAllocator.direct());
+    for (int i = 0; i < 5000; ++i) {
+      buffer.add(i);
+    }
+    buffer.release();
+    assertEquals(0, buffer.size64());
+    assertEquals(0, buffer.bytes());
+    buffer.add(1);
+    assertEquals(1, buffer.get(0), 0);
+  }
+}